@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.benchmarks;
+
+import com.io7m.music.kit.calais.generator.CalFLAC;
+import com.io7m.music.kit.calais.generator.CalFLACDecoding;
+import com.io7m.music.kit.calais.generator.CalSyntheticCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * A comparison of the native and jflac FLAC decoders, decoding every file
+ * of a synthetic corpus to 16-bit data.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CalFLACDecoderBenchmark
+{
+  /**
+   * The bits per sample of the corpus.
+   */
+
+  @Param({"16", "24"})
+  public int bits;
+
+  private Path corpus;
+  private List<Path> files;
+  private byte[] buffer;
+
+  /**
+   * Construct a benchmark.
+   */
+
+  public CalFLACDecoderBenchmark()
+  {
+
+  }
+
+  /**
+   * Generate the corpus.
+   *
+   * @throws IOException On errors
+   */
+
+  @Setup(Level.Trial)
+  public void setup()
+    throws IOException
+  {
+    this.corpus = Files.createTempDirectory("calais-benchmark");
+    CalSyntheticCorpus.generate(this.corpus, 1, 1.0, this.bits);
+
+    try (var stream = Files.walk(this.corpus)) {
+      this.files = stream
+        .filter(path -> path.getFileName().toString().endsWith(".flac"))
+        .sorted()
+        .collect(Collectors.toList());
+    }
+    this.buffer = new byte[65536];
+  }
+
+  /**
+   * Delete the corpus.
+   *
+   * @throws IOException On errors
+   */
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+    throws IOException
+  {
+    try (var stream = Files.walk(this.corpus)) {
+      for (final var path : stream.sorted(Comparator.reverseOrder()).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  /**
+   * Decode the corpus with the native decoder.
+   *
+   * @return The number of bytes decoded
+   *
+   * @throws Exception On errors
+   */
+
+  @Benchmark
+  public long decodeNative()
+    throws Exception
+  {
+    return this.decodeAll(CalFLACDecoding.NATIVE);
+  }
+
+  /**
+   * Decode the corpus with the jflac decoder.
+   *
+   * @return The number of bytes decoded
+   *
+   * @throws Exception On errors
+   */
+
+  @Benchmark
+  public long decodeJFLAC()
+    throws Exception
+  {
+    return this.decodeAll(CalFLACDecoding.JFLAC);
+  }
+
+  private long decodeAll(
+    final CalFLACDecoding decoding)
+    throws Exception
+  {
+    var total = 0L;
+    for (final var file : this.files) {
+      try (var stream = CalFLAC.readAs16(file, decoding)) {
+        while (true) {
+          final var count = stream.read(this.buffer);
+          if (count == -1) {
+            break;
+          }
+          total += count;
+        }
+      }
+    }
+    return total;
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.benchmarks;
+
+import com.io7m.music.kit.calais.generator.CalFontLayout;
+import com.io7m.music.kit.calais.generator.CalProviderWiring;
+import com.io7m.music.kit.calais.generator.Calais;
+import com.io7m.music.kit.calais.generator.CalaisConfiguration;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A benchmark of the cost of the generated kit to its consumers. For each
+ * layout, a kit is generated from the given corpus, loaded into the JDK's
+ * software synthesizer, and used to render a fixed, dense drum pattern
+ * offline as fast as possible. The time taken to load the soundbank, the
+ * heap retained by the loaded soundbank, and the real-time factor of the
+ * rendering (the rendering time divided by the duration of the rendered
+ * audio) are reported.
+ *
+ * <pre>
+ * CalSoundbankBenchmark corpus-directory work-directory [iterations]
+ * </pre>
+ *
+ * The synthesizer is rendered offline through an interface that the
+ * {@code java.desktop} module does not export, so the JVM must be started
+ * with {@code --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED}.
+ */
+
+public final class CalSoundbankBenchmark
+{
+  private static final AudioFormat FORMAT =
+    new AudioFormat(44100.0f, 16, 2, true, false);
+
+  /*
+   * The pattern is a bar of sixteenth notes at 160 BPM, repeated for the
+   * duration of the rendering.
+   */
+
+  private static final double RENDER_SECONDS = 30.0;
+  private static final long STEP_MICROSECONDS = 60_000_000L / 160L / 4L;
+  private static final int DRUM_CHANNEL = 9;
+
+  private static final int BASS_DRUM_NOTE = 24;
+  private static final int SNARE_FIRST_NOTE = 36;
+  private static final int SNARE_NOTES = 15;
+  private static final int HI_HAT_FIRST_NOTE = 42;
+  private static final int HI_HAT_NOTES = 15;
+  private static final int CRASH_FIRST_NOTE = 60;
+  private static final int CRASH_NOTES = 3;
+
+  private CalSoundbankBenchmark()
+  {
+
+  }
+
+  private record Result(
+    long loadNanos,
+    long retainedBytes,
+    double realTimeFactor)
+  {
+
+  }
+
+  public static void main(
+    final String[] args)
+    throws Exception
+  {
+    if (args.length < 2) {
+      throw new IllegalArgumentException(
+        "usage: corpus-directory work-directory [iterations]"
+      );
+    }
+
+    final var corpus =
+      Paths.get(args[0]).toAbsolutePath();
+    final var work =
+      Paths.get(args[1]).toAbsolutePath();
+    final var iterations =
+      args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+    final var events = pattern();
+
+    System.out.printf(
+      "%-10s %10s %12s %14s %12s%n",
+      "layout",
+      "size (MiB)",
+      "load (ms)",
+      "retained (MiB)",
+      "real-time");
+
+    for (final var layout : CalFontLayout.values()) {
+      final var directory =
+        work.resolve(layout.externalName());
+      final var configuration =
+        CalaisConfiguration.builder(
+            corpus,
+            directory.resolve("samples"),
+            directory.resolve("calais.sf2"))
+          .setReuseConvertedSamples(true)
+          .setProviderWiring(CalProviderWiring.DIRECT)
+          .setLayout(layout)
+          .build();
+
+      Files.createDirectories(directory);
+      Calais.create(configuration)
+        .execute();
+
+      final var kit = configuration.targetFile();
+
+      /*
+       * The first run only warms up the synthesizer and the JIT.
+       */
+
+      run(kit, events);
+
+      final var results = new ArrayList<Result>(iterations);
+      for (var iteration = 0; iteration < iterations; ++iteration) {
+        results.add(run(kit, events));
+      }
+
+      System.out.printf(
+        "%-10s %10.1f %12.1f %14.1f %12.3f%n",
+        layout.externalName(),
+        Double.valueOf(Files.size(kit) / (1024.0 * 1024.0)),
+        Double.valueOf(median(results, r -> r.loadNanos() / 1.0e6)),
+        Double.valueOf(
+          median(results, r -> r.retainedBytes() / (1024.0 * 1024.0))),
+        Double.valueOf(median(results, Result::realTimeFactor))
+      );
+    }
+  }
+
+  private static double median(
+    final List<Result> results,
+    final ToDoubleFunction<Result> field)
+  {
+    final var values =
+      results.stream()
+        .mapToDouble(field)
+        .sorted()
+        .toArray();
+    return values[values.length / 2];
+  }
+
+  private record Event(
+    long timeMicroseconds,
+    ShortMessage message)
+  {
+
+  }
+
+  /**
+   * Produce the drum pattern: the bass drum on every beat, a snare on every
+   * backbeat and a ghost snare on every other sixteenth, a hi-hat on every
+   * sixteenth, and a crash at the start of every bar. Every strike cycles
+   * through the notes of its family and through a fixed set of velocities,
+   * so that every layer of every articulation is played.
+   */
+
+  private static List<Event> pattern()
+    throws InvalidMidiDataException
+  {
+    final var events = new ArrayList<Event>();
+    final var steps =
+      (long) (RENDER_SECONDS * 1_000_000.0) / STEP_MICROSECONDS;
+
+    for (var step = 0; step < steps; ++step) {
+      final var time = step * STEP_MICROSECONDS;
+      final var velocity = 1 + (step * 37) % 127;
+      final var beat = step % 4 == 0;
+
+      if (beat) {
+        strike(events, time, BASS_DRUM_NOTE, velocity);
+      }
+      if (step % 8 == 4) {
+        strike(events, time, snare(step), 100 + step % 28);
+      } else if (step % 2 == 1) {
+        strike(events, time, snare(step), velocity / 3 + 1);
+      }
+      strike(
+        events,
+        time,
+        HI_HAT_FIRST_NOTE + step % HI_HAT_NOTES,
+        beat ? 127 : velocity
+      );
+      if (step % 16 == 0) {
+        strike(
+          events,
+          time,
+          CRASH_FIRST_NOTE + (step / 16) % CRASH_NOTES,
+          velocity
+        );
+      }
+    }
+
+    events.sort(Comparator.comparingLong(Event::timeMicroseconds));
+    return events;
+  }
+
+  private static int snare(
+    final int step)
+  {
+    return SNARE_FIRST_NOTE + (step / 2) % SNARE_NOTES;
+  }
+
+  private static void strike(
+    final List<Event> events,
+    final long time,
+    final int note,
+    final int velocity)
+    throws InvalidMidiDataException
+  {
+    events.add(new Event(
+      time,
+      new ShortMessage(ShortMessage.NOTE_ON, DRUM_CHANNEL, note, velocity)
+    ));
+    events.add(new Event(
+      time + STEP_MICROSECONDS,
+      new ShortMessage(ShortMessage.NOTE_OFF, DRUM_CHANNEL, note, 0)
+    ));
+  }
+
+  private static Result run(
+    final Path kit,
+    final List<Event> events)
+    throws Exception
+  {
+    final var synthesizer = MidiSystem.getSynthesizer();
+    try (var stream = openStream(synthesizer)) {
+      synthesizer.unloadAllInstruments(synthesizer.getDefaultSoundbank());
+
+      final var heapThen = usedHeap();
+      final var timeThen = System.nanoTime();
+      final var soundbank = MidiSystem.getSoundbank(kit.toFile());
+      if (!synthesizer.loadAllInstruments(soundbank)) {
+        throw new IOException(
+          String.format("The synthesizer rejected the soundbank %s", kit));
+      }
+      final var loadNanos = System.nanoTime() - timeThen;
+      final var retained = usedHeap() - heapThen;
+
+      try (var receiver = synthesizer.getReceiver()) {
+        for (final var event : events) {
+          receiver.send(event.message(), event.timeMicroseconds());
+        }
+      }
+
+      final var frameSize =
+        FORMAT.getFrameSize();
+      final var bytes =
+        (long) (RENDER_SECONDS * FORMAT.getFrameRate()) * frameSize;
+      final var buffer =
+        new byte[4096 * frameSize];
+
+      final var renderThen = System.nanoTime();
+      var remaining = bytes;
+      while (remaining > 0L) {
+        final var count =
+          stream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (count == -1) {
+          throw new IOException("The synthesizer stopped rendering");
+        }
+        remaining -= count;
+      }
+      final var renderSeconds = (System.nanoTime() - renderThen) / 1.0e9;
+
+      return new Result(
+        loadNanos,
+        retained,
+        renderSeconds / RENDER_SECONDS
+      );
+    } finally {
+      synthesizer.close();
+    }
+  }
+
+  /**
+   * Open the synthesizer so that it renders into a stream rather than to an
+   * audio device.
+   */
+
+  private static AudioInputStream openStream(
+    final Synthesizer synthesizer)
+    throws Exception
+  {
+    try {
+      final var method =
+        Class.forName("com.sun.media.sound.AudioSynthesizer")
+          .getMethod("openStream", AudioFormat.class, Map.class);
+      return (AudioInputStream) method.invoke(synthesizer, FORMAT, Map.of());
+    } catch (final IllegalAccessException e) {
+      throw new IllegalStateException(
+        "The JVM must be started with "
+          + "--add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED",
+        e
+      );
+    } catch (final InvocationTargetException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private static long usedHeap()
+  {
+    final var runtime = Runtime.getRuntime();
+    for (var index = 0; index < 4; ++index) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -16,71 +16,54 @@
 
 package com.io7m.music.kit.calais.generator;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.TreeMap;
 
 public final class CalBassDrumConversion
 {
-  private static final Logger LOG =
-    LoggerFactory.getLogger(CalBassDrumConversion.class);
-
   private CalBassDrumConversion()
   {
 
   }
 
-  public static CalBassDrum convertFLACs(
+  /**
+   * Plan the conversion of the given FLAC files to WAV files in the given
+   * directory, without converting them.
+   *
+   * @param input           The FLAC files
+   * @param outputDirectory The output directory
+   * @param jobs            The list to which the conversions are added
+   *
+   * @return The WAV files that the conversions will produce
+   */
+
+  public static CalBassDrum planConversions(
     final CalBassDrum input,
-    final Path outputDirectory)
-    throws IOException
+    final Path outputDirectory,
+    final List<CalConversionJob> jobs)
   {
     final var bdOutput =
       new TreeMap<Integer,Path>();
 
-    try {
-      input.byVelocity().forEach((velocity, path) -> {
-        try {
-          convert(bdOutput, velocity, path, outputDirectory);
-        } catch (final IOException e) {
-          throw new UncheckedIOException(e);
-        }
-      });
-    } catch (final UncheckedIOException e) {
-      throw e.getCause();
-    }
+    input.byVelocity().forEach((velocity, path) -> {
+      convert(bdOutput, jobs, velocity, path, outputDirectory);
+    });
 
     return new CalBassDrum(bdOutput);
   }
 
   private static void convert(
     final TreeMap<Integer,Path> bdOutput,
+    final List<CalConversionJob> jobs,
     final Integer velocity,
     final Path path,
     final Path outputDirectory)
-    throws IOException
   {
     final var outputFile =
       outputDirectory.resolve(String.format("%02d.wav", velocity));
 
-    Files.createDirectories(outputDirectory);
-
-    LOG.info("write {}", outputFile);
-
-    try (var stream = CalFLAC.readAs16(path)) {
-      AudioSystem.write(stream, AudioFileFormat.Type.WAVE, outputFile.toFile());
-    } catch (final UnsupportedAudioFileException e) {
-      throw new IOException(e);
-    }
-
+    jobs.add(new CalConversionJob(path, outputFile));
     bdOutput.put(velocity, outputFile);
   }
 }
@@ -0,0 +1,610 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * A build plan: a directed acyclic graph of steps, such as the conversion
+ * and decoding of each sample, in which each step runs as soon as the steps
+ * it depends on have completed.
+ *
+ * <p>Each node has a weight that estimates the work it performs. Of the
+ * nodes that are ready to run, the node with the heaviest chain of work
+ * from its start to the end of the build runs first, so that the longest
+ * chains are started early and do not end up running alone at the end.
+ * Each node also estimates its peak memory, which is evaluated when the
+ * node is ready to run, and a node only starts once its estimate fits
+ * within the memory budget.</p>
+ *
+ * <p>Once every node has completed, the critical path is logged: the chain
+ * of nodes, each the last of its node's dependencies to complete, that ends
+ * with the last node to complete. The critical path identifies the samples
+ * and stages that limit the build time.</p>
+ *
+ * <p>A graph is executed at most once. Nodes must be added after the nodes
+ * they depend on, so the order in which nodes are added is a topological
+ * order.</p>
+ */
+
+final class CalBuildGraph
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalBuildGraph.class);
+
+  private final List<Node> nodes;
+  private final PriorityQueue<Node> ready;
+  private final List<Future<?>> futures;
+  private final CompletableFuture<Void> done;
+  private final AtomicInteger remaining;
+  private final Set<Thread> running;
+  private long timeStart;
+
+  /**
+   * The work performed by a node.
+   */
+
+  @FunctionalInterface
+  interface ActionType
+  {
+    /**
+     * Perform the work.
+     *
+     * @param input The contents of the node's input file, if the file was
+     *              read ahead
+     *
+     * @throws IOException On errors
+     */
+
+    void execute(Optional<ByteBuffer> input)
+      throws IOException;
+  }
+
+  /**
+   * A node in the graph.
+   */
+
+  static final class Node
+  {
+    private final int index;
+    private final String stage;
+    private final String name;
+    private final long weight;
+    private final CalConversions.CostType<Node> memory;
+    private final Optional<Path> input;
+    private final ActionType action;
+    private final List<Node> dependencies;
+    private final List<Node> successors;
+    private final AtomicInteger waiting;
+    private long rank;
+    private long timeReady;
+    private long timeStarted;
+    private long timeFinished;
+
+    private Node(
+      final int inIndex,
+      final String inStage,
+      final String inName,
+      final long inWeight,
+      final CalConversions.CostType<Node> inMemory,
+      final Optional<Path> inInput,
+      final ActionType inAction,
+      final List<Node> inDependencies)
+    {
+      this.index =
+        inIndex;
+      this.stage =
+        Objects.requireNonNull(inStage, "stage");
+      this.name =
+        Objects.requireNonNull(inName, "name");
+      this.weight =
+        Math.max(0L, inWeight);
+      this.memory =
+        Objects.requireNonNull(inMemory, "memory");
+      this.input =
+        Objects.requireNonNull(inInput, "input");
+      this.action =
+        Objects.requireNonNull(inAction, "action");
+      this.dependencies =
+        List.copyOf(inDependencies);
+      this.successors =
+        new ArrayList<>();
+      this.waiting =
+        new AtomicInteger(this.dependencies.size());
+    }
+
+    /**
+     * @return The stage of the build that the node belongs to
+     */
+
+    String stage()
+    {
+      return this.stage;
+    }
+
+    /**
+     * @return The name of the item that the node works on
+     */
+
+    String name()
+    {
+      return this.name;
+    }
+
+    /**
+     * @return An estimate of the work the node performs
+     */
+
+    long weight()
+    {
+      return this.weight;
+    }
+
+    /**
+     * @return The file that the node reads, which may be read ahead
+     */
+
+    Optional<Path> input()
+    {
+      return this.input;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%s %s", this.stage, this.name);
+    }
+  }
+
+  /**
+   * Create an empty graph.
+   */
+
+  CalBuildGraph()
+  {
+    this.nodes =
+      new ArrayList<>();
+    this.ready =
+      new PriorityQueue<>(
+        Comparator.comparingLong((Node node) -> node.rank)
+          .reversed()
+          .thenComparingInt(node -> node.index)
+      );
+    this.futures =
+      new ArrayList<>();
+    this.done =
+      new CompletableFuture<>();
+    this.remaining =
+      new AtomicInteger(0);
+    this.running =
+      new HashSet<>();
+  }
+
+  /**
+   * Add a node to the graph.
+   *
+   * @param stage        The stage of the build that the node belongs to
+   * @param name         The name of the item that the node works on
+   * @param weight       An estimate of the work the node performs, in any
+   *                     unit that is used consistently within the graph
+   * @param memory       An estimate of the node's peak memory use in bytes,
+   *                     evaluated when the node is ready to run
+   * @param input        The file that the node reads, which may be read
+   *                     ahead
+   * @param action       The work performed by the node
+   * @param dependencies The nodes that must complete before this node runs
+   *
+   * @return The node
+   */
+
+  Node add(
+    final String stage,
+    final String name,
+    final long weight,
+    final CalConversions.CostType<Node> memory,
+    final Optional<Path> input,
+    final ActionType action,
+    final List<Node> dependencies)
+  {
+    for (final var dependency : dependencies) {
+      if (dependency.index >= this.nodes.size()
+          || this.nodes.get(dependency.index) != dependency) {
+        throw new IllegalArgumentException(
+          String.format("Dependency %s is not in this graph", dependency)
+        );
+      }
+    }
+
+    final var node =
+      new Node(
+        this.nodes.size(),
+        stage,
+        name,
+        weight,
+        memory,
+        input,
+        action,
+        dependencies
+      );
+    for (final var dependency : node.dependencies) {
+      dependency.successors.add(node);
+    }
+    this.nodes.add(node);
+    return node;
+  }
+
+  /**
+   * @return The number of nodes in the graph
+   */
+
+  int size()
+  {
+    return this.nodes.size();
+  }
+
+  /**
+   * Compute the rank of every node, which is the weight of the heaviest
+   * chain of nodes from the node to the end of the build, and return the
+   * nodes in the order in which they would run on a single thread.
+   *
+   * @param priorities A source of priorities that replace the ranks, used to
+   *                   perturb the order of execution, or nothing
+   *
+   * @return The nodes in priority order
+   */
+
+  List<Node> rank(
+    final Optional<LongSupplier> priorities)
+  {
+    for (var index = this.nodes.size() - 1; index >= 0; --index) {
+      final var node = this.nodes.get(index);
+      var heaviest = 0L;
+      for (final var successor : node.successors) {
+        heaviest = Math.max(heaviest, successor.rank);
+      }
+      node.rank = node.weight + heaviest;
+    }
+
+    if (priorities.isPresent()) {
+      for (final var node : this.nodes) {
+        node.rank = priorities.get().getAsLong();
+      }
+    }
+
+    final var order = new ArrayList<Node>(this.nodes.size());
+    final var queue = new PriorityQueue<Node>(this.ready.comparator());
+    final var waiting = new int[this.nodes.size()];
+    for (final var node : this.nodes) {
+      waiting[node.index] = node.dependencies.size();
+      if (waiting[node.index] == 0) {
+        queue.add(node);
+      }
+    }
+    while (!queue.isEmpty()) {
+      final var node = queue.poll();
+      order.add(node);
+      for (final var successor : node.successors) {
+        if (--waiting[successor.index] == 0) {
+          queue.add(successor);
+        }
+      }
+    }
+    return List.copyOf(order);
+  }
+
+  /**
+   * Execute every node, waiting for all of them to complete. If any node
+   * fails, the nodes that have not yet started are cancelled, the threads
+   * running nodes are interrupted, and the failure is raised once every
+   * running node has returned, so that the caller may safely release any
+   * resources that the nodes use. A node that is waiting for the memory
+   * budget when the graph fails does not run. The nodes must have been
+   * ranked with {@link #rank(Optional)}.
+   *
+   * @param executor   The executor on which nodes run
+   * @param budget     The memory budget
+   * @param prefetcher The prefetcher holding the input files read ahead
+   * @param delays     A source of delays applied before each node, used to
+   *                   perturb the order of completion
+   *
+   * @throws IOException On errors
+   */
+
+  void execute(
+    final ExecutorService executor,
+    final CalMemoryBudget budget,
+    final CalPrefetcher prefetcher,
+    final LongSupplier delays)
+    throws IOException
+  {
+    this.timeStart = System.nanoTime();
+    this.remaining.set(this.nodes.size());
+    if (this.nodes.isEmpty()) {
+      return;
+    }
+
+    try {
+      for (final var node : this.nodes) {
+        if (node.dependencies.isEmpty()) {
+          this.schedule(node, executor, budget, prefetcher, delays);
+        }
+      }
+
+      this.done.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted during the build");
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof final IOException x) {
+        throw x;
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      this.done.cancel(false);
+      this.cancelAndAwait();
+    }
+
+    this.logCriticalPath();
+  }
+
+  private void schedule(
+    final Node node,
+    final ExecutorService executor,
+    final CalMemoryBudget budget,
+    final CalPrefetcher prefetcher,
+    final LongSupplier delays)
+  {
+    node.timeReady = System.nanoTime();
+    synchronized (this.ready) {
+      this.ready.add(node);
+    }
+
+    final var delay = delays.getAsLong();
+    synchronized (this.futures) {
+      if (this.done.isDone()) {
+        return;
+      }
+      this.futures.add(executor.submit(() -> {
+        if (!this.enter()) {
+          return;
+        }
+        try {
+          this.runNext(executor, budget, prefetcher, delays, delay);
+        } finally {
+          this.leave();
+        }
+      }));
+    }
+  }
+
+  private boolean enter()
+  {
+    synchronized (this.futures) {
+      if (this.done.isDone()) {
+        return false;
+      }
+      this.running.add(Thread.currentThread());
+      return true;
+    }
+  }
+
+  private void leave()
+  {
+    synchronized (this.futures) {
+      this.running.remove(Thread.currentThread());
+
+      /*
+       * The thread belongs to the executor, and may go on to run tasks of
+       * other builds, so any interruption aimed at this graph's task must
+       * not outlive it.
+       */
+
+      if (this.done.isCompletedExceptionally()) {
+        Thread.interrupted();
+      }
+      this.futures.notifyAll();
+    }
+  }
+
+  /**
+   * Cancel the tasks that have not started, interrupt the threads running
+   * tasks, and wait for the running tasks to return. Cancelling a task does
+   * not interrupt it on every executor (a fork/join pool ignores the
+   * request), so the threads are interrupted directly. The graph must
+   * already be done, so that no further tasks start.
+   */
+
+  private void cancelAndAwait()
+  {
+    var interrupted = false;
+    synchronized (this.futures) {
+      for (final var future : this.futures) {
+        future.cancel(true);
+      }
+      for (final var thread : this.running) {
+        thread.interrupt();
+      }
+      while (!this.running.isEmpty()) {
+        try {
+          this.futures.wait();
+        } catch (final InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Run the highest priority node that is ready. One task is submitted for
+   * each node that becomes ready, but a task runs whichever ready node has
+   * the highest priority when the task starts, rather than the node whose
+   * readiness caused it to be submitted.
+   */
+
+  private void runNext(
+    final ExecutorService executor,
+    final CalMemoryBudget budget,
+    final CalPrefetcher prefetcher,
+    final LongSupplier delays,
+    final long delay)
+  {
+    if (this.done.isDone()) {
+      return;
+    }
+
+    final Node node;
+    synchronized (this.ready) {
+      node = this.ready.poll();
+    }
+    if (node == null) {
+      return;
+    }
+
+    try {
+      final var granted = budget.acquire(node.memory.estimate(node));
+      try {
+        if (this.done.isDone()) {
+          return;
+        }
+        if (delay > 0L) {
+          Thread.sleep(delay);
+        }
+        node.timeStarted = System.nanoTime();
+        if (node.input.isPresent()) {
+          try (var prefetched = prefetcher.take(node.input.get())) {
+            node.action.execute(prefetched.contents());
+          }
+        } else {
+          node.action.execute(Optional.empty());
+        }
+        node.timeFinished = System.nanoTime();
+      } finally {
+        budget.release(granted);
+      }
+    } catch (final InterruptedException | InterruptedIOException e) {
+      this.done.completeExceptionally(
+        new InterruptedIOException("Interrupted during the build"));
+      return;
+    } catch (final Exception e) {
+      this.done.completeExceptionally(
+        new IOException(
+          String.format("Failed to %s %s", node.stage, node.name), e)
+      );
+      return;
+    } catch (final Error e) {
+      this.done.completeExceptionally(e);
+      throw e;
+    }
+
+    for (final var successor : node.successors) {
+      if (successor.waiting.decrementAndGet() == 0) {
+        this.schedule(successor, executor, budget, prefetcher, delays);
+      }
+    }
+    if (this.remaining.decrementAndGet() == 0) {
+      this.done.complete(null);
+    }
+  }
+
+  private void logCriticalPath()
+  {
+    final var last =
+      Collections.max(
+        this.nodes,
+        Comparator.comparingLong(node -> node.timeFinished)
+      );
+
+    final var path = new ArrayList<Node>();
+    for (var node = last; node != null; ) {
+      path.add(node);
+      node = node.dependencies.stream()
+        .max(Comparator.comparingLong(dependency -> dependency.timeFinished))
+        .orElse(null);
+    }
+    Collections.reverse(path);
+
+    final var byStage = new LinkedHashMap<String, Long>();
+    for (final var node : path) {
+      byStage.merge(
+        node.stage,
+        Long.valueOf(node.timeFinished - node.timeStarted),
+        Long::sum
+      );
+    }
+
+    LOG.info(
+      "critical path: {} ms, {} of {} nodes ({})",
+      Long.valueOf(millis(last.timeFinished - this.timeStart)),
+      Integer.valueOf(path.size()),
+      Integer.valueOf(this.nodes.size()),
+      String.join(
+        ", ",
+        byStage.entrySet()
+          .stream()
+          .map(entry -> {
+            return String.format(
+              "%s %d ms",
+              entry.getKey(),
+              Long.valueOf(millis(entry.getValue().longValue())));
+          })
+          .toList()
+      )
+    );
+
+    for (final var node : path) {
+      LOG.info(
+        "  {} {}: waited {} ms, ran {} ms",
+        node.stage,
+        node.name,
+        Long.valueOf(millis(node.timeStarted - node.timeReady)),
+        Long.valueOf(millis(node.timeFinished - node.timeStarted))
+      );
+    }
+  }
+
+  private static long millis(
+    final long nanos)
+  {
+    return nanos / 1_000_000L;
+  }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * A prediction of the output and resource use of a build, computed without
+ * decoding any audio: the source files are discovered, and only the
+ * STREAMINFO block of each FLAC file is read.
+ *
+ * <p>The size of the {@code sdta} chunk and the sample and zone counts are
+ * exact. The peak heap is an estimate from the same per-task memory
+ * estimates used by the memory budget, and the build time is a rough
+ * estimate from nominal per-thread throughputs.</p>
+ *
+ * @param samples             The number of stereo samples
+ * @param sampleHeaders       The number of SF2 sample headers, one per
+ *                            channel of each sample
+ * @param instruments         The number of SF2 instruments
+ * @param instrumentZones     The number of instrument zones, including
+ *                            global zones
+ * @param presets             The number of SF2 presets
+ * @param presetZones         The number of preset zones
+ * @param sdtaSize            The size in bytes of the {@code sdta} chunk,
+ *                            including its header
+ * @param sourceSize          The total size in bytes of the source files
+ * @param conversions         The number of conversions
+ * @param conversionsReused   The number of conversions whose output is up to
+ *                            date and will be reused
+ * @param retainedHeap        The heap holding decoded samples until the kit
+ *                            is written
+ * @param retainedOffHeap     The off-heap memory holding decoded samples
+ *                            until the kit is written
+ * @param transientHeap       The heap used by concurrently executing
+ *                            conversion and decoding tasks
+ * @param prefetchHeap        The heap holding source files read ahead
+ * @param estimatedBuildTime  The estimated build time
+ */
+
+public record CalBuildPlan(
+  int samples,
+  int sampleHeaders,
+  int instruments,
+  int instrumentZones,
+  int presets,
+  int presetZones,
+  long sdtaSize,
+  long sourceSize,
+  int conversions,
+  int conversionsReused,
+  long retainedHeap,
+  long retainedOffHeap,
+  long transientHeap,
+  long prefetchHeap,
+  Duration estimatedBuildTime)
+{
+  /**
+   * The number of zero sample points that follow each sample in the
+   * {@code smpl} chunk, as required by the SF2 specification.
+   */
+
+  private static final long SAMPLE_PADDING_POINTS = 46L;
+
+  /*
+   * Nominal per-thread throughputs in bytes of 16-bit sample data per
+   * second, used only for the rough build time estimate.
+   */
+
+  private static final double CONVERT_BYTES_PER_SECOND = 100.0e6;
+  private static final double DECODE_BYTES_PER_SECOND = 150.0e6;
+  private static final double WRITE_BYTES_PER_SECOND = 200.0e6;
+
+  public CalBuildPlan
+  {
+    Objects.requireNonNull(estimatedBuildTime, "estimatedBuildTime");
+  }
+
+  /**
+   * @return The estimated peak heap use
+   */
+
+  public long peakHeap()
+  {
+    return this.retainedHeap + this.transientHeap + this.prefetchHeap;
+  }
+
+  /**
+   * Plan the build described by the given configuration.
+   *
+   * @param configuration The configuration
+   *
+   * @return The plan
+   *
+   * @throws IOException On errors
+   */
+
+  public static CalBuildPlan create(
+    final CalaisConfiguration configuration)
+    throws IOException
+  {
+    final var jobs = new ArrayList<CalConversionJob>();
+    final var kit = Calais.discover(configuration, jobs);
+    final var specs =
+      CalSamplePlan.create(
+        kit.snare(),
+        kit.bassDrum(),
+        kit.hiHats(),
+        kit.crash()
+      ).samples();
+
+    final var sources = new HashMap<Path, CalConversionJob>(jobs.size());
+    for (final var job : jobs) {
+      sources.put(job.target(), job);
+    }
+
+    var sampleData = 0L;
+    var sourceSize = 0L;
+    var reused = 0;
+    var retained = 0L;
+    var retainedOffHeap = 0L;
+    var convertSeconds = 0.0;
+    var decodeSeconds = 0.0;
+    var longestSeconds = 0.0;
+    final var taskCosts = new ArrayList<Long>();
+    final var sourceSizes = new ArrayList<Long>();
+    final var families = EnumSet.noneOf(CalDrumFamily.class);
+
+    for (final var spec : specs) {
+      final var job = sources.get(spec.file());
+      final var info = CalFLACStreamInfo.read(job.source());
+      final var frames = info.totalSamples();
+      final var points = frames * info.channels();
+      final var bytes16 = points * 2L;
+
+      families.add(spec.family());
+      sampleData += 2L * (frames + SAMPLE_PADDING_POINTS) * 2L;
+
+      final var size = Files.size(job.source());
+      sourceSize += size;
+
+      final var isReused =
+        configuration.reuseConvertedSamples()
+          && isUpToDate(job.source(), job.target());
+
+      var chainSeconds = bytes16 / DECODE_BYTES_PER_SECOND;
+      if (isReused) {
+        ++reused;
+      } else {
+        taskCosts.add(Long.valueOf(
+          CalConversions.conversionCost(
+            info,
+            size,
+            configuration.splitDecodeThreshold())
+        ));
+        sourceSizes.add(Long.valueOf(size));
+        chainSeconds += bytes16 / CONVERT_BYTES_PER_SECOND;
+        convertSeconds += bytes16 / CONVERT_BYTES_PER_SECOND;
+      }
+      decodeSeconds += bytes16 / DECODE_BYTES_PER_SECOND;
+      longestSeconds = Math.max(longestSeconds, chainSeconds);
+
+      taskCosts.add(Long.valueOf(points * 2L));
+      switch (configuration.sampleStore()) {
+        case HEAP, SPILL -> retained += bytes16;
+        case OFF_HEAP -> retainedOffHeap += bytes16;
+      }
+    }
+
+    /*
+     * The spill store holds no more than its limit on the heap.
+     */
+
+    if (configuration.sampleStore() == CalSampleStore.SPILL) {
+      retained = Math.min(retained, configuration.sampleMemory());
+    }
+
+    /*
+     * The LIST chunk header, the "sdta" form type, and the smpl chunk
+     * header precede the sample data.
+     */
+
+    final var sdtaSize = 8L + 4L + 8L + sampleData;
+
+    /*
+     * Every sample has a left and a right zone in its instrument, and each
+     * instrument has a global zone. The combined layout has a single
+     * instrument and preset; the per-drum layout has an instrument and a
+     * preset per family, plus a kit preset with a zone per family.
+     */
+
+    final int instruments;
+    final int presets;
+    final int presetZones;
+    switch (configuration.layout()) {
+      case COMBINED -> {
+        instruments = 1;
+        presets = 1;
+        presetZones = 1;
+      }
+      case PER_DRUM -> {
+        instruments = families.size();
+        presets = 1 + families.size();
+        presetZones = 2 * families.size();
+      }
+      default -> {
+        throw new IllegalStateException();
+      }
+    }
+
+    /*
+     * At most one task per thread runs at once, and the memory budget
+     * bounds the total estimate of the running tasks, although a single
+     * task larger than the budget may still run alone.
+     */
+
+    taskCosts.sort(Collections.reverseOrder());
+    var transientHeap = 0L;
+    for (var index = 0;
+         index < Math.min(configuration.threads(), taskCosts.size());
+         ++index) {
+      transientHeap += taskCosts.get(index).longValue();
+    }
+    if (!taskCosts.isEmpty()) {
+      transientHeap =
+        Math.min(
+          transientHeap,
+          Math.max(configuration.memoryBudget(), taskCosts.get(0).longValue())
+        );
+    }
+
+    sourceSizes.sort(Collections.reverseOrder());
+    var prefetchHeap = 0L;
+    for (var index = 0;
+         index < Math.min(configuration.prefetchDepth(), sourceSizes.size());
+         ++index) {
+      prefetchHeap += sourceSizes.get(index).longValue();
+    }
+    prefetchHeap = Math.min(prefetchHeap, configuration.prefetchMemory());
+
+    var seconds =
+      Math.max(
+        longestSeconds,
+        (convertSeconds + decodeSeconds) / configuration.threads()
+      );
+    seconds += sdtaSize / WRITE_BYTES_PER_SECOND;
+    if (configuration.verifyOutput()) {
+      seconds += sdtaSize / WRITE_BYTES_PER_SECOND;
+    }
+
+    return new CalBuildPlan(
+      specs.size(),
+      specs.size() * 2,
+      instruments,
+      instruments + specs.size() * 2,
+      presets,
+      presetZones,
+      sdtaSize,
+      sourceSize,
+      jobs.size(),
+      reused,
+      retained,
+      retainedOffHeap,
+      transientHeap,
+      prefetchHeap,
+      Duration.ofMillis((long) Math.ceil(seconds * 1000.0))
+    );
+  }
+
+  private static boolean isUpToDate(
+    final Path source,
+    final Path target)
+    throws IOException
+  {
+    if (!Files.isRegularFile(target)) {
+      return false;
+    }
+    return Files.getLastModifiedTime(target)
+      .compareTo(Files.getLastModifiedTime(source)) >= 0;
+  }
+
+  /**
+   * @return The plan as human-readable lines
+   */
+
+  public List<String> show()
+  {
+    return List.of(
+      String.format(
+        "samples                %d (%d sample headers)",
+        Integer.valueOf(this.samples),
+        Integer.valueOf(this.sampleHeaders)),
+      String.format(
+        "instruments            %d (%d zones)",
+        Integer.valueOf(this.instruments),
+        Integer.valueOf(this.instrumentZones)),
+      String.format(
+        "presets                %d (%d zones)",
+        Integer.valueOf(this.presets),
+        Integer.valueOf(this.presetZones)),
+      String.format(
+        "sdta size              %d bytes (%s)",
+        Long.valueOf(this.sdtaSize),
+        size(this.sdtaSize)),
+      String.format(
+        "source size            %s",
+        size(this.sourceSize)),
+      String.format(
+        "conversions            %d (%d up to date)",
+        Integer.valueOf(this.conversions),
+        Integer.valueOf(this.conversionsReused)),
+      String.format(
+        "estimated peak heap    %s",
+        size(this.peakHeap())),
+      String.format(
+        "  decoded samples      %s",
+        size(this.retainedHeap)),
+      String.format(
+        "  running tasks        %s",
+        size(this.transientHeap)),
+      String.format(
+        "  read ahead           %s",
+        size(this.prefetchHeap)),
+      String.format(
+        "off-heap samples       %s",
+        size(this.retainedOffHeap)),
+      String.format(
+        "estimated build time   %d s (rough)",
+        Long.valueOf(Math.max(1L, this.estimatedBuildTime.toSeconds())))
+    );
+  }
+
+  private static String size(
+    final long bytes)
+  {
+    return String.format(
+      Locale.ROOT,
+      "%.1f MiB",
+      Double.valueOf(bytes / (1024.0 * 1024.0))
+    );
+  }
+}
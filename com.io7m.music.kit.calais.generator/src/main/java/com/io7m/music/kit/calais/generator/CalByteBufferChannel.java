@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+
+/**
+ * A readable channel over the remaining bytes of a buffer, used to decode
+ * data that is already in memory.
+ */
+
+final class CalByteBufferChannel implements ReadableByteChannel
+{
+  private final ByteBuffer source;
+  private boolean open;
+
+  CalByteBufferChannel(
+    final ByteBuffer inSource)
+  {
+    this.source =
+      Objects.requireNonNull(inSource, "source").duplicate();
+    this.open =
+      true;
+  }
+
+  @Override
+  public int read(
+    final ByteBuffer target)
+    throws ClosedChannelException
+  {
+    if (!this.open) {
+      throw new ClosedChannelException();
+    }
+    if (!this.source.hasRemaining()) {
+      return -1;
+    }
+
+    final var count = Math.min(target.remaining(), this.source.remaining());
+    final var position = this.source.position();
+    target.put(this.source.slice(position, count));
+    this.source.position(position + count);
+    return count;
+  }
+
+  @Override
+  public boolean isOpen()
+  {
+    return this.open;
+  }
+
+  @Override
+  public void close()
+  {
+    this.open = false;
+  }
+}
@@ -16,74 +16,66 @@
 
 package com.io7m.music.kit.calais.generator;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.EnumMap;
-
-import static com.io7m.music.kit.calais.generator.CalSnareTautnessKind.SNARES_TIGHT;
+import java.util.List;
 
 public final class CalChinaHiHatConversion
 {
-  private static final Logger LOG =
-    LoggerFactory.getLogger(CalChinaHiHatConversion.class);
-
   private CalChinaHiHatConversion()
   {
 
   }
 
-  public static CalChinaHiHat convertFLACs(
+  /**
+   * Plan the conversion of the given FLAC files to WAV files in the given
+   * directory, without converting them.
+   *
+   * @param hiHatInput      The FLAC files
+   * @param outputDirectory The output directory
+   * @param jobs            The list to which the conversions are added
+   *
+   * @return The WAV files that the conversions will produce
+   */
+
+  public static CalChinaHiHat planConversions(
     final CalChinaHiHat hiHatInput,
-    final Path outputDirectory)
-    throws IOException
+    final Path outputDirectory,
+    final List<CalConversionJob> jobs)
   {
     final var hiHatOutput =
       new EnumMap<CalChinaHiHatOpennessKind, CalChinaHiHatOpennessFiles>(
         CalChinaHiHatOpennessKind.class
       );
 
-    try {
-      final var hh = hiHatInput.hiHats();
-      hh.forEach((openness, opennessFiles) -> {
-        opennessFiles.filesByKind().forEach((strike, strikeFiles) -> {
-          strikeFiles.filesByVelocity().forEach((velocity, path) -> {
-            try {
-              convert(
-                hiHatOutput,
-                openness,
-                strike,
-                velocity,
-                path,
-                outputDirectory
-              );
-            } catch (final IOException e) {
-              throw new UncheckedIOException(e);
-            }
-          });
+    final var hh = hiHatInput.hiHats();
+    hh.forEach((openness, opennessFiles) -> {
+      opennessFiles.filesByKind().forEach((strike, strikeFiles) -> {
+        strikeFiles.filesByVelocity().forEach((velocity, path) -> {
+          convert(
+            hiHatOutput,
+            jobs,
+            openness,
+            strike,
+            velocity,
+            path,
+            outputDirectory
+          );
         });
       });
-    } catch (final UncheckedIOException e) {
-      throw e.getCause();
-    }
+    });
+
     return new CalChinaHiHat(hiHatOutput);
   }
 
   private static void convert(
     final EnumMap<CalChinaHiHatOpennessKind, CalChinaHiHatOpennessFiles> hiHatOutput,
+    final List<CalConversionJob> jobs,
     final CalChinaHiHatOpennessKind openness,
     final CalChinaHiHatStrikeKind strike,
     final Integer velocity,
     final Path path,
     final Path outputDirectory)
-    throws IOException
   {
     final var outputFileDirectory =
       outputDirectory.resolve(openness.name())
@@ -92,15 +84,7 @@ public final class CalChinaHiHatConversion
       outputFileDirectory.resolve(
         String.format("%02d.wav", velocity));
 
-    Files.createDirectories(outputFileDirectory);
-
-    LOG.info("write {}", outputFile);
-
-    try (var stream = CalFLAC.readAs16(path)) {
-      AudioSystem.write(stream, AudioFileFormat.Type.WAVE, outputFile.toFile());
-    } catch (final UnsupportedAudioFileException e) {
-      throw new IOException(e);
-    }
+    jobs.add(new CalConversionJob(path, outputFile));
 
     final var opennessFiles =
       hiHatOutput.computeIfAbsent(openness, k -> new CalChinaHiHatOpennessFiles());
@@ -0,0 +1,544 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * A bounded work-stealing pool of threads that converts FLAC files to 16-bit
+ * WAV files, and executes the other nodes of a build graph such as the
+ * decoding of each sample. The pool is owned by the caller and must be
+ * closed, as the generator may be executed inside long-lived JVMs such as
+ * Maven.
+ */
+
+public final class CalConversions implements AutoCloseable
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalConversions.class);
+
+  private final ForkJoinPool executor;
+  private final boolean reuseConvertedSamples;
+  private final Optional<SplittableRandom> perturbation;
+  private final CalMemoryBudget budget;
+  private final ForkJoinPool rangeDecoders;
+  private final long splitDecodeThreshold;
+  private final CalFLACDecoding decoding;
+  private final int prefetchDepth;
+  private final long prefetchMemory;
+  private final Optional<CalPCMCache> cache;
+
+  private CalConversions(
+    final ForkJoinPool inExecutor,
+    final boolean inReuseConvertedSamples,
+    final Optional<SplittableRandom> inPerturbation,
+    final CalMemoryBudget inBudget,
+    final ForkJoinPool inRangeDecoders,
+    final long inSplitDecodeThreshold,
+    final CalFLACDecoding inDecoding,
+    final int inPrefetchDepth,
+    final long inPrefetchMemory,
+    final Optional<CalPCMCache> inCache)
+  {
+    this.cache =
+      Objects.requireNonNull(inCache, "cache");
+    this.prefetchDepth =
+      inPrefetchDepth;
+    this.prefetchMemory =
+      inPrefetchMemory;
+    this.decoding =
+      Objects.requireNonNull(inDecoding, "decoding");
+    this.rangeDecoders =
+      Objects.requireNonNull(inRangeDecoders, "rangeDecoders");
+    this.splitDecodeThreshold =
+      inSplitDecodeThreshold;
+    this.budget =
+      Objects.requireNonNull(inBudget, "budget");
+    this.executor =
+      Objects.requireNonNull(inExecutor, "executor");
+    this.reuseConvertedSamples =
+      inReuseConvertedSamples;
+    this.perturbation =
+      Objects.requireNonNull(inPerturbation, "perturbation");
+  }
+
+  /**
+   * Create a conversion pool.
+   *
+   * @param configuration The generator configuration
+   *
+   * @return A conversion pool
+   */
+
+  public static CalConversions create(
+    final CalaisConfiguration configuration)
+  {
+    return create(configuration, Optional.empty());
+  }
+
+  /**
+   * Create a conversion pool that submits tasks in a shuffled order and
+   * delays each task by a small random amount, so that tasks complete in an
+   * order that differs from run to run. This is used to check that the
+   * output does not depend on completion order.
+   *
+   * @param configuration The generator configuration
+   * @param seed          The seed for the shuffle and delays
+   *
+   * @return A conversion pool
+   */
+
+  static CalConversions createPerturbed(
+    final CalaisConfiguration configuration,
+    final long seed)
+  {
+    return create(configuration, Optional.of(new SplittableRandom(seed)));
+  }
+
+  private static CalConversions create(
+    final CalaisConfiguration configuration,
+    final Optional<SplittableRandom> perturbation)
+  {
+    final var threadIndex = new AtomicInteger(0);
+    final var executor =
+      new ForkJoinPool(
+        configuration.threads(),
+        pool -> {
+          final var thread =
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+          thread.setName(
+            String.format(
+              "com.io7m.music.kit.calais.conversion[%d]",
+              Integer.valueOf(threadIndex.incrementAndGet()))
+          );
+          thread.setDaemon(true);
+          return thread;
+        },
+        null,
+        false
+      );
+
+    return new CalConversions(
+      executor,
+      configuration.reuseConvertedSamples(),
+      perturbation,
+      new CalMemoryBudget(configuration.memoryBudget()),
+      new ForkJoinPool(configuration.threads()),
+      configuration.splitDecodeThreshold(),
+      configuration.flacDecoding(),
+      configuration.prefetchDepth(),
+      configuration.prefetchMemory(),
+      configuration.pcmCacheDirectory()
+        .map(directory -> {
+          return new CalPCMCache(directory, configuration.pcmCacheSize());
+        })
+    );
+  }
+
+  /**
+   * Add a node for each of the given conversions to the given graph.
+   *
+   * @param graph The graph
+   * @param jobs  The conversions
+   *
+   * @return The nodes, by the file that each conversion produces
+   *
+   * @throws IOException On errors
+   */
+
+  Map<Path, CalBuildGraph.Node> addConversions(
+    final CalBuildGraph graph,
+    final List<CalConversionJob> jobs)
+    throws IOException
+  {
+    /*
+     * Only the source files of conversions that will not be reused are
+     * read ahead.
+     */
+
+    final var nodes = new HashMap<Path, CalBuildGraph.Node>(jobs.size());
+    for (final var job : jobs) {
+      final var reused =
+        this.reuseConvertedSamples && isUpToDate(job.source(), job.target());
+      final var cost =
+        reused ? 0L : this.conversionCost(job);
+      final var input =
+        reused ? Optional.<Path>empty() : Optional.of(job.source());
+
+      nodes.put(
+        job.target(),
+        graph.add(
+          "convert",
+          job.source().toString(),
+          cost,
+          node -> cost,
+          input,
+          contents -> this.convert(job, contents),
+          List.of()
+        )
+      );
+    }
+    return nodes;
+  }
+
+  private long conversionCost(
+    final CalConversionJob job)
+    throws IOException
+  {
+    return conversionCost(
+      CalFLACStreamInfo.read(job.source()),
+      Files.size(job.source()),
+      this.splitDecodeThreshold
+    );
+  }
+
+  /**
+   * Estimate the memory used by a conversion: a full copy of the source
+   * audio at its own sample size, plus the 16-bit converted copy. A file
+   * that may be decoded in ranges holds the decoded ranges and their
+   * joined copy at once, and so is charged twice its decoded size.
+   *
+   * @param info                 The STREAMINFO block of the source file
+   * @param size                 The size of the source file
+   * @param splitDecodeThreshold The minimum size of files that are split
+   *
+   * @return The estimated peak memory in bytes
+   */
+
+  static long conversionCost(
+    final CalFLACStreamInfo info,
+    final long size,
+    final long splitDecodeThreshold)
+  {
+    final var decoded =
+      CalFLACRangeDecoder.decodedSize(info);
+    final var copies =
+      CalFLACRangeDecoder.maySplit(size, info, splitDecodeThreshold) ? 2L : 1L;
+    return decoded * copies + info.totalSamples() * info.channels() * 2L;
+  }
+
+  /**
+   * An estimate of the peak memory used by a task applied to an item.
+   *
+   * @param <S> The type of items
+   */
+
+  @FunctionalInterface
+  interface CostType<S>
+  {
+    long estimate(S item)
+      throws IOException;
+  }
+
+  /**
+   * Execute every node of the given graph on this pool, waiting for all of
+   * them to complete. If any node fails, the remaining nodes are cancelled.
+   * The input files of the nodes are read ahead in the order in which the
+   * nodes are expected to run.
+   *
+   * @param graph The graph
+   *
+   * @throws IOException On errors
+   */
+
+  void executeGraph(
+    final CalBuildGraph graph)
+    throws IOException
+  {
+    final var order =
+      graph.rank(
+        this.perturbation.map(random -> {
+          return () -> random.nextLong();
+        })
+      );
+    final var inputs =
+      order.stream()
+        .flatMap(node -> node.input().stream())
+        .toList();
+
+    try (var prefetcher =
+           new CalPrefetcher(this.prefetchDepth, this.prefetchMemory)) {
+      prefetcher.start(inputs);
+      graph.execute(
+        this.executor,
+        this.budget,
+        prefetcher,
+        this::perturbationDelay
+      );
+    }
+
+    this.cache.ifPresent(CalPCMCache::finish);
+  }
+
+  private synchronized long perturbationDelay()
+  {
+    return this.perturbation
+      .map(random -> Long.valueOf(random.nextLong(3L)))
+      .orElse(Long.valueOf(0L))
+      .longValue();
+  }
+
+  private void convert(
+    final CalConversionJob job,
+    final Optional<ByteBuffer> contents)
+    throws IOException
+  {
+    final var source = job.source();
+    final var target = job.target();
+
+    if (this.reuseConvertedSamples && isUpToDate(source, target)) {
+      LOG.info("reuse {}", target);
+      ensureStatistics(target);
+      return;
+    }
+
+    Files.createDirectories(target.getParent());
+
+    LOG.info("write {}", target);
+
+    /*
+     * Write to a temporary file and then atomically replace the target, so
+     * that an interrupted conversion never leaves a truncated file that
+     * might later be mistaken for an up-to-date one. The sample statistics
+     * are accumulated as the converted data streams past.
+     */
+
+    final var targetTemporary =
+      target.resolveSibling(target.getFileName() + ".tmp");
+
+    final var statistics =
+      this.convertCached(source, contents, targetTemporary);
+
+    Files.move(targetTemporary, target, REPLACE_EXISTING, ATOMIC_MOVE);
+    statistics.store(CalSampleStatistics.fileFor(target));
+  }
+
+  /**
+   * Decode the given file to a WAV file, or copy its decoded data from the
+   * cache if there is one. Data that is decoded is stored in the cache as it
+   * is written.
+   */
+
+  private CalSampleStatistics convertCached(
+    final Path source,
+    final Optional<ByteBuffer> contents,
+    final Path target)
+    throws IOException
+  {
+    try {
+      if (this.cache.isEmpty()) {
+        return writeStream(this.readAs16(source, contents), target);
+      }
+
+      final var pcmCache = this.cache.get();
+      final var key = pcmCache.key(source, contents);
+      final var cached = pcmCache.find(key);
+      if (cached.isPresent()) {
+        try (var hit = cached.get()) {
+          return writeCached(hit, target);
+        }
+      }
+      return writeStream(
+        pcmCache.store(key, this.readAs16(source, contents)), target);
+    } catch (final UnsupportedAudioFileException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Write a stream of 16-bit data to a WAV file, accumulating the sample
+   * statistics as the data streams past.
+   */
+
+  private static CalSampleStatistics writeStream(
+    final AudioInputStream input,
+    final Path target)
+    throws IOException
+  {
+    try (var stream = input) {
+      final var format = stream.getFormat();
+      final var accumulator =
+        new CalSampleStatisticsAccumulator(format.getChannels());
+      final var analyzed =
+        new AudioInputStream(
+          new CalStatisticsInputStream(stream, accumulator),
+          format,
+          stream.getFrameLength()
+        );
+
+      CalWaveFile.write(analyzed, target);
+      return accumulator.finish(format.getSampleRate());
+    }
+  }
+
+  /**
+   * Copy cached 16-bit data to a WAV file. The data is already in the
+   * format of the WAV file, so it is transferred between the files without
+   * passing through the JVM, and is then read once, in place, to compute
+   * the sample statistics.
+   */
+
+  private static CalSampleStatistics writeCached(
+    final CalPCMCache.Hit hit,
+    final Path target)
+    throws IOException
+  {
+    final var format = hit.format();
+    CalWaveFile.transfer(
+      hit.channel(), hit.position(), format, hit.frames(), target);
+
+    final var accumulator =
+      new CalSampleStatisticsAccumulator(format.getChannels());
+    final var data =
+      hit.channel().map(READ_ONLY, hit.position(), hit.size());
+    final var buffer = new byte[65536];
+    while (data.hasRemaining()) {
+      final var count = Math.min(buffer.length, data.remaining());
+      data.get(buffer, 0, count);
+      accumulator.update(buffer, 0, count);
+    }
+    return accumulator.finish(format.getSampleRate());
+  }
+
+  /**
+   * Decode the given file, from its prefetched contents if there are any,
+   * splitting it into ranges that are decoded in parallel if it is large
+   * enough.
+   */
+
+  private AudioInputStream readAs16(
+    final Path source,
+    final Optional<ByteBuffer> contents)
+    throws IOException, UnsupportedAudioFileException
+  {
+    final var split =
+      CalFLACRangeDecoder.readAs16(
+        source,
+        contents,
+        this.rangeDecoders,
+        this.splitDecodeThreshold,
+        this.decoding
+      );
+    if (split.isPresent()) {
+      return split.get();
+    }
+    if (contents.isPresent()) {
+      return CalFLAC.readAs16(source, contents.get(), this.decoding);
+    }
+    return CalFLAC.readAs16(source, this.decoding);
+  }
+
+  /**
+   * Compute the statistics of a reused sample if they are missing or older
+   * than the sample, such as when the sample was converted by a version of
+   * the generator that did not record statistics.
+   */
+
+  private static void ensureStatistics(
+    final Path target)
+    throws IOException
+  {
+    final var statisticsFile = CalSampleStatistics.fileFor(target);
+    if (isUpToDate(target, statisticsFile)) {
+      return;
+    }
+
+    LOG.info("analyze {}", target);
+
+    try (var stream = AudioSystem.getAudioInputStream(target.toFile())) {
+      final var format = stream.getFormat();
+      if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())
+          || format.getSampleSizeInBits() != 16
+          || format.isBigEndian()) {
+        throw new IOException(
+          String.format("Unexpected sample format %s in %s", format, target)
+        );
+      }
+
+      final var accumulator =
+        new CalSampleStatisticsAccumulator(format.getChannels());
+      try (var analyzed = new CalStatisticsInputStream(stream, accumulator)) {
+        final var buffer = new byte[65536];
+        while (analyzed.read(buffer, 0, buffer.length) != -1) {
+          // Consumed by the accumulator
+        }
+      }
+      accumulator.finish(format.getSampleRate()).store(statisticsFile);
+    } catch (final UnsupportedAudioFileException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static boolean isUpToDate(
+    final Path source,
+    final Path target)
+    throws IOException
+  {
+    if (!Files.isRegularFile(target)) {
+      return false;
+    }
+
+    final var timeSource = Files.getLastModifiedTime(source);
+    final var timeTarget = Files.getLastModifiedTime(target);
+    return timeTarget.compareTo(timeSource) >= 0;
+  }
+
+  @Override
+  public void close()
+    throws InterruptedIOException
+  {
+    this.executor.shutdownNow();
+    this.rangeDecoders.shutdownNow();
+
+    try {
+      if (!this.executor.awaitTermination(30L, TimeUnit.SECONDS)) {
+        LOG.warn("conversion threads did not terminate");
+      }
+      if (!this.rangeDecoders.awaitTermination(30L, TimeUnit.SECONDS)) {
+        LOG.warn("range decoding threads did not terminate");
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted during shutdown");
+    }
+  }
+}
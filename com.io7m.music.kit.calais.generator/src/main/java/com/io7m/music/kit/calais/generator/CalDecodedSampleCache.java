@@ -0,0 +1,247 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A bounded store of decoded samples. The most recently used samples are
+ * held on the heap; once they occupy more than the capacity, the least
+ * recently used samples are appended to a raw 16-bit planar PCM file and
+ * dropped from the heap. Spilled samples are written to the SF2 file from
+ * memory-mapped regions of the spill file, so a kit larger than the heap
+ * is never decoded twice. The spill file is deleted when the store is
+ * closed.
+ */
+
+final class CalDecodedSampleCache implements AutoCloseable
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalDecodedSampleCache.class);
+
+  private final Path file;
+  private final long capacity;
+  private final LinkedHashMap<Entry, Entry> resident;
+  private FileChannel channel;
+  private long residentBytes;
+  private long spillEnd;
+  private long hits;
+  private long misses;
+  private long spills;
+
+  private CalDecodedSampleCache(
+    final Path inFile,
+    final long inCapacity)
+  {
+    this.file =
+      Objects.requireNonNull(inFile, "file");
+    this.capacity =
+      inCapacity;
+    this.resident =
+      new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Create a store. The spill file is only created once a sample is
+   * spilled.
+   *
+   * @param file     The spill file
+   * @param capacity The number of bytes of sample data held on the heap
+   *
+   * @return A new store
+   */
+
+  static CalDecodedSampleCache create(
+    final Path file,
+    final long capacity)
+  {
+    return new CalDecodedSampleCache(file, capacity);
+  }
+
+  private final class Entry implements CalDecodedSampleType
+  {
+    private final long frames;
+    private final double sampleRate;
+    private final long size;
+    private CalDecodedSampleHeap sample;
+    private long offset;
+
+    Entry(
+      final CalDecodedSampleHeap inSample)
+    {
+      this.sample =
+        Objects.requireNonNull(inSample, "sample");
+      this.frames =
+        inSample.frames();
+      this.sampleRate =
+        inSample.sampleRate();
+      this.size =
+        inSample.frames() * 2L * inSample.channels();
+    }
+
+    @Override
+    public long frames()
+    {
+      return this.frames;
+    }
+
+    @Override
+    public double sampleRate()
+    {
+      return this.sampleRate;
+    }
+
+    @Override
+    public void writeChannel(
+      final int channelIndex,
+      final SeekableByteChannel output)
+      throws IOException
+    {
+      final var cache = CalDecodedSampleCache.this;
+      final CalDecodedSampleHeap held;
+      final long channelOffset;
+      final FileChannel spill;
+
+      synchronized (cache) {
+        held = this.sample;
+        if (held != null) {
+          ++cache.hits;
+          cache.resident.get(this);
+        } else {
+          ++cache.misses;
+        }
+        channelOffset = this.offset + channelIndex * this.frames * 2L;
+        spill = cache.channel;
+      }
+
+      if (held != null) {
+        held.writeChannel(channelIndex, output);
+        return;
+      }
+
+      final var region =
+        spill.map(READ_ONLY, channelOffset, this.frames * 2L);
+      CalDecodedSampleHeap.writeFully(output, region);
+    }
+  }
+
+  /**
+   * Add a decoded sample to the store, spilling the least recently used
+   * samples if the capacity is exceeded.
+   *
+   * @param sample The sample
+   *
+   * @return The stored sample
+   *
+   * @throws IOException On errors
+   */
+
+  synchronized CalDecodedSampleType add(
+    final CalDecodedSampleHeap sample)
+    throws IOException
+  {
+    final var entry = new Entry(sample);
+    this.resident.put(entry, entry);
+    this.residentBytes += entry.size;
+
+    final var iterator = this.resident.keySet().iterator();
+    while (this.residentBytes > this.capacity && iterator.hasNext()) {
+      final var oldest = iterator.next();
+      this.spill(oldest);
+      iterator.remove();
+      this.residentBytes -= oldest.size;
+    }
+    return entry;
+  }
+
+  private void spill(
+    final Entry entry)
+    throws IOException
+  {
+    if (this.channel == null) {
+      Files.createDirectories(this.file.toAbsolutePath().getParent());
+      this.channel =
+        FileChannel.open(
+          this.file,
+          CREATE,
+          TRUNCATE_EXISTING,
+          READ,
+          WRITE,
+          DELETE_ON_CLOSE
+        );
+    }
+
+    this.channel.position(this.spillEnd);
+    for (var index = 0; index < entry.sample.channels(); ++index) {
+      entry.sample.writeChannel(index, this.channel);
+    }
+
+    entry.offset = this.spillEnd;
+    entry.sample = null;
+    this.spillEnd += entry.size;
+    ++this.spills;
+  }
+
+  @Override
+  public synchronized void close()
+    throws IOException
+  {
+    if (this.hits + this.misses + this.spills > 0L) {
+      LOG.info(
+        "decoded samples: {} hits, {} misses, {} spills ({} bytes spilled)",
+        Long.valueOf(this.hits),
+        Long.valueOf(this.misses),
+        Long.valueOf(this.spills),
+        Long.valueOf(this.spillEnd)
+      );
+    }
+
+    this.resident.clear();
+    if (this.channel != null) {
+      this.channel.close();
+      this.channel = null;
+
+      /*
+       * The file is normally deleted when its channel is closed, but some
+       * platforms refuse to delete a file while it is still mapped.
+       */
+
+      try {
+        Files.deleteIfExists(this.file);
+      } catch (final IOException e) {
+        LOG.warn("{}: could not delete: {}", this.file, e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import com.io7m.jsamplebuffer.api.SampleBufferType;
+import com.io7m.jsamplebuffer.vanilla.SampleBufferDouble;
+import com.io7m.jsamplebuffer.xmedia.SampleBufferXMedia;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+
+/**
+ * A decoded sample held as 16-bit planar data in heap buffers. The sample
+ * is deinterleaved as it is read, on whichever thread decodes it, so that
+ * writing the sample is a single sequential copy per channel.
+ */
+
+final class CalDecodedSampleHeap implements CalDecodedSampleType
+{
+  private final List<ByteBuffer> channels;
+  private final long frames;
+  private final double sampleRate;
+
+  private CalDecodedSampleHeap(
+    final List<ByteBuffer> inChannels,
+    final long inFrames,
+    final double inSampleRate)
+  {
+    this.channels =
+      List.copyOf(Objects.requireNonNull(inChannels, "channels"));
+    this.frames =
+      inFrames;
+    this.sampleRate =
+      inSampleRate;
+  }
+
+  /**
+   * Read the given stream of 16-bit data into planar buffers on the heap.
+   *
+   * @param stream The stream
+   *
+   * @return A heap sample
+   *
+   * @throws IOException On errors
+   */
+
+  static CalDecodedSampleHeap read(
+    final AudioInputStream stream)
+    throws IOException
+  {
+    final var format = stream.getFormat();
+    final var frames = frameLength(stream);
+    final var channels = new ArrayList<ByteBuffer>(format.getChannels());
+    for (var channel = 0; channel < format.getChannels(); ++channel) {
+      channels.add(
+        ByteBuffer.allocate(Math.toIntExact(frames * 2L))
+          .order(LITTLE_ENDIAN)
+      );
+    }
+
+    readInto(stream, channels);
+    return new CalDecodedSampleHeap(channels, frames, format.getSampleRate());
+  }
+
+  /**
+   * @param stream The stream
+   *
+   * @return The number of frames in the given stream
+   *
+   * @throws IOException If the stream does not declare its length
+   */
+
+  static long frameLength(
+    final AudioInputStream stream)
+    throws IOException
+  {
+    final var frames = stream.getFrameLength();
+    if (frames == AudioSystem.NOT_SPECIFIED) {
+      throw new IOException("Stream does not declare its length");
+    }
+    return frames;
+  }
+
+  /**
+   * Read every frame of the given stream of interleaved 16-bit signed
+   * little-endian data, writing each channel to the corresponding
+   * little-endian output buffer, which must have room for exactly the
+   * frames of the stream; a stream that is shorter or longer than the
+   * buffers is rejected. The stream is read in blocks that are split into
+   * one sequential run per channel, and each value passes through the
+   * {@link Quantization} table so that the output is the same as that of
+   * decoding the stream to floating point and {@link #quantize(double)}
+   * each value. The output buffers are flipped, ready to be read.
+   *
+   * @param stream   The stream
+   * @param channels The output buffers, one per channel
+   *
+   * @throws IOException On errors
+   */
+
+  static void readInto(
+    final AudioInputStream stream,
+    final List<ByteBuffer> channels)
+    throws IOException
+  {
+    final var format = stream.getFormat();
+    final var channelCount = channels.size();
+    final var frameSize = channelCount * 2;
+    if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())
+        || format.getSampleSizeInBits() != 16
+        || format.getFrameSize() != frameSize
+        || format.isBigEndian()) {
+      throw new IOException(
+        String.format("Unexpected sample format %s", format)
+      );
+    }
+
+    final var table = Quantization.VALUES;
+    final var block = new byte[frameSize * 8192];
+    var filled = 0;
+    while (true) {
+      final var count = stream.read(block, filled, block.length - filled);
+      if (count == -1) {
+        break;
+      }
+      filled += count;
+
+      final var whole = filled - filled % frameSize;
+      final var first = channels.get(0);
+      if (whole / frameSize > first.remaining() / 2) {
+        throw lengthMismatch(
+          first.position() / 2 + whole / frameSize,
+          first.capacity() / 2
+        );
+      }
+
+      for (var channel = 0; channel < channelCount; ++channel) {
+        final var output = channels.get(channel);
+        for (var index = channel * 2; index < whole; index += frameSize) {
+          final var value = (block[index] & 0xff) | (block[index + 1] << 8);
+          output.putShort(table[value + 32768]);
+        }
+      }
+      System.arraycopy(block, whole, block, 0, filled - whole);
+      filled -= whole;
+    }
+
+    for (final var channel : channels) {
+      if (filled != 0 || channel.hasRemaining()) {
+        throw lengthMismatch(channel.position() / 2, channel.capacity() / 2);
+      }
+      channel.flip();
+    }
+  }
+
+  private static IOException lengthMismatch(
+    final int frames,
+    final int expected)
+  {
+    return new IOException(
+      String.format(
+        "Stream length mismatch: read %d frames, but expected %d",
+        Integer.valueOf(frames),
+        Integer.valueOf(expected))
+    );
+  }
+
+  /**
+   * The 16-bit value that each 16-bit source value becomes when it is
+   * decoded to floating point by jsamplebuffer and then quantized. The
+   * table is computed once, by decoding every 16-bit value with
+   * jsamplebuffer, so that reading samples directly produces exactly the
+   * data that decoding them through jsamplebuffer produced.
+   */
+
+  private static final class Quantization
+  {
+    private static final short[] VALUES = create();
+
+    private Quantization()
+    {
+
+    }
+
+    private static short[] create()
+    {
+      final var data = ByteBuffer.allocate(65536 * 2).order(LITTLE_ENDIAN);
+      for (var value = -32768; value <= 32767; ++value) {
+        data.putShort((short) value);
+      }
+
+      final var format =
+        new AudioFormat(
+          AudioFormat.Encoding.PCM_SIGNED,
+          48000.0f,
+          16,
+          1,
+          2,
+          48000.0f,
+          false
+        );
+
+      final SampleBufferType buffer;
+      try (var stream = new AudioInputStream(
+        new ByteArrayInputStream(data.array()), format, 65536L)) {
+        buffer = SampleBufferXMedia.sampleBufferOfStream(
+          stream,
+          SampleBufferDouble::createWithHeapBuffer
+        );
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+
+      final var values = new short[65536];
+      final var frame = new double[1];
+      for (var index = 0; index < values.length; ++index) {
+        buffer.frameGetExact(index, frame);
+        values[index] = quantize(frame[0]);
+      }
+      return values;
+    }
+  }
+
+  /**
+   * Convert a normalized sample value to a 16-bit value. Every sample store
+   * must use this conversion so that the stores produce identical output.
+   *
+   * @param value The value
+   *
+   * @return The 16-bit value
+   */
+
+  static short quantize(
+    final double value)
+  {
+    return (short) (value * 32767.0);
+  }
+
+  /**
+   * @return The number of channels
+   */
+
+  int channels()
+  {
+    return this.channels.size();
+  }
+
+  @Override
+  public long frames()
+  {
+    return this.frames;
+  }
+
+  @Override
+  public double sampleRate()
+  {
+    return this.sampleRate;
+  }
+
+  @Override
+  public void writeChannel(
+    final int channelIndex,
+    final SeekableByteChannel channel)
+    throws IOException
+  {
+    writeFully(channel, this.channels.get(channelIndex).duplicate());
+  }
+
+  static void writeFully(
+    final SeekableByteChannel channel,
+    final ByteBuffer data)
+    throws IOException
+  {
+    final var expected = data.remaining();
+    while (data.hasRemaining()) {
+      if (channel.write(data) == 0) {
+        throw new IOException(
+          new StringBuilder(32)
+            .append("Wrote too few bytes (wrote ")
+            .append(expected - data.remaining())
+            .append(" expected ")
+            .append(expected)
+            .append(")")
+            .toString()
+        );
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A decoded sample held as 16-bit planar data in off-heap arena slices.
+ */
+
+final class CalDecodedSampleOffHeap implements CalDecodedSampleType
+{
+  private final List<ByteBuffer> channels;
+  private final long frames;
+  private final double sampleRate;
+
+  private CalDecodedSampleOffHeap(
+    final List<ByteBuffer> inChannels,
+    final long inFrames,
+    final double inSampleRate)
+  {
+    this.channels =
+      List.copyOf(Objects.requireNonNull(inChannels, "channels"));
+    this.frames =
+      inFrames;
+    this.sampleRate =
+      inSampleRate;
+  }
+
+  /**
+   * Read the given stream of 16-bit data into planar slices of the given
+   * arena.
+   *
+   * @param arena  The arena
+   * @param stream The stream
+   *
+   * @return An off-heap sample
+   *
+   * @throws IOException On errors
+   */
+
+  static CalDecodedSampleOffHeap read(
+    final CalSampleArena arena,
+    final AudioInputStream stream)
+    throws IOException
+  {
+    final var format = stream.getFormat();
+    final var frames = CalDecodedSampleHeap.frameLength(stream);
+    final var channels = new ArrayList<ByteBuffer>(format.getChannels());
+    for (var channel = 0; channel < format.getChannels(); ++channel) {
+      channels.add(arena.allocate(frames * 2L));
+    }
+
+    CalDecodedSampleHeap.readInto(stream, channels);
+    return new CalDecodedSampleOffHeap(
+      channels,
+      frames,
+      format.getSampleRate()
+    );
+  }
+
+  @Override
+  public long frames()
+  {
+    return this.frames;
+  }
+
+  @Override
+  public double sampleRate()
+  {
+    return this.sampleRate;
+  }
+
+  @Override
+  public void writeChannel(
+    final int channelIndex,
+    final SeekableByteChannel channel)
+    throws IOException
+  {
+    CalDecodedSampleHeap.writeFully(
+      channel,
+      this.channels.get(channelIndex).duplicate()
+    );
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * A decoded sample, held until its data is written to the SF2 file.
+ */
+
+interface CalDecodedSampleType
+{
+  /**
+   * @return The number of frames
+   */
+
+  long frames();
+
+  /**
+   * @return The sample rate
+   */
+
+  double sampleRate();
+
+  /**
+   * Write one channel of the sample as 16-bit signed little-endian data.
+   *
+   * @param channelIndex The channel
+   * @param channel      The output channel
+   *
+   * @throws IOException On errors
+   */
+
+  void writeChannel(
+    int channelIndex,
+    SeekableByteChannel channel)
+    throws IOException;
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+/**
+ * The drum families in the kit, in canonical order.
+ */
+
+public enum CalDrumFamily
+{
+  /**
+   * The snare drum.
+   */
+
+  SNARE("snare"),
+
+  /**
+   * The bass drum.
+   */
+
+  BASS_DRUM("bass-drum"),
+
+  /**
+   * The china hi-hats.
+   */
+
+  HI_HAT("hi-hat"),
+
+  /**
+   * The crash cymbal.
+   */
+
+  CRASH("crash");
+
+  private final String externalName;
+
+  CalDrumFamily(
+    final String inExternalName)
+  {
+    this.externalName = inExternalName;
+  }
+
+  /**
+   * @return The name used on the command line
+   */
+
+  public String externalName()
+  {
+    return this.externalName;
+  }
+
+  /**
+   * Find the family with the given command-line name.
+   *
+   * @param name The name
+   *
+   * @return The family
+   */
+
+  public static CalDrumFamily ofExternalName(
+    final String name)
+  {
+    for (final var family : values()) {
+      if (family.externalName.equals(name)) {
+        return family;
+      }
+    }
+    throw new IllegalArgumentException(
+      String.format("Unrecognized drum family: %s", name)
+    );
+  }
+}
@@ -16,26 +16,121 @@
 
 package com.io7m.music.kit.calais.generator;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.file.Path;
 
 public final class CalFLAC
 {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalFLAC.class);
+
   private CalFLAC()
   {
 
   }
 
+  /**
+   * Decode the given file to 16-bit signed little-endian data.
+   *
+   * @param fileIn   The file
+   * @param decoding The decoder to use
+   *
+   * @return The decoded stream
+   *
+   * @throws IOException                   On errors
+   * @throws UnsupportedAudioFileException If the file cannot be decoded
+   */
+
+  public static AudioInputStream readAs16(
+    final Path fileIn,
+    final CalFLACDecoding decoding)
+    throws IOException, UnsupportedAudioFileException
+  {
+    return switch (decoding) {
+      case NATIVE -> readNativeAs16(fileIn);
+      case JFLAC -> readAs16(fileIn);
+    };
+  }
+
+  /**
+   * Decode the given file data to 16-bit signed little-endian data.
+   *
+   * @param fileIn   The file, for error messages
+   * @param data     The entire contents of the file
+   * @param decoding The decoder to use
+   *
+   * @return The decoded stream
+   *
+   * @throws IOException                   On errors
+   * @throws UnsupportedAudioFileException If the file cannot be decoded
+   */
+
   static AudioInputStream readAs16(
+    final Path fileIn,
+    final ByteBuffer data,
+    final CalFLACDecoding decoding)
+    throws IOException, UnsupportedAudioFileException
+  {
+    if (decoding == CalFLACDecoding.NATIVE) {
+      try {
+        return CalFLACDecoder.readAs16(fileIn, data);
+      } catch (final UnsupportedAudioFileException e) {
+        LOG.debug("{}; decoding with jflac", e.getMessage());
+      }
+    }
+
+    final InputStream stream;
+    if (data.hasArray()) {
+      stream = new ByteArrayInputStream(
+        data.array(),
+        data.arrayOffset() + data.position(),
+        data.remaining()
+      );
+    } else {
+      stream = new BufferedInputStream(
+        Channels.newInputStream(new CalByteBufferChannel(data)));
+    }
+    return convertTo16(decodeToPCM(AudioSystem.getAudioInputStream(stream)));
+  }
+
+  private static AudioInputStream readNativeAs16(
     final Path fileIn)
     throws IOException, UnsupportedAudioFileException
   {
-    final var stream =
-      readFLACStreamAsWave(fileIn);
+    try {
+      return CalFLACDecoder.readAs16(fileIn);
+    } catch (final UnsupportedAudioFileException e) {
+      LOG.debug("{}; decoding with jflac", e.getMessage());
+      return readAs16(fileIn);
+    }
+  }
+
+  static AudioInputStream readAs16(
+    final Path fileIn)
+    throws IOException, UnsupportedAudioFileException
+  {
+    return convertTo16(readFLACStreamAsWave(fileIn));
+  }
+
+  /**
+   * Convert a stream of linear PCM data to 16-bit signed little-endian data.
+   */
+
+  static AudioInputStream convertTo16(
+    final AudioInputStream stream)
+  {
     final var format =
       stream.getFormat();
     final var frameSize =
@@ -52,15 +147,23 @@ public final class CalFLAC
         false
       );
 
-    return AudioSystem.getAudioInputStream(targetFormat, stream);
+    return convertIfNecessary(targetFormat, stream);
   }
 
   private static AudioInputStream readFLACStreamAsWave(
     final Path fileIn)
     throws IOException, UnsupportedAudioFileException
   {
-    final var stream =
-      AudioSystem.getAudioInputStream(fileIn.toFile());
+    return decodeToPCM(AudioSystem.getAudioInputStream(fileIn.toFile()));
+  }
+
+  /**
+   * Decode a FLAC stream to signed little-endian PCM at its own sample size.
+   */
+
+  static AudioInputStream decodeToPCM(
+    final AudioInputStream stream)
+  {
     final var format =
       stream.getFormat();
     final var frameSize =
@@ -77,6 +180,22 @@ public final class CalFLAC
         false
       );
 
+    return convertIfNecessary(targetFormat, stream);
+  }
+
+  /**
+   * Convert a stream to the given format, unless it is already in that
+   * format, in which case it is returned as it is rather than through a
+   * conversion stream that would copy every byte.
+   */
+
+  private static AudioInputStream convertIfNecessary(
+    final AudioFormat targetFormat,
+    final AudioInputStream stream)
+  {
+    if (stream.getFormat().matches(targetFormat)) {
+      return stream;
+    }
     return AudioSystem.getAudioInputStream(targetFormat, stream);
   }
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+
+/**
+ * A big-endian bit reader over a channel. Bytes are read from the channel
+ * in large blocks into a single array, and are loaded from the array into a
+ * 64-bit cache as they are needed.
+ *
+ * <p>The CRC-8 and CRC-16 of the bytes consumed since the last call to
+ * {@link #resetCRC()} are computed lazily, directly over the array, when
+ * they are requested or before the array is refilled. Only whole bytes that
+ * have been consumed are included, so bytes that have been loaded into the
+ * cache ahead of time are never counted early. The CRC-8 only protects
+ * frame headers, and so is only computed over the first
+ * {@link #HEADER_SIZE_MAXIMUM} bytes after a reset.</p>
+ */
+
+final class CalFLACBitReader
+{
+  private static final int BUFFER_SIZE = 65536;
+  private static final int HEADER_SIZE_MAXIMUM = 16;
+
+  private static final VarHandle LONG_BIG_ENDIAN =
+    MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private final ReadableByteChannel channel;
+  private final byte[] bytes;
+  private final ByteBuffer buffer;
+  private int position;
+  private int limit;
+  private int crcPosition;
+  private int crc8Remaining;
+  private long offset;
+  private long cache;
+  private int cacheBits;
+  private int crc8;
+  private int crc16;
+
+  CalFLACBitReader(
+    final ReadableByteChannel inChannel,
+    final long inOffset)
+  {
+    this.channel =
+      Objects.requireNonNull(inChannel, "channel");
+    this.bytes =
+      new byte[BUFFER_SIZE];
+    this.buffer =
+      ByteBuffer.wrap(this.bytes);
+    this.offset =
+      inOffset;
+  }
+
+  /**
+   * @return The offset in the underlying file of the byte containing the
+   * next unread bit
+   */
+
+  long byteOffset()
+  {
+    return this.offset + this.consumedPosition();
+  }
+
+  /**
+   * Reset the CRC-8 and CRC-16 values. The reader must be aligned to a
+   * byte boundary.
+   */
+
+  void resetCRC()
+  {
+    this.crc8 = 0;
+    this.crc16 = 0;
+    this.crc8Remaining = HEADER_SIZE_MAXIMUM;
+    this.crcPosition = this.consumedPosition();
+  }
+
+  /**
+   * @return The CRC-8 of the bytes read since the last reset
+   */
+
+  int crc8()
+  {
+    this.updateCRC(this.consumedPosition());
+    return this.crc8;
+  }
+
+  /**
+   * @return The CRC-16 of the bytes read since the last reset
+   */
+
+  int crc16()
+  {
+    this.updateCRC(this.consumedPosition());
+    return this.crc16;
+  }
+
+  /**
+   * Discard bits up to the next byte boundary.
+   */
+
+  void alignToByte()
+  {
+    this.cacheBits -= this.cacheBits & 7;
+  }
+
+  /**
+   * Read an unsigned value of at most 32 bits.
+   *
+   * @param count The number of bits
+   *
+   * @return The value
+   *
+   * @throws IOException On errors or at the end of the channel
+   */
+
+  int readBits(
+    final int count)
+    throws IOException
+  {
+    if (count == 0) {
+      return 0;
+    }
+    if (this.cacheBits < count) {
+      this.loadCache(count);
+    }
+    this.cacheBits -= count;
+    return (int) ((this.cache >>> this.cacheBits) & ((1L << count) - 1L));
+  }
+
+  /**
+   * Read a two's complement value of at most 32 bits.
+   *
+   * @param count The number of bits
+   *
+   * @return The value
+   *
+   * @throws IOException On errors or at the end of the channel
+   */
+
+  int readSigned(
+    final int count)
+    throws IOException
+  {
+    if (count == 0) {
+      return 0;
+    }
+    final var shift = 32 - count;
+    return (this.readBits(count) << shift) >> shift;
+  }
+
+  /**
+   * Read a unary coded value: the number of zero bits before the next one
+   * bit.
+   *
+   * @return The value
+   *
+   * @throws IOException On errors or at the end of the channel
+   */
+
+  int readUnary()
+    throws IOException
+  {
+    var zeroes = 0;
+    while (true) {
+      if (this.cacheBits == 0) {
+        this.loadCache(1);
+      }
+
+      final var visible = this.cache << (64 - this.cacheBits);
+      if (visible == 0L) {
+        zeroes += this.cacheBits;
+        this.cacheBits = 0;
+        continue;
+      }
+
+      final var leading = Long.numberOfLeadingZeros(visible);
+      this.cacheBits -= leading + 1;
+      return zeroes + leading;
+    }
+  }
+
+  /**
+   * Read a block of Rice coded values, with the given parameter, into
+   * {@code output}.
+   *
+   * @param output    The output array
+   * @param start     The index of the first value
+   * @param count     The number of values
+   * @param parameter The Rice parameter
+   *
+   * @throws IOException On errors or at the end of the channel
+   */
+
+  void readRice(
+    final int[] output,
+    final int start,
+    final int count,
+    final int parameter)
+    throws IOException
+  {
+    final var end = start + count;
+    for (var index = start; index < end; ++index) {
+      final var quotient = this.readUnary();
+      final var folded = (quotient << parameter) | this.readBits(parameter);
+      output[index] = (folded >>> 1) ^ -(folded & 1);
+    }
+  }
+
+  /**
+   * Skip the given number of bytes. The reader must be aligned to a byte
+   * boundary.
+   *
+   * @param count The number of bytes
+   *
+   * @throws IOException On errors or at the end of the channel
+   */
+
+  void skipBytes(
+    final long count)
+    throws IOException
+  {
+    for (var index = 0L; index < count; ++index) {
+      this.readBits(8);
+    }
+  }
+
+  private int consumedPosition()
+  {
+    return this.position - (this.cacheBits >>> 3);
+  }
+
+  private void loadCache(
+    final int required)
+    throws IOException
+  {
+    /*
+     * Load as many whole bytes as fit in the cache, eight at a time where
+     * the array allows it.
+     */
+
+    final var space = (64 - this.cacheBits) >>> 3;
+    if (this.position + 8 <= this.limit) {
+      final var word =
+        (long) LONG_BIG_ENDIAN.get(this.bytes, this.position);
+      if (space == 8) {
+        this.cache = word;
+      } else {
+        this.cache =
+          (this.cache << (space << 3)) | (word >>> (64 - (space << 3)));
+      }
+      this.position += space;
+      this.cacheBits += space << 3;
+      return;
+    }
+
+    while (this.cacheBits <= 56) {
+      if (this.position == this.limit) {
+        if (this.cacheBits >= required) {
+          return;
+        }
+        this.fill();
+      }
+      this.cache = (this.cache << 8) | (this.bytes[this.position] & 0xff);
+      ++this.position;
+      this.cacheBits += 8;
+    }
+  }
+
+  private void updateCRC(
+    final int end)
+  {
+    var index = this.crcPosition;
+
+    final var headerEnd = Math.min(end, index + this.crc8Remaining);
+    var c8 = this.crc8;
+    for (; index < headerEnd; ++index) {
+      c8 = CalFLACCRC.crc8(c8, this.bytes[index]);
+    }
+    this.crc8 = c8;
+    this.crc8Remaining -= headerEnd - this.crcPosition;
+
+    var c16 = this.crc16;
+    for (index = this.crcPosition; index < end; ++index) {
+      c16 = CalFLACCRC.crc16(c16, this.bytes[index]);
+    }
+    this.crc16 = c16;
+    this.crcPosition = end;
+  }
+
+  /**
+   * Refill the array. The whole bytes in the cache that have not yet been
+   * consumed are kept at the start of the array so that they can still be
+   * included in a CRC.
+   */
+
+  private void fill()
+    throws IOException
+  {
+    final var kept = this.cacheBits >>> 3;
+    final var keepFrom = this.limit - kept;
+    this.updateCRC(keepFrom);
+
+    System.arraycopy(this.bytes, keepFrom, this.bytes, 0, kept);
+    this.offset += keepFrom;
+    this.position = kept;
+    this.crcPosition = 0;
+
+    this.buffer.clear();
+    this.buffer.position(kept);
+    while (this.buffer.position() == kept) {
+      if (this.channel.read(this.buffer) == -1) {
+        this.limit = kept;
+        throw new EOFException(
+          String.format(
+            "Unexpected end of stream at offset %d",
+            Long.valueOf(this.offset + kept))
+        );
+      }
+    }
+    this.limit = this.buffer.position();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The CRC-8 and CRC-16 functions used to protect FLAC frames.
+ */
+
+final class CalFLACCRC
+{
+  private static final int[] CRC8_TABLE = crc8Table();
+  private static final int[] CRC16_TABLE = crc16Table();
+
+  private CalFLACCRC()
+  {
+
+  }
+
+  private static int[] crc8Table()
+  {
+    final var table = new int[256];
+    for (var index = 0; index < 256; ++index) {
+      var crc = index;
+      for (var bit = 0; bit < 8; ++bit) {
+        crc = ((crc & 0x80) != 0) ? ((crc << 1) ^ 0x07) : (crc << 1);
+      }
+      table[index] = crc & 0xff;
+    }
+    return table;
+  }
+
+  private static int[] crc16Table()
+  {
+    final var table = new int[256];
+    for (var index = 0; index < 256; ++index) {
+      var crc = index << 8;
+      for (var bit = 0; bit < 8; ++bit) {
+        crc = ((crc & 0x8000) != 0) ? ((crc << 1) ^ 0x8005) : (crc << 1);
+      }
+      table[index] = crc & 0xffff;
+    }
+    return table;
+  }
+
+  static int crc8(
+    final int crc,
+    final int value)
+  {
+    return CRC8_TABLE[(crc ^ value) & 0xff];
+  }
+
+  static int crc16(
+    final int crc,
+    final int value)
+  {
+    return ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ value) & 0xff]) & 0xffff;
+  }
+
+  static int crc8(
+    final ByteBuffer buffer,
+    final int offset,
+    final int length)
+  {
+    var crc = 0;
+    for (var index = 0; index < length; ++index) {
+      crc = crc8(crc, buffer.get(offset + index));
+    }
+    return crc;
+  }
+
+  static int crc16(
+    final ByteBuffer buffer,
+    final int offset,
+    final int length)
+  {
+    var crc = 0;
+    for (var index = 0; index < length; ++index) {
+      crc = crc16(crc, buffer.get(offset + index));
+    }
+    return crc;
+  }
+}
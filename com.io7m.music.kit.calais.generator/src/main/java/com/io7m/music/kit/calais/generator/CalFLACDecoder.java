@@ -0,0 +1,883 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Objects;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A FLAC decoder that reads frames directly from a file channel, or from
+ * file data already held in memory, and produces signed little-endian PCM
+ * data.
+ *
+ * <p>Subframes are restored into one reusable block per channel, and each
+ * frame is interleaved into a single reusable output buffer, so no memory
+ * is allocated per frame. When decoding to 16-bit data, 24-bit samples are
+ * converted exactly as the {@code javax.sound.sampled} format converters
+ * convert them, so the output is identical to that of the jflac path
+ * followed by {@link CalFLAC#convertTo16(AudioInputStream)}.</p>
+ *
+ * <p>The CRC-8 of every frame header and the CRC-16 of every frame are
+ * checked, and the MD5 signature in STREAMINFO is checked when the whole
+ * stream has been decoded.</p>
+ */
+
+final class CalFLACDecoder extends InputStream
+{
+  private static final int SYNC_CODE = 0x3ffe;
+  private static final int CHANNELS_LEFT_SIDE = 8;
+  private static final int CHANNELS_RIGHT_SIDE = 9;
+  private static final int CHANNELS_MID_SIDE = 10;
+  private static final String EMPTY_MD5 = "0".repeat(32);
+
+  private final Path file;
+  private final ReadableByteChannel channel;
+  private final CalFLACBitReader reader;
+  private final CalFLACStreamInfo info;
+  private final int channels;
+  private final int bitsPerSample;
+  private final int inputBytes;
+  private final boolean convertTo16;
+  private final int outputBytes;
+  private final int[][] blocks;
+  private final int[] coefficients;
+  private final byte[] output;
+  private final MessageDigest digest;
+  private final byte[] digestInput;
+  private final byte[] single;
+  private long samplesRemaining;
+  private int outputPosition;
+  private int outputLimit;
+
+  private CalFLACDecoder(
+    final Path inFile,
+    final ReadableByteChannel inChannel,
+    final CalFLACBitReader inReader,
+    final CalFLACStreamInfo inInfo,
+    final long inSamples,
+    final boolean inConvertTo16,
+    final MessageDigest inDigest)
+  {
+    this.file =
+      Objects.requireNonNull(inFile, "file");
+    this.channel =
+      Objects.requireNonNull(inChannel, "channel");
+    this.reader =
+      Objects.requireNonNull(inReader, "reader");
+    this.info =
+      Objects.requireNonNull(inInfo, "info");
+    this.samplesRemaining =
+      inSamples;
+    this.channels =
+      inInfo.channels();
+    this.bitsPerSample =
+      inInfo.bitsPerSample();
+    this.inputBytes =
+      this.bitsPerSample / 8;
+    this.convertTo16 =
+      inConvertTo16 && this.bitsPerSample != 16;
+    this.outputBytes =
+      this.convertTo16 ? 2 : this.inputBytes;
+
+    final var blockSize = inInfo.maximumBlockSize();
+    this.blocks =
+      new int[this.channels][blockSize];
+    this.coefficients =
+      new int[32];
+    this.output =
+      new byte[blockSize * this.channels * this.outputBytes];
+    this.single =
+      new byte[1];
+
+    /*
+     * The MD5 signature covers the samples at their original size. If the
+     * output is converted, the original bytes are produced separately.
+     */
+
+    this.digest = inDigest;
+    this.digestInput =
+      inDigest != null && this.convertTo16
+        ? new byte[blockSize * this.channels * this.inputBytes]
+        : null;
+  }
+
+  /**
+   * Decode the given file to 16-bit data.
+   *
+   * @param file The file
+   *
+   * @return A stream of 16-bit signed little-endian data
+   *
+   * @throws IOException                   On errors
+   * @throws UnsupportedAudioFileException If the file uses features that
+   *                                       this decoder does not support
+   */
+
+  static AudioInputStream readAs16(
+    final Path file)
+    throws IOException, UnsupportedAudioFileException
+  {
+    return readAs16(file, FileChannel.open(file, READ));
+  }
+
+  /**
+   * Decode the given file data to 16-bit data.
+   *
+   * @param file The file, for error messages
+   * @param data The entire contents of the file
+   *
+   * @return A stream of 16-bit signed little-endian data
+   *
+   * @throws IOException                   On errors
+   * @throws UnsupportedAudioFileException If the file uses features that
+   *                                       this decoder does not support
+   */
+
+  static AudioInputStream readAs16(
+    final Path file,
+    final ByteBuffer data)
+    throws IOException, UnsupportedAudioFileException
+  {
+    return readAs16(file, new CalByteBufferChannel(data));
+  }
+
+  private static AudioInputStream readAs16(
+    final Path file,
+    final ReadableByteChannel channel)
+    throws IOException, UnsupportedAudioFileException
+  {
+    try {
+      final var reader = new CalFLACBitReader(channel, 0L);
+      final var info = readMetadata(file, reader);
+      checkSupported(file, info);
+
+      MessageDigest digest = null;
+      if (!EMPTY_MD5.equals(info.md5())) {
+        digest = MessageDigest.getInstance("MD5");
+      }
+
+      final var decoder =
+        new CalFLACDecoder(
+          file,
+          channel,
+          reader,
+          info,
+          info.totalSamples(),
+          true,
+          digest
+        );
+
+      return new AudioInputStream(
+        decoder,
+        formatOf(info, 16),
+        info.totalSamples()
+      );
+    } catch (final IOException
+                   | UnsupportedAudioFileException
+                   | RuntimeException e) {
+      channel.close();
+      throw e;
+    } catch (final NoSuchAlgorithmException e) {
+      channel.close();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Decode a range of frames of a file at the original sample size. The MD5
+   * signature is not checked, as it describes the whole file.
+   *
+   * @param file    The file, for error messages
+   * @param info    The stream information of the file
+   * @param data    The entire contents of the file
+   * @param offset  The offset of the first frame of the range
+   * @param samples The number of samples in the range
+   *
+   * @return A stream of signed little-endian data
+   *
+   * @throws UnsupportedAudioFileException If the file uses features that
+   *                                       this decoder does not support
+   */
+
+  static AudioInputStream readRange(
+    final Path file,
+    final CalFLACStreamInfo info,
+    final ByteBuffer data,
+    final int offset,
+    final long samples)
+    throws UnsupportedAudioFileException
+  {
+    checkSupported(file, info);
+
+    final var channel =
+      new CalByteBufferChannel(
+        data.slice(offset, data.limit() - offset));
+
+    final var decoder =
+      new CalFLACDecoder(
+        file,
+        channel,
+        new CalFLACBitReader(channel, offset),
+        info,
+        samples,
+        false,
+        null
+      );
+
+    return new AudioInputStream(
+      decoder,
+      formatOf(info, info.bitsPerSample()),
+      samples
+    );
+  }
+
+  /**
+   * Convert a 24-bit sample to a 16-bit sample in the same manner as the
+   * {@code javax.sound.sampled} PCM format converters, which convert via
+   * normalized floating point values and truncate.
+   *
+   * @param value The 24-bit sample
+   *
+   * @return The 16-bit sample
+   */
+
+  static int convert24To16(
+    final int value)
+  {
+    final var normalized =
+      value > 0 ? value / 8388607.0f : value / 8388608.0f;
+    return (short) (normalized > 0.0f
+      ? normalized * 32767.0f
+      : normalized * 32768.0f);
+  }
+
+  private static AudioFormat formatOf(
+    final CalFLACStreamInfo info,
+    final int bits)
+  {
+    return new AudioFormat(
+      AudioFormat.Encoding.PCM_SIGNED,
+      info.sampleRate(),
+      bits,
+      info.channels(),
+      info.channels() * (bits / 8),
+      info.sampleRate(),
+      false
+    );
+  }
+
+  /**
+   * @param info The stream information of a file
+   *
+   * @return {@code true} if this decoder can decode the file
+   */
+
+  static boolean isSupported(
+    final CalFLACStreamInfo info)
+  {
+    final var bits = info.bitsPerSample();
+    return (bits == 16 || bits == 24)
+           && info.totalSamples() > 0L
+           && info.maximumBlockSize() >= 16;
+  }
+
+  private static void checkSupported(
+    final Path file,
+    final CalFLACStreamInfo info)
+    throws UnsupportedAudioFileException
+  {
+    if (!isSupported(info)) {
+      throw new UnsupportedAudioFileException(
+        String.format(
+          "%s: Unsupported stream (%d bits per sample, %d samples, maximum block size %d)",
+          file,
+          Integer.valueOf(info.bitsPerSample()),
+          Long.valueOf(info.totalSamples()),
+          Integer.valueOf(info.maximumBlockSize()))
+      );
+    }
+  }
+
+  private static CalFLACStreamInfo readMetadata(
+    final Path file,
+    final CalFLACBitReader reader)
+    throws IOException
+  {
+    final var header = new byte[CalFLACStreamInfo.SIZE];
+    for (var index = 0; index < header.length; ++index) {
+      header[index] = (byte) reader.readBits(8);
+    }
+
+    final var info =
+      CalFLACStreamInfo.parse(file, ByteBuffer.wrap(header));
+
+    var last = (header[4] & 0x80) != 0;
+    while (!last) {
+      last = reader.readBits(1) == 1;
+      reader.readBits(7);
+      reader.skipBytes(reader.readBits(24));
+    }
+    return info;
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    final var count = this.read(this.single, 0, 1);
+    if (count == -1) {
+      return -1;
+    }
+    return this.single[0] & 0xff;
+  }
+
+  @Override
+  public int read(
+    final byte[] buffer,
+    final int offset,
+    final int length)
+    throws IOException
+  {
+    Objects.checkFromIndexSize(offset, length, buffer.length);
+    if (length == 0) {
+      return 0;
+    }
+
+    if (this.outputPosition == this.outputLimit) {
+      if (this.samplesRemaining == 0L) {
+        return -1;
+      }
+      this.decodeFrame();
+    }
+
+    final var count =
+      Math.min(length, this.outputLimit - this.outputPosition);
+    System.arraycopy(this.output, this.outputPosition, buffer, offset, count);
+    this.outputPosition += count;
+    return count;
+  }
+
+  @Override
+  public int available()
+  {
+    return this.outputLimit - this.outputPosition;
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    this.channel.close();
+  }
+
+  private void decodeFrame()
+    throws IOException
+  {
+    final var reader = this.reader;
+    final var frameOffset = reader.byteOffset();
+    reader.resetCRC();
+
+    if (reader.readBits(14) != SYNC_CODE) {
+      throw this.error(frameOffset, "Lost frame synchronization");
+    }
+    if (reader.readBits(1) != 0) {
+      throw this.error(frameOffset, "Reserved frame header bit is set");
+    }
+    reader.readBits(1);
+
+    final var blockSizeCode = reader.readBits(4);
+    final var sampleRateCode = reader.readBits(4);
+    final var assignment = reader.readBits(4);
+    final var sampleSizeCode = reader.readBits(3);
+    if (reader.readBits(1) != 0) {
+      throw this.error(frameOffset, "Reserved frame header bit is set");
+    }
+
+    /*
+     * The frame or sample number is only used by decoders that seek.
+     */
+
+    final var lead = reader.readBits(8);
+    if ((lead & 0x80) != 0) {
+      final var extra = Integer.numberOfLeadingZeros(~lead << 24) - 1;
+      if (extra < 1 || extra > 6) {
+        throw this.error(frameOffset, "Malformed frame number");
+      }
+      for (var index = 0; index < extra; ++index) {
+        if ((reader.readBits(8) & 0xc0) != 0x80) {
+          throw this.error(frameOffset, "Malformed frame number");
+        }
+      }
+    }
+
+    final int blockSize;
+    switch (blockSizeCode) {
+      case 0 -> throw this.error(frameOffset, "Reserved block size");
+      case 1 -> blockSize = 192;
+      case 2, 3, 4, 5 -> blockSize = 576 << (blockSizeCode - 2);
+      case 6 -> blockSize = reader.readBits(8) + 1;
+      case 7 -> blockSize = reader.readBits(16) + 1;
+      default -> blockSize = 256 << (blockSizeCode - 8);
+    }
+
+    switch (sampleRateCode) {
+      case 12 -> reader.readBits(8);
+      case 13, 14 -> reader.readBits(16);
+      case 15 -> throw this.error(frameOffset, "Invalid sample rate");
+      default -> {
+        // The rate is given by the code or by STREAMINFO
+      }
+    }
+
+    final var expectedCRC8 = reader.crc8();
+    if (reader.readBits(8) != expectedCRC8) {
+      throw this.error(frameOffset, "Frame header CRC-8 mismatch");
+    }
+
+    this.checkFrameHeader(
+      frameOffset,
+      blockSize,
+      assignment,
+      sampleSizeCode
+    );
+
+    for (var index = 0; index < this.channels; ++index) {
+      final var sideChannel =
+        (assignment == CHANNELS_LEFT_SIDE && index == 1)
+        || (assignment == CHANNELS_RIGHT_SIDE && index == 0)
+        || (assignment == CHANNELS_MID_SIDE && index == 1);
+      this.decodeSubframe(
+        frameOffset,
+        this.blocks[index],
+        blockSize,
+        sideChannel ? this.bitsPerSample + 1 : this.bitsPerSample
+      );
+    }
+
+    reader.alignToByte();
+    final var expectedCRC16 = reader.crc16();
+    if (reader.readBits(16) != expectedCRC16) {
+      throw this.error(frameOffset, "Frame CRC-16 mismatch");
+    }
+
+    this.decorrelate(assignment, blockSize);
+    this.interleave(blockSize);
+    this.samplesRemaining -= blockSize;
+
+    if (this.samplesRemaining == 0L) {
+      this.checkSignature();
+    }
+  }
+
+  private void checkFrameHeader(
+    final long frameOffset,
+    final int blockSize,
+    final int assignment,
+    final int sampleSizeCode)
+    throws IOException
+  {
+    if (blockSize > this.info.maximumBlockSize()) {
+      throw this.error(
+        frameOffset,
+        String.format(
+          "Block size %d exceeds the maximum %d",
+          Integer.valueOf(blockSize),
+          Integer.valueOf(this.info.maximumBlockSize()))
+      );
+    }
+    if (blockSize > this.samplesRemaining) {
+      throw this.error(frameOffset, "Frame overruns the end of the stream");
+    }
+
+    final int frameChannels;
+    if (assignment < CHANNELS_LEFT_SIDE) {
+      frameChannels = assignment + 1;
+    } else if (assignment <= CHANNELS_MID_SIDE) {
+      frameChannels = 2;
+    } else {
+      throw this.error(frameOffset, "Reserved channel assignment");
+    }
+    if (frameChannels != this.channels) {
+      throw this.error(
+        frameOffset,
+        String.format(
+          "Frame has %d channels but the stream has %d",
+          Integer.valueOf(frameChannels),
+          Integer.valueOf(this.channels))
+      );
+    }
+
+    final var frameBits =
+      switch (sampleSizeCode) {
+        case 0 -> this.bitsPerSample;
+        case 1 -> 8;
+        case 2 -> 12;
+        case 4 -> 16;
+        case 5 -> 20;
+        case 6 -> 24;
+        case 7 -> 32;
+        default -> -1;
+      };
+    if (frameBits != this.bitsPerSample) {
+      throw this.error(frameOffset, "Frame sample size differs from stream");
+    }
+  }
+
+  private void decodeSubframe(
+    final long frameOffset,
+    final int[] block,
+    final int blockSize,
+    final int bits)
+    throws IOException
+  {
+    final var reader = this.reader;
+    if (reader.readBits(1) != 0) {
+      throw this.error(frameOffset, "Subframe padding bit is set");
+    }
+
+    final var type = reader.readBits(6);
+    var wasted = 0;
+    if (reader.readBits(1) == 1) {
+      wasted = reader.readUnary() + 1;
+      if (wasted >= bits) {
+        throw this.error(frameOffset, "Too many wasted bits");
+      }
+    }
+    final var width = bits - wasted;
+
+    if (type == 0) {
+      final var value = reader.readSigned(width);
+      for (var index = 0; index < blockSize; ++index) {
+        block[index] = value;
+      }
+    } else if (type == 1) {
+      for (var index = 0; index < blockSize; ++index) {
+        block[index] = reader.readSigned(width);
+      }
+    } else if (type >= 8 && type <= 12) {
+      this.decodeFixed(frameOffset, block, blockSize, width, type - 8);
+    } else if (type >= 32) {
+      this.decodeLPC(frameOffset, block, blockSize, width, (type & 31) + 1);
+    } else {
+      throw this.error(
+        frameOffset,
+        String.format("Reserved subframe type %d", Integer.valueOf(type))
+      );
+    }
+
+    if (wasted > 0) {
+      for (var index = 0; index < blockSize; ++index) {
+        block[index] <<= wasted;
+      }
+    }
+  }
+
+  private void decodeFixed(
+    final long frameOffset,
+    final int[] block,
+    final int blockSize,
+    final int width,
+    final int order)
+    throws IOException
+  {
+    if (order > blockSize) {
+      throw this.error(frameOffset, "Predictor order exceeds block size");
+    }
+    for (var index = 0; index < order; ++index) {
+      block[index] = this.reader.readSigned(width);
+    }
+    this.decodeResidual(frameOffset, block, blockSize, order);
+
+    switch (order) {
+      case 1 -> {
+        for (var i = 1; i < blockSize; ++i) {
+          block[i] += block[i - 1];
+        }
+      }
+      case 2 -> {
+        for (var i = 2; i < blockSize; ++i) {
+          block[i] += 2 * block[i - 1] - block[i - 2];
+        }
+      }
+      case 3 -> {
+        for (var i = 3; i < blockSize; ++i) {
+          block[i] += 3 * block[i - 1] - 3 * block[i - 2] + block[i - 3];
+        }
+      }
+      case 4 -> {
+        for (var i = 4; i < blockSize; ++i) {
+          block[i] +=
+            4 * block[i - 1]
+            - 6 * block[i - 2]
+            + 4 * block[i - 3]
+            - block[i - 4];
+        }
+      }
+      default -> {
+        // Order zero: the residual is the signal
+      }
+    }
+  }
+
+  private void decodeLPC(
+    final long frameOffset,
+    final int[] block,
+    final int blockSize,
+    final int width,
+    final int order)
+    throws IOException
+  {
+    if (order > blockSize) {
+      throw this.error(frameOffset, "Predictor order exceeds block size");
+    }
+
+    final var reader = this.reader;
+    for (var index = 0; index < order; ++index) {
+      block[index] = reader.readSigned(width);
+    }
+
+    final var precision = reader.readBits(4) + 1;
+    if (precision == 16) {
+      throw this.error(frameOffset, "Invalid coefficient precision");
+    }
+    final var shift = reader.readSigned(5);
+    if (shift < 0) {
+      throw this.error(frameOffset, "Negative predictor shift");
+    }
+
+    final var q = this.coefficients;
+    for (var index = 0; index < order; ++index) {
+      q[index] = reader.readSigned(precision);
+    }
+    this.decodeResidual(frameOffset, block, blockSize, order);
+
+    /*
+     * The prediction can be accumulated in 32 bits if the product of any
+     * sample and coefficient, summed over the order, cannot overflow.
+     */
+
+    final var orderBits = 32 - Integer.numberOfLeadingZeros(order);
+    if (width + precision + orderBits <= 32) {
+      for (var i = order; i < blockSize; ++i) {
+        var sum = 0;
+        for (var j = 0; j < order; ++j) {
+          sum += q[j] * block[i - 1 - j];
+        }
+        block[i] += sum >> shift;
+      }
+    } else {
+      for (var i = order; i < blockSize; ++i) {
+        var sum = 0L;
+        for (var j = 0; j < order; ++j) {
+          sum += (long) q[j] * (long) block[i - 1 - j];
+        }
+        block[i] += (int) (sum >> shift);
+      }
+    }
+  }
+
+  private void decodeResidual(
+    final long frameOffset,
+    final int[] block,
+    final int blockSize,
+    final int order)
+    throws IOException
+  {
+    final var reader = this.reader;
+    final var method = reader.readBits(2);
+    final int parameterBits;
+    if (method == 0) {
+      parameterBits = 4;
+    } else if (method == 1) {
+      parameterBits = 5;
+    } else {
+      throw this.error(frameOffset, "Reserved residual coding method");
+    }
+    final var escape = (1 << parameterBits) - 1;
+
+    final var partitionOrder = reader.readBits(4);
+    final var partitionSize = blockSize >>> partitionOrder;
+    if (partitionSize << partitionOrder != blockSize
+        || partitionSize < order) {
+      throw this.error(frameOffset, "Invalid residual partition order");
+    }
+
+    var index = order;
+    final var partitions = 1 << partitionOrder;
+    for (var partition = 0; partition < partitions; ++partition) {
+      final var count =
+        partition == 0 ? partitionSize - order : partitionSize;
+      final var parameter = reader.readBits(parameterBits);
+      if (parameter == escape) {
+        final var bits = reader.readBits(5);
+        for (var n = 0; n < count; ++n) {
+          block[index + n] = reader.readSigned(bits);
+        }
+      } else {
+        reader.readRice(block, index, count, parameter);
+      }
+      index += count;
+    }
+  }
+
+  private void decorrelate(
+    final int assignment,
+    final int blockSize)
+  {
+    if (assignment < CHANNELS_LEFT_SIDE) {
+      return;
+    }
+
+    final var first = this.blocks[0];
+    final var second = this.blocks[1];
+    switch (assignment) {
+      case CHANNELS_LEFT_SIDE -> {
+        for (var i = 0; i < blockSize; ++i) {
+          second[i] = first[i] - second[i];
+        }
+      }
+      case CHANNELS_RIGHT_SIDE -> {
+        for (var i = 0; i < blockSize; ++i) {
+          first[i] += second[i];
+        }
+      }
+      default -> {
+        for (var i = 0; i < blockSize; ++i) {
+          final var side = second[i];
+          final var mid = (first[i] << 1) | (side & 1);
+          first[i] = (mid + side) >> 1;
+          second[i] = (mid - side) >> 1;
+        }
+      }
+    }
+  }
+
+  private void interleave(
+    final int blockSize)
+  {
+    final var count = blockSize * this.channels;
+    final var original = this.digestInput;
+
+    if (this.convertTo16) {
+      this.interleave24To16(blockSize);
+      if (original != null) {
+        this.interleaveOriginal(original, blockSize);
+        this.digest.update(original, 0, count * this.inputBytes);
+      }
+    } else {
+      this.interleaveOriginal(this.output, blockSize);
+      if (this.digest != null) {
+        this.digest.update(this.output, 0, count * this.inputBytes);
+      }
+    }
+
+    this.outputPosition = 0;
+    this.outputLimit = count * this.outputBytes;
+  }
+
+  private void interleave24To16(
+    final int blockSize)
+  {
+    final var out = this.output;
+    final var channelCount = this.channels;
+    for (var c = 0; c < channelCount; ++c) {
+      final var block = this.blocks[c];
+      var position = c << 1;
+      final var stride = channelCount << 1;
+      for (var i = 0; i < blockSize; ++i) {
+        final var value = convert24To16(block[i]);
+        out[position] = (byte) value;
+        out[position + 1] = (byte) (value >> 8);
+        position += stride;
+      }
+    }
+  }
+
+  private void interleaveOriginal(
+    final byte[] out,
+    final int blockSize)
+  {
+    final var channelCount = this.channels;
+    final var stride = channelCount * this.inputBytes;
+    for (var c = 0; c < channelCount; ++c) {
+      final var block = this.blocks[c];
+      var position = c * this.inputBytes;
+      if (this.inputBytes == 2) {
+        for (var i = 0; i < blockSize; ++i) {
+          final var value = block[i];
+          out[position] = (byte) value;
+          out[position + 1] = (byte) (value >> 8);
+          position += stride;
+        }
+      } else {
+        for (var i = 0; i < blockSize; ++i) {
+          final var value = block[i];
+          out[position] = (byte) value;
+          out[position + 1] = (byte) (value >> 8);
+          out[position + 2] = (byte) (value >> 16);
+          position += stride;
+        }
+      }
+    }
+  }
+
+  private void checkSignature()
+    throws IOException
+  {
+    if (this.digest == null) {
+      return;
+    }
+
+    final var md5 = HexFormat.of().formatHex(this.digest.digest());
+    if (!md5.equals(this.info.md5())) {
+      throw new IOException(
+        String.format(
+          "%s: Decoded MD5 %s does not match STREAMINFO MD5 %s",
+          this.file,
+          md5,
+          this.info.md5())
+      );
+    }
+  }
+
+  private IOException error(
+    final long frameOffset,
+    final String message)
+  {
+    return new IOException(
+      String.format(
+        "%s: Frame at offset %d: %s",
+        this.file,
+        Long.valueOf(frameOffset),
+        message)
+    );
+  }
+}
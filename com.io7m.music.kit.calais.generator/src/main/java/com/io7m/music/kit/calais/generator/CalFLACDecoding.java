@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+/**
+ * The FLAC decoder used to read source files.
+ */
+
+public enum CalFLACDecoding
+{
+  /**
+   * Files are decoded by the generator's own decoder, which reads frames
+   * straight from the file into reusable buffers and produces 16-bit data
+   * without any intermediate format conversion. Streams the decoder does
+   * not support are decoded with jflac instead.
+   */
+
+  NATIVE("native"),
+
+  /**
+   * Files are decoded by the jflac audio service provider.
+   */
+
+  JFLAC("jflac");
+
+  private final String externalName;
+
+  CalFLACDecoding(
+    final String inExternalName)
+  {
+    this.externalName = inExternalName;
+  }
+
+  /**
+   * @return The name used on the command line
+   */
+
+  public String externalName()
+  {
+    return this.externalName;
+  }
+
+  /**
+   * Find the decoder with the given command-line name.
+   *
+   * @param name The name
+   *
+   * @return The decoder
+   */
+
+  public static CalFLACDecoding ofExternalName(
+    final String name)
+  {
+    for (final var decoding : values()) {
+      if (decoding.externalName.equals(name)) {
+        return decoding;
+      }
+    }
+    throw new IllegalArgumentException(
+      String.format("Unrecognized FLAC decoder: %s", name)
+    );
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * A scanner that locates frame boundaries in a FLAC file held in memory.
+ * Boundaries are taken from the SEEKTABLE where one exists, and are
+ * otherwise found by searching for frame sync codes. A candidate boundary
+ * is accepted only if it begins with a well-formed frame header whose
+ * CRC-8 is correct.
+ */
+
+final class CalFLACFrameScanner
+{
+  private static final int BLOCK_STREAMINFO = 0;
+  private static final int BLOCK_SEEKTABLE = 3;
+  private static final long SEEK_PLACEHOLDER = 0xffff_ffff_ffff_ffffL;
+
+  private final ByteBuffer data;
+  private final CalFLACStreamInfo streamInfo;
+  private final List<Frame> seekPoints;
+  private final int firstFrameOffset;
+
+  /**
+   * A frame located within the file.
+   *
+   * @param offset      The offset of the frame header
+   * @param firstSample The index of the first sample in the frame
+   * @param blockSize   The number of samples in the frame
+   */
+
+  record Frame(
+    int offset,
+    long firstSample,
+    int blockSize)
+  {
+
+  }
+
+  private CalFLACFrameScanner(
+    final ByteBuffer inData,
+    final CalFLACStreamInfo inStreamInfo,
+    final List<Frame> inSeekPoints,
+    final int inFirstFrameOffset)
+  {
+    this.data =
+      Objects.requireNonNull(inData, "data");
+    this.streamInfo =
+      Objects.requireNonNull(inStreamInfo, "streamInfo");
+    this.seekPoints =
+      List.copyOf(Objects.requireNonNull(inSeekPoints, "seekPoints"));
+    this.firstFrameOffset =
+      inFirstFrameOffset;
+  }
+
+  /**
+   * Read the metadata blocks of the given FLAC data.
+   *
+   * @param file The file, for error messages
+   * @param data The entire contents of the file
+   *
+   * @return A scanner
+   *
+   * @throws IOException If the metadata is malformed
+   */
+
+  static CalFLACFrameScanner open(
+    final Path file,
+    final ByteBuffer fileData)
+    throws IOException
+  {
+    final var data = fileData.duplicate().order(ByteOrder.BIG_ENDIAN);
+    if (data.limit() < CalFLACStreamInfo.SIZE) {
+      throw new IOException(
+        String.format("%s: File is too short to be a FLAC file", file)
+      );
+    }
+
+    final var streamInfo =
+      CalFLACStreamInfo.parse(file, data.slice(0, CalFLACStreamInfo.SIZE));
+    final var seekTable = new ArrayList<long[]>();
+
+    var offset = 4;
+    while (true) {
+      if (offset + 4 > data.limit()) {
+        throw new IOException(
+          String.format("%s: Truncated metadata block at %d", file, offset)
+        );
+      }
+
+      final var header = data.get(offset) & 0xff;
+      final var last = (header & 0x80) != 0;
+      final var type = header & 0x7f;
+      final var length = u24(data, offset + 1);
+
+      final var body = offset + 4;
+      if (body + length > data.limit()) {
+        throw new IOException(
+          String.format("%s: Metadata block at %d overruns file", file, offset)
+        );
+      }
+
+      if (type == BLOCK_SEEKTABLE) {
+        for (var point = body; point + 18 <= body + length; point += 18) {
+          final var sample = data.getLong(point);
+          if (sample != SEEK_PLACEHOLDER) {
+            seekTable.add(new long[]{sample, data.getLong(point + 8)});
+          }
+        }
+      } else if (type == BLOCK_STREAMINFO && offset != 4) {
+        throw new IOException(
+          String.format("%s: Duplicate STREAMINFO block", file)
+        );
+      }
+
+      offset = body + length;
+      if (last) {
+        break;
+      }
+    }
+
+    /*
+     * Seek points are only trusted if they land on a valid frame header
+     * that agrees about the sample number.
+     */
+
+    final var firstFrameOffset = offset;
+    final var seekPoints = new ArrayList<Frame>(seekTable.size());
+    for (final var point : seekTable) {
+      final var frameOffset = firstFrameOffset + point[1];
+      if (point[1] < 0L || frameOffset >= data.limit()) {
+        continue;
+      }
+      frameAt(data, streamInfo, (int) frameOffset)
+        .filter(frame -> frame.firstSample() == point[0])
+        .ifPresent(seekPoints::add);
+    }
+
+    return new CalFLACFrameScanner(
+      data,
+      streamInfo,
+      seekPoints,
+      firstFrameOffset
+    );
+  }
+
+  /**
+   * @return The stream information
+   */
+
+  CalFLACStreamInfo streamInfo()
+  {
+    return this.streamInfo;
+  }
+
+  /**
+   * @return The offset of the first frame
+   */
+
+  int firstFrameOffset()
+  {
+    return this.firstFrameOffset;
+  }
+
+  /**
+   * Divide the file into at most {@code count} ranges of roughly equal size,
+   * each beginning on a frame boundary.
+   *
+   * @param count The desired number of ranges
+   *
+   * @return The first frame of each range, in file order
+   */
+
+  List<Frame> boundaries(
+    final int count)
+  {
+    final var results = new ArrayList<Frame>(count);
+    final var first =
+      frameAt(this.data, this.streamInfo, this.firstFrameOffset);
+    if (first.isEmpty()) {
+      return List.of();
+    }
+    results.add(first.get());
+
+    final long span = this.data.limit() - this.firstFrameOffset;
+    for (var index = 1; index < count; ++index) {
+      final var target =
+        (int) (this.firstFrameOffset + (span * index) / count);
+      final var previous = results.get(results.size() - 1);
+
+      final var next =
+        this.seekPointAtOrAfter(target)
+          .or(() -> this.scanFrom(target));
+
+      if (next.isPresent()) {
+        final var frame = next.get();
+        if (frame.offset() > previous.offset()
+            && frame.firstSample() > previous.firstSample()) {
+          results.add(frame);
+        }
+      }
+    }
+    return List.copyOf(results);
+  }
+
+  private Optional<Frame> seekPointAtOrAfter(
+    final int target)
+  {
+    for (final var point : this.seekPoints) {
+      if (point.offset() >= target) {
+        return Optional.of(point);
+      }
+    }
+    return Optional.empty();
+  }
+
+  private Optional<Frame> scanFrom(
+    final int start)
+  {
+    final var limit = this.data.limit() - 1;
+    for (var offset = start; offset < limit; ++offset) {
+      if ((this.data.get(offset) & 0xff) == 0xff
+          && (this.data.get(offset + 1) & 0xfe) == 0xf8) {
+        final var frame = frameAt(this.data, this.streamInfo, offset);
+        if (frame.isPresent()) {
+          return frame;
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Parse the frame header at the given offset.
+   *
+   * @return The frame, or nothing if the bytes at the offset are not a
+   * well-formed frame header
+   */
+
+  static Optional<Frame> frameAt(
+    final ByteBuffer data,
+    final CalFLACStreamInfo streamInfo,
+    final int offset)
+  {
+    final var limit = data.limit();
+    if (offset + 6 > limit) {
+      return Optional.empty();
+    }
+
+    final var sync = data.get(offset) & 0xff;
+    final var syncLow = data.get(offset + 1) & 0xff;
+    if (sync != 0xff || (syncLow & 0xfe) != 0xf8) {
+      return Optional.empty();
+    }
+
+    final var variableBlocking = (syncLow & 1) == 1;
+    final var blockSizeCode = (data.get(offset + 2) & 0xff) >>> 4;
+    final var sampleRateCode = data.get(offset + 2) & 0xf;
+    final var channelCode = (data.get(offset + 3) & 0xff) >>> 4;
+    final var sampleSizeCode = (data.get(offset + 3) >>> 1) & 0x7;
+    final var reserved = data.get(offset + 3) & 1;
+
+    if (blockSizeCode == 0
+        || sampleRateCode == 15
+        || channelCode > 10
+        || sampleSizeCode == 3
+        || reserved != 0) {
+      return Optional.empty();
+    }
+
+    /*
+     * The frame or sample number is coded in the style of UTF-8, in up to
+     * seven bytes.
+     */
+
+    var position = offset + 4;
+    final var lead = data.get(position) & 0xff;
+    final int extra;
+    long number;
+    if ((lead & 0x80) == 0) {
+      extra = 0;
+      number = lead;
+    } else {
+      extra = Integer.numberOfLeadingZeros(~lead << 24) - 1;
+      if (extra < 1 || extra > 6) {
+        return Optional.empty();
+      }
+      number = lead & (0x3f >>> extra);
+    }
+    ++position;
+
+    if (position + extra > limit) {
+      return Optional.empty();
+    }
+    for (var index = 0; index < extra; ++index) {
+      final var next = data.get(position) & 0xff;
+      if ((next & 0xc0) != 0x80) {
+        return Optional.empty();
+      }
+      number = (number << 6) | (next & 0x3f);
+      ++position;
+    }
+
+    final int blockSize;
+    switch (blockSizeCode) {
+      case 1 -> blockSize = 192;
+      case 2, 3, 4, 5 -> blockSize = 576 << (blockSizeCode - 2);
+      case 6 -> {
+        if (position + 1 > limit) {
+          return Optional.empty();
+        }
+        blockSize = (data.get(position) & 0xff) + 1;
+        position += 1;
+      }
+      case 7 -> {
+        if (position + 2 > limit) {
+          return Optional.empty();
+        }
+        blockSize = Short.toUnsignedInt(data.getShort(position)) + 1;
+        position += 2;
+      }
+      default -> blockSize = 256 << (blockSizeCode - 8);
+    }
+
+    if (sampleRateCode == 12) {
+      position += 1;
+    } else if (sampleRateCode == 13 || sampleRateCode == 14) {
+      position += 2;
+    }
+
+    if (position + 1 > limit) {
+      return Optional.empty();
+    }
+
+    final var crc = CalFLACCRC.crc8(data, offset, position - offset);
+    if (crc != (data.get(position) & 0xff)) {
+      return Optional.empty();
+    }
+
+    final var firstSample =
+      variableBlocking ? number : number * streamInfo.maximumBlockSize();
+
+    return Optional.of(new Frame(offset, firstSample, blockSize));
+  }
+
+  private static int u24(
+    final ByteBuffer buffer,
+    final int offset)
+  {
+    return ((buffer.get(offset) & 0xff) << 16)
+           | ((buffer.get(offset + 1) & 0xff) << 8)
+           | (buffer.get(offset + 2) & 0xff);
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A decoder that splits a single large FLAC file into ranges of frames and
+ * decodes the ranges concurrently. FLAC frames are independently decodable,
+ * so the native decoder simply decodes each range in place. The jflac
+ * decoder is instead presented with each range as a complete stream of its
+ * own: a copy of the STREAMINFO block followed by the frames of the range.
+ * The decoded ranges are joined in order, and the result is checked
+ * against the sample count and MD5 recorded in the STREAMINFO block. Any
+ * failure causes the caller to fall back to decoding the file sequentially,
+ * as does a file whose decoded data would not fit in a single array.
+ *
+ * <p>The decoded ranges and the joined copy are held at once, so a split
+ * decode holds twice the decoded size of the file at its peak.</p>
+ */
+
+final class CalFLACRangeDecoder
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalFLACRangeDecoder.class);
+
+  /**
+   * The smallest range, in bytes of encoded data, worth decoding on its own.
+   */
+
+  private static final long RANGE_MINIMUM = 1024L * 1024L;
+
+  private static final String EMPTY_MD5 = "0".repeat(32);
+
+  private CalFLACRangeDecoder()
+  {
+
+  }
+
+  private record Range(
+    int start,
+    int end,
+    long samples)
+  {
+
+  }
+
+  private record AudioRange(
+    AudioFormat format,
+    byte[] data)
+  {
+
+  }
+
+  /**
+   * @param info The STREAMINFO block of a file
+   *
+   * @return The size in bytes of the file's decoded data at its own sample
+   * size
+   */
+
+  static long decodedSize(
+    final CalFLACStreamInfo info)
+  {
+    final var bytesPerSample = (info.bitsPerSample() + 7) / 8;
+    return info.totalSamples() * info.channels() * bytesPerSample;
+  }
+
+  /**
+   * Determine whether a file may be split into ranges. A file that may be
+   * split can still be decoded sequentially if it turns out to have too few
+   * frames.
+   *
+   * @param size      The size of the file
+   * @param info      The STREAMINFO block of the file
+   * @param threshold The minimum size of files that are split
+   *
+   * @return {@code true} if the file may be decoded in ranges
+   */
+
+  static boolean maySplit(
+    final long size,
+    final CalFLACStreamInfo info,
+    final long threshold)
+  {
+    return threshold > 0L
+      && size >= threshold
+      && size <= Integer.MAX_VALUE
+      && decodedSize(info) <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * Decode the given file as 16-bit data by decoding ranges of frames in
+   * parallel, if the file is at least {@code threshold} bytes long.
+   *
+   * @param file      The FLAC file
+   * @param contents  The contents of the file, if they have already been
+   *                  read, and otherwise nothing, in which case the file is
+   *                  mapped
+   * @param pool      The pool on which ranges are decoded
+   * @param threshold The minimum size of files that are split
+   * @param decoding  The decoder used for each range
+   *
+   * @return The decoded stream, or nothing if the file should be decoded
+   * sequentially
+   *
+   * @throws IOException If interrupted
+   */
+
+  static Optional<AudioInputStream> readAs16(
+    final Path file,
+    final Optional<ByteBuffer> contents,
+    final ForkJoinPool pool,
+    final long threshold,
+    final CalFLACDecoding decoding)
+    throws IOException
+  {
+    if (threshold <= 0L) {
+      return Optional.empty();
+    }
+
+    final long size;
+    if (contents.isPresent()) {
+      size = contents.get().remaining();
+    } else {
+      size = Files.size(file);
+    }
+    if (size < threshold || size > Integer.MAX_VALUE) {
+      return Optional.empty();
+    }
+
+    try {
+      final ByteBuffer data;
+      if (contents.isPresent()) {
+        data = contents.get().slice();
+      } else {
+        try (var channel = FileChannel.open(file, READ)) {
+          data = channel.map(READ_ONLY, 0L, size);
+        }
+      }
+      return decode(file, data, pool, decoding);
+    } catch (final InterruptedIOException e) {
+      throw e;
+    } catch (final IOException
+                   | UnsupportedAudioFileException
+                   | NoSuchAlgorithmException e) {
+      LOG.warn(
+        "{}: parallel decoding failed ({}); decoding sequentially",
+        file,
+        e.getMessage()
+      );
+      return Optional.empty();
+    }
+  }
+
+  private static Optional<AudioInputStream> decode(
+    final Path file,
+    final ByteBuffer data,
+    final ForkJoinPool pool,
+    final CalFLACDecoding decoding)
+    throws IOException, UnsupportedAudioFileException, NoSuchAlgorithmException
+  {
+    final var scanner = CalFLACFrameScanner.open(file, data);
+    final var info = scanner.streamInfo();
+    if (info.totalSamples() == 0L || info.bitsPerSample() % 8 != 0) {
+      return Optional.empty();
+    }
+    if (decodedSize(info) > Integer.MAX_VALUE) {
+      LOG.debug(
+        "{}: decoded data exceeds {} bytes; decoding sequentially",
+        file,
+        Integer.valueOf(Integer.MAX_VALUE)
+      );
+      return Optional.empty();
+    }
+
+    final var count =
+      (int) Math.min(pool.getParallelism(), data.limit() / RANGE_MINIMUM);
+    if (count < 2) {
+      return Optional.empty();
+    }
+
+    final var boundaries = scanner.boundaries(count);
+    if (boundaries.size() < 2) {
+      return Optional.empty();
+    }
+
+    final var ranges = new ArrayList<Range>(boundaries.size());
+    for (var index = 0; index < boundaries.size(); ++index) {
+      final var frame = boundaries.get(index);
+      final var last = index + 1 == boundaries.size();
+      final var end =
+        last ? data.limit() : boundaries.get(index + 1).offset();
+      final var endSample =
+        last ? info.totalSamples() : boundaries.get(index + 1).firstSample();
+      ranges.add(new Range(
+        frame.offset(),
+        end,
+        endSample - frame.firstSample()
+      ));
+    }
+
+    LOG.debug("{}: decoding {} ranges", file, Integer.valueOf(ranges.size()));
+
+    final var decodeNatively =
+      decoding == CalFLACDecoding.NATIVE && CalFLACDecoder.isSupported(info);
+
+    final var tasks = new ArrayList<Callable<AudioRange>>(ranges.size());
+    for (final var range : ranges) {
+      if (decodeNatively) {
+        tasks.add(() -> decodeRangeNatively(file, data, info, range));
+      } else {
+        tasks.add(() -> decodeRange(file, data, info, range));
+      }
+    }
+
+    final var decoded = new ArrayList<AudioRange>(ranges.size());
+    for (final var future : pool.invokeAll(tasks)) {
+      try {
+        decoded.add(future.get());
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted during decoding");
+      } catch (final ExecutionException e) {
+        throw new IOException(e.getCause().getMessage(), e.getCause());
+      }
+    }
+
+    final var format = decoded.get(0).format();
+    final var bytesPerFrame = format.getFrameSize();
+    final var total =
+      new byte[Math.toIntExact(info.totalSamples() * bytesPerFrame)];
+
+    var position = 0;
+    for (final var range : decoded) {
+      System.arraycopy(range.data(), 0, total, position, range.data().length);
+      position += range.data().length;
+    }
+
+    if (position != total.length) {
+      throw new IOException(
+        String.format(
+          "Decoded %d bytes but expected %d",
+          Integer.valueOf(position),
+          Integer.valueOf(total.length))
+      );
+    }
+
+    if (!EMPTY_MD5.equals(info.md5())) {
+      final var md5 =
+        HexFormat.of()
+          .formatHex(MessageDigest.getInstance("MD5").digest(total));
+      if (!md5.equals(info.md5())) {
+        throw new IOException(
+          String.format("MD5 %s does not match %s", md5, info.md5())
+        );
+      }
+    }
+
+    return Optional.of(
+      CalFLAC.convertTo16(
+        new AudioInputStream(
+          new ByteArrayInputStream(total),
+          format,
+          info.totalSamples()
+        )
+      )
+    );
+  }
+
+  private static AudioRange decodeRangeNatively(
+    final Path file,
+    final ByteBuffer data,
+    final CalFLACStreamInfo info,
+    final Range range)
+    throws IOException, UnsupportedAudioFileException
+  {
+    try (var input =
+           CalFLACDecoder.readRange(
+             file, info, data, range.start(), range.samples())) {
+      return readRange(file, range, input);
+    }
+  }
+
+  private static AudioRange decodeRange(
+    final Path file,
+    final ByteBuffer data,
+    final CalFLACStreamInfo info,
+    final Range range)
+    throws IOException, UnsupportedAudioFileException
+  {
+    /*
+     * Build a stream consisting of the marker, a copy of the STREAMINFO
+     * block flagged as the last metadata block, and the frames of the range.
+     * The total sample count is set to the length of the range, and the MD5
+     * is cleared, as it describes the whole file.
+     */
+
+    final var length = range.end() - range.start();
+    final var stream = new byte[CalFLACStreamInfo.SIZE + length];
+    data.get(0, stream, 0, CalFLACStreamInfo.SIZE);
+    data.get(range.start(), stream, CalFLACStreamInfo.SIZE, length);
+
+    final var header = ByteBuffer.wrap(stream);
+    header.put(4, (byte) 0x80);
+
+    final var packed = header.getLong(18);
+    header.putLong(18, (packed & ~0xf_ffff_ffffL) | range.samples());
+    for (var index = 26; index < CalFLACStreamInfo.SIZE; ++index) {
+      header.put(index, (byte) 0);
+    }
+
+    try (var input =
+           CalFLAC.decodeToPCM(
+             AudioSystem.getAudioInputStream(
+               new ByteArrayInputStream(stream)))) {
+      return readRange(file, range, input);
+    }
+  }
+
+  private static AudioRange readRange(
+    final Path file,
+    final Range range,
+    final AudioInputStream input)
+    throws IOException
+  {
+    final var format = input.getFormat();
+    final var bytes = input.readAllBytes();
+    final var expected = range.samples() * format.getFrameSize();
+    if (bytes.length != expected) {
+      throw new IOException(
+        String.format(
+          "%s: Range at %d decoded to %d bytes but expected %d",
+          file,
+          Integer.valueOf(range.start()),
+          Integer.valueOf(bytes.length),
+          Long.valueOf(expected))
+      );
+    }
+    return new AudioRange(format, bytes);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.Objects;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * The STREAMINFO metadata block of a FLAC file. Reading it requires only the
+ * first 42 bytes of the file, so it is a cheap way to learn the size of a
+ * stream without decoding it.
+ *
+ * @param minimumBlockSize The minimum block size in samples
+ * @param maximumBlockSize The maximum block size in samples
+ * @param minimumFrameSize The minimum frame size in bytes, or 0 if unknown
+ * @param maximumFrameSize The maximum frame size in bytes, or 0 if unknown
+ * @param sampleRate       The sample rate
+ * @param channels         The number of channels
+ * @param bitsPerSample    The number of bits per sample
+ * @param totalSamples     The number of samples per channel, or 0 if unknown
+ * @param md5              The MD5 of the unencoded audio, in hexadecimal
+ */
+
+public record CalFLACStreamInfo(
+  int minimumBlockSize,
+  int maximumBlockSize,
+  int minimumFrameSize,
+  int maximumFrameSize,
+  int sampleRate,
+  int channels,
+  int bitsPerSample,
+  long totalSamples,
+  String md5)
+{
+  /**
+   * The size of the "fLaC" marker and the STREAMINFO block.
+   */
+
+  static final int SIZE = 42;
+
+  public CalFLACStreamInfo
+  {
+    Objects.requireNonNull(md5, "md5");
+  }
+
+  /**
+   * Read the STREAMINFO block of the given file.
+   *
+   * @param file The file
+   *
+   * @return The stream information
+   *
+   * @throws IOException On errors, or if the file is not a FLAC file
+   */
+
+  public static CalFLACStreamInfo read(
+    final Path file)
+    throws IOException
+  {
+    final var buffer = ByteBuffer.allocate(SIZE);
+    try (var channel = FileChannel.open(file, READ)) {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, buffer.position()) == -1) {
+          throw new IOException(
+            String.format("%s: File is too short to be a FLAC file", file)
+          );
+        }
+      }
+    }
+    return parse(file, buffer.flip());
+  }
+
+  static CalFLACStreamInfo parse(
+    final Path file,
+    final ByteBuffer buffer)
+    throws IOException
+  {
+    if (buffer.get(0) != 'f'
+        || buffer.get(1) != 'L'
+        || buffer.get(2) != 'a'
+        || buffer.get(3) != 'C') {
+      throw new IOException(
+        String.format("%s: Missing fLaC stream marker", file)
+      );
+    }
+
+    final var blockType = buffer.get(4) & 0x7f;
+    final var blockLength =
+      ((buffer.get(5) & 0xff) << 16)
+      | ((buffer.get(6) & 0xff) << 8)
+      | (buffer.get(7) & 0xff);
+
+    if (blockType != 0 || blockLength != 34) {
+      throw new IOException(
+        String.format(
+          "%s: Expected a 34 byte STREAMINFO block, but found type %d (%d bytes)",
+          file,
+          Integer.valueOf(blockType),
+          Integer.valueOf(blockLength)
+        )
+      );
+    }
+
+    final var minimumBlockSize =
+      Short.toUnsignedInt(buffer.getShort(8));
+    final var maximumBlockSize =
+      Short.toUnsignedInt(buffer.getShort(10));
+    final var minimumFrameSize =
+      u24(buffer, 12);
+    final var maximumFrameSize =
+      u24(buffer, 15);
+
+    /*
+     * 20 bits of sample rate, 3 bits of (channels - 1), 5 bits of
+     * (bits per sample - 1), and 36 bits of total samples.
+     */
+
+    final var packed = buffer.getLong(18);
+    final var sampleRate = (int) (packed >>> 44);
+    final var channels = (int) ((packed >>> 41) & 0x7L) + 1;
+    final var bitsPerSample = (int) ((packed >>> 36) & 0x1fL) + 1;
+    final var totalSamples = packed & 0xf_ffff_ffffL;
+
+    final var md5 = new byte[16];
+    buffer.get(26, md5);
+
+    return new CalFLACStreamInfo(
+      minimumBlockSize,
+      maximumBlockSize,
+      minimumFrameSize,
+      maximumFrameSize,
+      sampleRate,
+      channels,
+      bitsPerSample,
+      totalSamples,
+      HexFormat.of().formatHex(md5)
+    );
+  }
+
+  private static int u24(
+    final ByteBuffer buffer,
+    final int offset)
+  {
+    return ((buffer.get(offset) & 0xff) << 16)
+           | ((buffer.get(offset + 1) & 0xff) << 8)
+           | (buffer.get(offset + 2) & 0xff);
+  }
+}
@@ -17,6 +17,7 @@
 package com.io7m.music.kit.calais.generator;
 
 import com.io7m.jnoisetype.api.NTBankIndex;
+import com.io7m.jnoisetype.api.NTGenerator;
 import com.io7m.jnoisetype.api.NTGenerators;
 import com.io7m.jnoisetype.api.NTGenericAmount;
 import com.io7m.jnoisetype.api.NTInfo;
@@ -31,28 +32,23 @@ import com.io7m.jnoisetype.writer.api.NTInstrumentBuilderType;
 import com.io7m.jnoisetype.writer.api.NTSampleBuilderType;
 import com.io7m.jnoisetype.writer.api.NTWriteException;
 import com.io7m.jnoisetype.writer.api.NTWriterProviderType;
-import com.io7m.jsamplebuffer.api.SampleBufferType;
-import com.io7m.jsamplebuffer.vanilla.SampleBufferDouble;
-import com.io7m.jsamplebuffer.xmedia.SampleBufferXMedia;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Optional;
+import java.util.Set;
 
-import static java.nio.ByteOrder.LITTLE_ENDIAN;
 import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
@@ -63,12 +59,59 @@ public final class CalFont
   private static final Logger LOG =
     LoggerFactory.getLogger(CalFont.class);
 
+  /*
+   * Generators are resolved exactly once.
+   */
+
+  private static final NTGenerator GENERATOR_SAMPLE_MODES =
+    generator("sampleModes");
+  private static final NTGenerator GENERATOR_PAN =
+    generator("pan");
+  private static final NTGenerator GENERATOR_DECAY_VOL_ENV =
+    generator("decayVolEnv");
+  private static final NTGenerator GENERATOR_SUSTAIN_VOL_ENV =
+    generator("sustainVolEnv");
+  private static final NTGenerator GENERATOR_COARSE_TUNE =
+    generator("coarseTune");
+  private static final NTGenerator GENERATOR_INITIAL_ATTENUATION =
+    generator("initialAttenuation");
+  private static final NTGenerator GENERATOR_EXCLUSIVE_CLASS =
+    generator("exclusiveClass");
+
+  /*
+   * Generator lists shared between zones. Generators that are common to
+   * every zone live in the instrument global zone instead.
+   */
+
+  private static final List<GeneratorValue> PAN_HARD_LEFT =
+    List.of(generatorValue(GENERATOR_PAN, CalZone.PAN_LEFT));
+  private static final List<GeneratorValue> PAN_HARD_RIGHT =
+    List.of(generatorValue(GENERATOR_PAN, CalZone.PAN_RIGHT));
+  private static final List<GeneratorValue> BASS_DRUM_ENVELOPE =
+    List.of(
+      generatorValue(GENERATOR_DECAY_VOL_ENV, CalZone.BASS_DRUM_DECAY),
+      generatorValue(GENERATOR_SUSTAIN_VOL_ENV, CalZone.BASS_DRUM_SUSTAIN)
+    );
+
+  /*
+   * The generators of the zones of each family, when the family does not
+   * and does choke.
+   */
+
+  private static final Map<CalDrumFamily, List<GeneratorValue>>
+    FAMILY_GENERATORS = familyGenerators(false);
+  private static final Map<CalDrumFamily, List<GeneratorValue>>
+    FAMILY_GENERATORS_CHOKED = familyGenerators(true);
+
   private final NTBuilderProviderType builders;
   private final NTWriterProviderType writers;
   private final CalSnare snare;
   private final CalBassDrum bassDrum;
   private final CalChinaHiHat hiHats;
   private final CalZildjian18 crash;
+  private final CalFontLayout layout;
+  private final CalSampleStore sampleStore;
+  private final Set<CalDrumFamily> chokeFamilies;
 
   public CalFont(
     final NTBuilderProviderType inBuilders,
@@ -76,7 +119,10 @@ public final class CalFont
     final CalSnare inSnare,
     final CalBassDrum inBassDrum,
     final CalChinaHiHat inHiHats,
-    final CalZildjian18 inCrash)
+    final CalZildjian18 inCrash,
+    final CalFontLayout inLayout,
+    final CalSampleStore inSampleStore,
+    final Set<CalDrumFamily> inChokeFamilies)
   {
     this.builders =
       Objects.requireNonNull(inBuilders, "builders");
@@ -90,6 +136,12 @@ public final class CalFont
       Objects.requireNonNull(inHiHats, "hiHats");
     this.crash =
       Objects.requireNonNull(inCrash, "crash");
+    this.layout =
+      Objects.requireNonNull(inLayout, "layout");
+    this.sampleStore =
+      Objects.requireNonNull(inSampleStore, "sampleStore");
+    this.chokeFamilies =
+      Set.copyOf(Objects.requireNonNull(inChokeFamilies, "chokeFamilies"));
   }
 
   public static CalFont of(
@@ -98,7 +150,10 @@ public final class CalFont
     final CalSnare snare,
     final CalBassDrum bd,
     final CalChinaHiHat hiHats,
-    final CalZildjian18 crash)
+    final CalZildjian18 crash,
+    final CalFontLayout layout,
+    final CalSampleStore sampleStore,
+    final Set<CalDrumFamily> chokeFamilies)
   {
     return new CalFont(
       builders,
@@ -106,10 +161,50 @@ public final class CalFont
       snare,
       bd,
       hiHats,
-      crash
+      crash,
+      layout,
+      sampleStore,
+      chokeFamilies
     );
   }
 
+  private static NTGenerator generator(
+    final String name)
+  {
+    return NTGenerators.findForName(name)
+      .orElseThrow(() -> new IllegalStateException(
+        String.format("Missing generator: %s", name)));
+  }
+
+  private static GeneratorValue generatorValue(
+    final NTGenerator generator,
+    final int amount)
+  {
+    return new GeneratorValue(generator, NTGenericAmount.of(amount & 0xffff));
+  }
+
+  private record GeneratorValue(
+    NTGenerator generator,
+    NTGenericAmount amount)
+  {
+    GeneratorValue
+    {
+      Objects.requireNonNull(generator, "generator");
+      Objects.requireNonNull(amount, "amount");
+    }
+  }
+
+  private record KeyedInstrument(
+    NTInstrumentBuilderType instrument,
+    int keyLow,
+    int keyHigh)
+  {
+    KeyedInstrument
+    {
+      Objects.requireNonNull(instrument, "instrument");
+    }
+  }
+
   private record StereoSample(
     NTSampleBuilderType left,
     NTSampleBuilderType right)
@@ -122,260 +217,129 @@ public final class CalFont
   }
 
   /**
-   * Add all of the snare samples.
+   * Add a left and right zone for each sample of the given family.
    */
 
-  private static void addSnareSampleDefinitions(
-    final SortedMap<Integer, List<StereoSample>> snareSamples,
-    final NTInstrumentBuilderType sfInstrument)
+  private static void addFamilyZones(
+    final NTInstrumentBuilderType sfInstrument,
+    final CalDrumFamily family,
+    final List<CalZone> zones,
+    final List<StereoSample> samples)
   {
-    for (final var snareEntry : snareSamples.entrySet()) {
-      final var rootNote =
-        snareEntry.getKey().intValue();
-      final var samples =
-        snareEntry.getValue();
-
-      final var velocityRegionSize = 128 / samples.size();
-      var velocityLow = 0;
-      var velocityHigh = velocityLow + velocityRegionSize;
-
-      for (final var sample : samples) {
-        final var zoneL = sfInstrument.addZone();
-        zoneL.addKeyRangeGenerator(rootNote, rootNote);
-        zoneL.addVelocityRangeGenerator(velocityLow, velocityHigh);
-        zoneL.addGenerator(
-          NTGenerators.findForName("sampleModes").orElseThrow(),
-          NTGenericAmount.of(0));
-        zoneL.addSampleGenerator(sample.left);
-
-        // Hard pan left
-        zoneL.addGenerator(
-          NTGenerators.findForName("pan").orElseThrow(),
-          NTGenericAmount.of(0xfe10)
-        );
-
-        final var zoneR = sfInstrument.addZone();
-        zoneR.addKeyRangeGenerator(rootNote, rootNote);
-        zoneR.addVelocityRangeGenerator(velocityLow, velocityHigh);
-        zoneR.addGenerator(
-          NTGenerators.findForName("sampleModes").orElseThrow(),
-          NTGenericAmount.of(0));
-        zoneR.addSampleGenerator(sample.right);
-
-        // Hard pan right
-        zoneR.addGenerator(
-          NTGenerators.findForName("pan").orElseThrow(),
-          NTGenericAmount.of(0x1f0)
-        );
-
-        velocityLow = velocityHigh + 1;
-        velocityHigh = Math.min(127, velocityHigh + velocityRegionSize);
+    for (final var zone : zones) {
+      if (zone.sample().family() != family) {
+        continue;
       }
+
+      final var generators = zoneGenerators(zone);
+      final var sample = samples.get(zone.index());
+      addZone(sfInstrument, zone, generators, PAN_HARD_LEFT, sample.left);
+      addZone(sfInstrument, zone, generators, PAN_HARD_RIGHT, sample.right);
     }
   }
 
-  private static List<StereoSample> addSnareSpecific(
-    final NTBuilderType builder,
-    final int rootNote,
-    final CalSnareTautnessKind tautnessKind,
-    final CalSnareStrikeKind strikeKind,
-    final CalSnareStrikeFiles strikeFiles)
-    throws IOException
+  private static void addZone(
+    final NTInstrumentBuilderType sfInstrument,
+    final CalZone zone,
+    final List<GeneratorValue> generators,
+    final List<GeneratorValue> panGenerators,
+    final NTSampleBuilderType sample)
   {
-    final var samples = new ArrayList<StereoSample>();
-    for (final var entry : strikeFiles.filesByVelocity().entrySet()) {
-      final var velocity = entry.getKey();
-      final var file = entry.getValue();
-
-      final var sampleNameL =
-        String.format(
-          "SNARE_%s_%s_%02d_L",
-          tautnessKind.shortName(),
-          strikeKind.shortName(),
-          velocity
-        );
+    final var rootNote = zone.sample().rootNote();
+    final var sfZone = sfInstrument.addZone();
+    sfZone.addKeyRangeGenerator(rootNote, rootNote);
+    sfZone.addVelocityRangeGenerator(zone.velocityLow(), zone.velocityHigh());
+    for (final var generator : generators) {
+      sfZone.addGenerator(generator.generator(), generator.amount());
+    }
+    for (final var generator : panGenerators) {
+      sfZone.addGenerator(generator.generator(), generator.amount());
+    }
 
-      final var sampleNameR =
-        String.format(
-          "SNARE_%s_%s_%02d_R",
-          tautnessKind.shortName(),
-          strikeKind.shortName(),
-          velocity
-        );
+    /*
+     * The sample generator must be the last generator in the zone.
+     */
 
-      final var sampleL =
-        builder.addSample(sampleNameL);
-      final var sampleR =
-        builder.addSample(sampleNameR);
-
-      final SampleBufferType sampleBuffer;
-      try (var stream =
-             AudioSystem.getAudioInputStream(file.toFile())) {
-        sampleBuffer =
-          SampleBufferXMedia.sampleBufferOfStream(stream, CalFont::buffers);
-      } catch (final UnsupportedAudioFileException e) {
-        throw new IOException(e);
-      }
+    sfZone.addSampleGenerator(sample);
+  }
 
-      sampleL.setSampleRate((int) sampleBuffer.sampleRate());
-      sampleL.setPitchCorrection(0);
-      sampleL.setSampleCount(sampleBuffer.frames());
-      sampleL.setOriginalPitch(NTPitch.of(rootNote));
-      sampleL.setLoopStart(0L);
-      sampleL.setLoopEnd(sampleBuffer.frames() - 1L);
-      sampleL.setDataWriter(ch -> {
-        copySampleToChannel(sampleBuffer, sampleNameL, ch, 0);
-      });
-
-      sampleR.setSampleRate((int) sampleBuffer.sampleRate());
-      sampleR.setPitchCorrection(0);
-      sampleR.setSampleCount(sampleBuffer.frames());
-      sampleR.setOriginalPitch(NTPitch.of(rootNote));
-      sampleR.setLoopStart(0L);
-      sampleR.setLoopEnd(sampleBuffer.frames() - 1L);
-      sampleR.setDataWriter(ch -> {
-        copySampleToChannel(sampleBuffer, sampleNameL, ch, 1);
-      });
-
-      sampleR.setLinked(sampleL.sampleIndex());
-      samples.add(new StereoSample(sampleL, sampleR));
+  private CalDecodedSampleType decode(
+    final CalSampleArena arena,
+    final CalDecodedSampleCache cache,
+    final Path file)
+    throws IOException
+  {
+    try (var stream = AudioSystem.getAudioInputStream(file.toFile())) {
+      return switch (this.sampleStore) {
+        case HEAP -> CalDecodedSampleHeap.read(stream);
+        case OFF_HEAP -> CalDecodedSampleOffHeap.read(arena, stream);
+        case SPILL -> cache.add(CalDecodedSampleHeap.read(stream));
+      };
+    } catch (final UnsupportedAudioFileException e) {
+      throw new IOException(e);
     }
-    return List.copyOf(samples);
   }
 
   /**
-   * Add all of the bass drum samples.
+   * Estimate the memory used while decoding a sample: the 16-bit planar
+   * buffers it is read into. The frame count comes from the statistics
+   * recorded during conversion, falling back to the size of the file.
    */
 
-  private static void addBassDrumSampleDefinitions(
-    final List<StereoSample> bassDrumSamples,
-    final NTInstrumentBuilderType sfInstrument)
-  {
-    final var velocityRegionSize = 128 / bassDrumSamples.size();
-
-    var velocityLow = 0;
-    var velocityHigh = velocityLow + velocityRegionSize;
-
-    for (final var bdSample : bassDrumSamples) {
-      final var zoneL = sfInstrument.addZone();
-      zoneL.addKeyRangeGenerator(24, 24);
-      zoneL.addVelocityRangeGenerator(velocityLow, velocityHigh);
-      zoneL.addGenerator(
-        NTGenerators.findForName("decayVolEnv").orElseThrow(),
-        NTGenericAmount.of(702)
-      );
-      zoneL.addGenerator(
-        NTGenerators.findForName("sustainVolEnv").orElseThrow(),
-        NTGenericAmount.of(1440)
-      );
-      zoneL.addGenerator(
-        NTGenerators.findForName("sampleModes").orElseThrow(),
-        NTGenericAmount.of(0));
-
-      // Hard pan left
-      zoneL.addGenerator(
-        NTGenerators.findForName("pan").orElseThrow(),
-        NTGenericAmount.of(0xfe10)
-      );
-
-      zoneL.addSampleGenerator(bdSample.left);
-
-      final var zoneR = sfInstrument.addZone();
-      zoneR.addKeyRangeGenerator(24, 24);
-      zoneR.addVelocityRangeGenerator(velocityLow, velocityHigh);
-      zoneR.addGenerator(
-        NTGenerators.findForName("decayVolEnv").orElseThrow(),
-        NTGenericAmount.of(702)
-      );
-      zoneR.addGenerator(
-        NTGenerators.findForName("sustainVolEnv").orElseThrow(),
-        NTGenericAmount.of(1440)
-      );
-      zoneR.addGenerator(
-        NTGenerators.findForName("sampleModes").orElseThrow(),
-        NTGenericAmount.of(0));
-
-      // Hard pan right
-      zoneR.addGenerator(
-        NTGenerators.findForName("pan").orElseThrow(),
-        NTGenericAmount.of(0x1f0)
-      );
-
-      zoneR.addSampleGenerator(bdSample.right);
-
-      velocityLow = velocityHigh + 1;
-      velocityHigh = Math.min(127, velocityHigh + velocityRegionSize);
-    }
-  }
-
-  private List<StereoSample> addBassDrum(
-    final NTBuilderType builder)
+  private static long decodeCost(
+    final CalSampleSpec spec)
     throws IOException
   {
-    final List<StereoSample> samples = new ArrayList<>();
-
-    for (final var entry : this.bassDrum.byVelocity().entrySet()) {
-      final var velocity = entry.getKey();
-      final var file = entry.getValue();
-
-      final var sampleNameL =
-        String.format("BD_%02d_L", velocity);
-      final var sampleNameR =
-        String.format("BD_%02d_R", velocity);
-
-      final var sampleL =
-        builder.addSample(sampleNameL);
-      final var sampleR =
-        builder.addSample(sampleNameR);
-
-      final SampleBufferType sampleBuffer;
-      try (var stream =
-             AudioSystem.getAudioInputStream(file.toFile())) {
-        sampleBuffer =
-          SampleBufferXMedia.sampleBufferOfStream(stream, CalFont::buffers);
-      } catch (final UnsupportedAudioFileException e) {
-        throw new IOException(e);
-      }
-
-      sampleL.setSampleRate((int) sampleBuffer.sampleRate());
-      sampleL.setPitchCorrection(0);
-      sampleL.setSampleCount(sampleBuffer.frames());
-      sampleL.setOriginalPitch(NTPitch.of(24));
-      sampleL.setLoopStart(0L);
-      sampleL.setLoopEnd(sampleBuffer.frames() - 1L);
-      sampleL.setDataWriter(ch -> {
-        copySampleToChannel(sampleBuffer, sampleNameL, ch, 0);
-      });
-
-      sampleR.setSampleRate((int) sampleBuffer.sampleRate());
-      sampleR.setPitchCorrection(0);
-      sampleR.setSampleCount(sampleBuffer.frames());
-      sampleR.setOriginalPitch(NTPitch.of(24));
-      sampleR.setLoopStart(0L);
-      sampleR.setLoopEnd(sampleBuffer.frames() - 1L);
-      sampleR.setDataWriter(ch -> {
-        copySampleToChannel(sampleBuffer, sampleNameL, ch, 1);
-      });
-
-      sampleR.setLinked(sampleL.sampleIndex());
-      samples.add(new StereoSample(sampleL, sampleR));
+    final var statisticsFile = CalSampleStatistics.fileFor(spec.file());
+    if (Files.isRegularFile(statisticsFile)) {
+      final var statistics = CalSampleStatistics.load(statisticsFile);
+      return statistics.frames() * statistics.channels().size() * 2L;
     }
-    return List.copyOf(samples);
+    return Files.size(spec.file());
   }
 
-  private static SampleBufferType buffers(
-    final int channels,
-    final long frames,
-    final double sampleRate)
+  private static StereoSample addSample(
+    final NTBuilderType builder,
+    final CalSampleSpec spec,
+    final CalDecodedSampleType sampleBuffer)
   {
-    return SampleBufferDouble.createWithHeapBuffer(
-      channels,
-      frames,
-      sampleRate
-    );
+    final var sampleNameL =
+      spec.nameLeft();
+    final var sampleNameR =
+      spec.nameRight();
+
+    final var sampleL =
+      builder.addSample(sampleNameL);
+    final var sampleR =
+      builder.addSample(sampleNameR);
+
+    sampleL.setSampleRate((int) sampleBuffer.sampleRate());
+    sampleL.setPitchCorrection(0);
+    sampleL.setSampleCount(sampleBuffer.frames());
+    sampleL.setOriginalPitch(NTPitch.of(spec.rootNote()));
+    sampleL.setLoopStart(0L);
+    sampleL.setLoopEnd(sampleBuffer.frames() - 1L);
+    sampleL.setDataWriter(ch -> {
+      LOG.debug("copying: {}", sampleNameL);
+      sampleBuffer.writeChannel(0, ch);
+    });
+
+    sampleR.setSampleRate((int) sampleBuffer.sampleRate());
+    sampleR.setPitchCorrection(0);
+    sampleR.setSampleCount(sampleBuffer.frames());
+    sampleR.setOriginalPitch(NTPitch.of(spec.rootNote()));
+    sampleR.setLoopStart(0L);
+    sampleR.setLoopEnd(sampleBuffer.frames() - 1L);
+    sampleR.setDataWriter(ch -> {
+      LOG.debug("copying: {}", sampleNameR);
+      sampleBuffer.writeChannel(1, ch);
+    });
+
+    sampleR.setLinked(sampleL.sampleIndex());
+    return new StereoSample(sampleL, sampleR);
   }
 
-  private static String textResource(
+  static String textResource(
     final String name)
     throws IOException
   {
@@ -386,46 +350,33 @@ public final class CalFont
     }
   }
 
-  private static void copySampleToChannel(
-    final SampleBufferType source,
-    final String sampleName,
-    final SeekableByteChannel channel,
-    final int channelIndex)
-    throws IOException
-  {
-    LOG.debug("copying: {}", sampleName);
-
-    final var buffer =
-      ByteBuffer.allocate(Math.toIntExact(source.frames() * 2L))
-        .order(LITTLE_ENDIAN);
-
-    final var frame = new double[source.channels()];
-    for (var index = 0L; index < source.frames(); ++index) {
-      source.frameGetExact(index, frame);
-
-      final var frame_d = frame[channelIndex];
-      final var frame_s = frame_d * 32767.0;
-      final var frame_i = (short) frame_s;
-      buffer.putShort(frame_i);
-    }
-
-    buffer.flip();
-    final var wrote = channel.write(buffer);
-    if (wrote != buffer.capacity()) {
-      throw new IOException(
-        new StringBuilder(32)
-          .append("Wrote too few bytes (wrote ")
-          .append(wrote)
-          .append(" expected ")
-          .append(buffer.capacity())
-          .append(")")
-          .toString()
-      );
-    }
-  }
+  /**
+   * Add the nodes that decode every sample and write the kit to the given
+   * graph. The decoding of each sample depends on the node that produces the
+   * sample's file, if there is one.
+   *
+   * @param graph      The graph
+   * @param fileOutput The output file
+   * @param arena      The arena holding any off-heap sample data, which
+   *                   must remain open until the graph has been executed
+   * @param cache      The store holding any spilled sample data, which
+   *                   must remain open until the graph has been executed
+   * @param producers  The nodes that produce sample files, by file
+   * @param sinks      The additional outputs that receive the decoded
+   *                   samples and their zones
+   *
+   * @return The node that writes the kit
+   *
+   * @throws IOException On errors
+   */
 
-  public void write(
-    final Path fileOutput)
+  CalBuildGraph.Node addNodes(
+    final CalBuildGraph graph,
+    final Path fileOutput,
+    final CalSampleArena arena,
+    final CalDecodedSampleCache cache,
+    final Map<Path, CalBuildGraph.Node> producers,
+    final List<CalKitSinkType> sinks)
     throws IOException
   {
     final var builder = this.builders.createBuilder();
@@ -442,236 +393,181 @@ public final class CalFont
         .build()
     );
 
-    final var snareSamples =
-      this.addSnare(builder);
-    final var bdSamples =
-      this.addBassDrum(builder);
-    final var hiHatSamples =
-      this.addHiHat(builder);
-    final var crashSamples =
-      this.addCrash(builder);
-
-    instrumentWithVelocity(
-      builder,
-      snareSamples,
-      bdSamples,
-      hiHatSamples,
-      crashSamples
-    );
-
-    this.serialize(fileOutput, builder);
-  }
+    /*
+     * Samples are decoded in parallel, but the decoded buffers are indexed
+     * by their position in the canonical plan and registered with the
+     * builder strictly in plan order. Sample indices, and therefore the
+     * entire output, do not depend on the order in which decoding completes.
+     */
 
-  private SortedMap<Integer, List<StereoSample>> addCrash(
-    final NTBuilderType builder)
-    throws IOException
-  {
-    final AtomicInteger rootNote =
-      new AtomicInteger(60);
-    final SortedMap<Integer, List<StereoSample>> samples =
-      new TreeMap<>();
-
-    try {
-      this.crash.crash().forEach((strikeKind, strikeFiles) -> {
-        try {
-          final var rootNoteNow = rootNote.get();
-          final var sampleList =
-            addCrashSpecific(
-              builder,
-              rootNoteNow,
-              strikeKind,
-              strikeFiles
-            );
-
-          samples.put(Integer.valueOf(rootNoteNow), sampleList);
-          rootNote.incrementAndGet();
-        } catch (final IOException e) {
-          throw new UncheckedIOException(e);
-        }
-      });
-    } catch (final UncheckedIOException e) {
-      throw e.getCause();
+    final var plan =
+      CalSamplePlan.create(this.snare, this.bassDrum, this.hiHats, this.crash);
+    final var specs =
+      plan.samples();
+    final var buffers =
+      new CalDecodedSampleType[specs.size()];
+
+    final var decodes = new ArrayList<CalBuildGraph.Node>(specs.size());
+    final var weights = new long[specs.size()];
+    var totalWeight = 0L;
+    for (var index = 0; index < specs.size(); ++index) {
+      final var spec = specs.get(index);
+      final var slot = index;
+      final var producer = Optional.ofNullable(producers.get(spec.file()));
+      final var weight =
+        Files.isRegularFile(spec.file())
+          ? decodeCost(spec)
+          : producer.map(CalBuildGraph.Node::weight).orElse(0L).longValue();
+
+      decodes.add(
+        graph.add(
+          "decode",
+          spec.file().toString(),
+          weight,
+          node -> decodeCost(spec),
+          Optional.empty(),
+          input -> {
+            buffers[slot] = this.decode(arena, cache, spec.file());
+          },
+          producer.stream().toList()
+        )
+      );
+      weights[slot] = weight;
+      totalWeight += weight;
     }
-    return samples;
-  }
 
-  private static List<StereoSample> addCrashSpecific(
-    final NTBuilderType builder,
-    final int rootNote,
-    final CalZildjian18StrikeKind strikeKind,
-    final CalZildjian18StrikeFiles strikeFiles)
-    throws IOException
-  {
-    final var samples = new ArrayList<StereoSample>();
-    for (final var entry : strikeFiles.filesByVelocity().entrySet()) {
-      final var velocity = entry.getKey();
-      final var file = entry.getValue();
-
-      final var sampleNameL =
-        String.format(
-          "CRASH_%s_%02d_L",
-          strikeKind.shortName(),
-          velocity
-        );
+    /*
+     * Each sink writes each sample as soon as it has been decoded, and
+     * writes the zones once it has written every sample, concurrently with
+     * the registration and writing of the samples in the SF2 file.
+     */
 
-      final var sampleNameR =
-        String.format(
-          "CRASH_%s_%02d_R",
-          strikeKind.shortName(),
-          velocity
+    for (final var sink : sinks) {
+      final var writes = new ArrayList<CalBuildGraph.Node>(specs.size());
+      for (var index = 0; index < specs.size(); ++index) {
+        final var spec = specs.get(index);
+        final var slot = index;
+        writes.add(
+          graph.add(
+            sink.format(),
+            spec.name(),
+            weights[slot],
+            node -> 0L,
+            Optional.empty(),
+            input -> sink.writeSample(spec, buffers[slot]),
+            List.of(decodes.get(slot))
+          )
         );
-
-      final var sampleL =
-        builder.addSample(sampleNameL);
-      final var sampleR =
-        builder.addSample(sampleNameR);
-
-      final SampleBufferType sampleBuffer;
-      try (var stream =
-             AudioSystem.getAudioInputStream(file.toFile())) {
-        sampleBuffer =
-          SampleBufferXMedia.sampleBufferOfStream(stream, CalFont::buffers);
-      } catch (final UnsupportedAudioFileException e) {
-        throw new IOException(e);
       }
 
-      sampleL.setSampleRate((int) sampleBuffer.sampleRate());
-      sampleL.setPitchCorrection(0);
-      sampleL.setSampleCount(sampleBuffer.frames());
-      sampleL.setOriginalPitch(NTPitch.of(rootNote));
-      sampleL.setLoopStart(0L);
-      sampleL.setLoopEnd(sampleBuffer.frames() - 1L);
-      sampleL.setDataWriter(ch -> {
-        copySampleToChannel(sampleBuffer, sampleNameL, ch, 0);
-      });
-
-      sampleR.setSampleRate((int) sampleBuffer.sampleRate());
-      sampleR.setPitchCorrection(0);
-      sampleR.setSampleCount(sampleBuffer.frames());
-      sampleR.setOriginalPitch(NTPitch.of(rootNote));
-      sampleR.setLoopStart(0L);
-      sampleR.setLoopEnd(sampleBuffer.frames() - 1L);
-      sampleR.setDataWriter(ch -> {
-        copySampleToChannel(sampleBuffer, sampleNameL, ch, 1);
-      });
-
-      sampleR.setLinked(sampleL.sampleIndex());
-      samples.add(new StereoSample(sampleL, sampleR));
+      graph.add(
+        sink.format(),
+        sink.file().toString(),
+        0L,
+        node -> 0L,
+        Optional.empty(),
+        input -> sink.writeZones(CalZone.of(specs, this.chokeFamilies)),
+        writes
+      );
     }
-    return List.copyOf(samples);
+
+    final var samples = new ArrayList<StereoSample>(specs.size());
+    final var register =
+      graph.add(
+        "register",
+        "samples",
+        0L,
+        node -> 0L,
+        Optional.empty(),
+        input -> {
+          for (var index = 0; index < specs.size(); ++index) {
+            samples.add(addSample(builder, specs.get(index), buffers[index]));
+          }
+        },
+        decodes
+      );
+
+    final var zones =
+      graph.add(
+        "zones",
+        this.layout.externalName(),
+        0L,
+        node -> 0L,
+        Optional.empty(),
+        input -> this.addZones(builder, specs, samples),
+        List.of(register)
+      );
+
+    return graph.add(
+      "write",
+      fileOutput.toString(),
+      totalWeight,
+      node -> 0L,
+      Optional.empty(),
+      input -> this.serialize(fileOutput, builder),
+      List.of(zones)
+    );
   }
 
-  private SortedMap<Integer, List<StereoSample>> addHiHat(
-    final NTBuilderType builder)
-    throws IOException
+  private void addZones(
+    final NTBuilderType builder,
+    final List<CalSampleSpec> specs,
+    final List<StereoSample> samples)
   {
-    final AtomicInteger rootNote =
-      new AtomicInteger(42);
-    final SortedMap<Integer, List<StereoSample>> samples =
-      new TreeMap<>();
-
-    try {
-      this.hiHats.hiHats().forEach((opennessKind, opennessFiles) -> {
-        opennessFiles.filesByKind().forEach((strikeKind, strikeFiles) -> {
-          try {
-            final var rootNoteNow = rootNote.get();
-            final var sampleList =
-              addHiHatSpecific(
-                builder,
-                rootNoteNow,
-                opennessKind,
-                strikeKind,
-                strikeFiles
-              );
-
-            samples.put(Integer.valueOf(rootNoteNow), sampleList);
-            rootNote.incrementAndGet();
-          } catch (final IOException e) {
-            throw new UncheckedIOException(e);
-          }
-        });
-      });
-    } catch (final UncheckedIOException e) {
-      throw e.getCause();
+    final var zones = CalZone.of(specs, this.chokeFamilies);
+    switch (this.layout) {
+      case COMBINED -> {
+        instrumentWithVelocity(builder, zones, samples);
+      }
+      case PER_DRUM -> {
+        instrumentsPerDrum(builder, zones, samples);
+      }
     }
-    return samples;
   }
 
-  private static List<StereoSample> addHiHatSpecific(
-    final NTBuilderType builder,
-    final int rootNote,
-    final CalChinaHiHatOpennessKind opennessKind,
-    final CalChinaHiHatStrikeKind strikeKind,
-    final CalChinaHiHatStrikeFiles strikeFiles)
-    throws IOException
+  /**
+   * The generators of the given zone, other than the key, velocity and pan
+   * generators. A zone with an exclusive class terminates any note of the
+   * same class that is still sounding when it starts. The left and right
+   * zones of a sample are started by the same note, and so do not choke
+   * each other.
+   */
+
+  private static List<GeneratorValue> zoneGenerators(
+    final CalZone zone)
   {
-    final var samples = new ArrayList<StereoSample>();
-    for (final var entry : strikeFiles.filesByVelocity().entrySet()) {
-      final var velocity = entry.getKey();
-      final var file = entry.getValue();
-
-      final var sampleNameL =
-        String.format(
-          "HH_%s_%s_%02d_L",
-          opennessKind.shortName(),
-          strikeKind.shortName(),
-          velocity
-        );
+    final var byFamily =
+      zone.exclusiveClass() != 0 ? FAMILY_GENERATORS_CHOKED : FAMILY_GENERATORS;
+    return byFamily.get(zone.sample().family());
+  }
 
-      final var sampleNameR =
-        String.format(
-          "HH_%s_%s_%02d_R",
-          opennessKind.shortName(),
-          strikeKind.shortName(),
-          velocity
-        );
+  private static Map<CalDrumFamily, List<GeneratorValue>> familyGenerators(
+    final boolean choked)
+  {
+    final var results =
+      new EnumMap<CalDrumFamily, List<GeneratorValue>>(CalDrumFamily.class);
 
-      final var sampleL =
-        builder.addSample(sampleNameL);
-      final var sampleR =
-        builder.addSample(sampleNameR);
-
-      final SampleBufferType sampleBuffer;
-      try (var stream =
-             AudioSystem.getAudioInputStream(file.toFile())) {
-        sampleBuffer =
-          SampleBufferXMedia.sampleBufferOfStream(stream, CalFont::buffers);
-      } catch (final UnsupportedAudioFileException e) {
-        throw new IOException(e);
+    for (final var family : CalDrumFamily.values()) {
+      final var generators = new ArrayList<GeneratorValue>(3);
+      if (family == CalDrumFamily.BASS_DRUM) {
+        generators.addAll(BASS_DRUM_ENVELOPE);
       }
-
-      sampleL.setSampleRate((int) sampleBuffer.sampleRate());
-      sampleL.setPitchCorrection(0);
-      sampleL.setSampleCount(sampleBuffer.frames());
-      sampleL.setOriginalPitch(NTPitch.of(rootNote));
-      sampleL.setLoopStart(0L);
-      sampleL.setLoopEnd(sampleBuffer.frames() - 1L);
-      sampleL.setDataWriter(ch -> {
-        copySampleToChannel(sampleBuffer, sampleNameL, ch, 0);
-      });
-
-      sampleR.setSampleRate((int) sampleBuffer.sampleRate());
-      sampleR.setPitchCorrection(0);
-      sampleR.setSampleCount(sampleBuffer.frames());
-      sampleR.setOriginalPitch(NTPitch.of(rootNote));
-      sampleR.setLoopStart(0L);
-      sampleR.setLoopEnd(sampleBuffer.frames() - 1L);
-      sampleR.setDataWriter(ch -> {
-        copySampleToChannel(sampleBuffer, sampleNameL, ch, 1);
-      });
-
-      sampleR.setLinked(sampleL.sampleIndex());
-      samples.add(new StereoSample(sampleL, sampleR));
+      if (choked) {
+        generators.add(
+          generatorValue(
+            GENERATOR_EXCLUSIVE_CLASS,
+            CalZone.exclusiveClassOf(family))
+        );
+      }
+      results.put(family, List.copyOf(generators));
     }
-    return List.copyOf(samples);
+    return results;
   }
 
   private static void instrumentWithVelocity(
     final NTBuilderType builder,
-    final SortedMap<Integer, List<StereoSample>> snareSamples,
-    final List<StereoSample> bassDrumSamples,
-    final SortedMap<Integer, List<StereoSample>> hiHatSamples,
-    final SortedMap<Integer, List<StereoSample>> crashSamples)
+    final List<CalZone> zones,
+    final List<StereoSample> samples)
   {
     final var sfInstrument =
       builder.addInstrument("calaisNoVelocity");
@@ -687,8 +583,83 @@ public final class CalFont
         .addKeyRangeGenerator(0, 127)
         .addInstrumentGenerator(sfInstrument);
 
+    addInstrumentGlobalZone(sfInstrument);
+
+    for (final var family : CalDrumFamily.values()) {
+      addFamilyZones(sfInstrument, family, zones, samples);
+    }
+  }
+
+  private static String instrumentName(
+    final CalDrumFamily family)
+  {
+    return switch (family) {
+      case SNARE -> "calaisSnare";
+      case BASS_DRUM -> "calaisBassDrum";
+      case HI_HAT -> "calaisHiHat";
+      case CRASH -> "calaisCrash";
+    };
+  }
+
+  /**
+   * Create one instrument and one preset per drum family, and a kit preset
+   * that references each instrument over the range of keys it occupies.
+   */
+
+  private static void instrumentsPerDrum(
+    final NTBuilderType builder,
+    final List<CalZone> zones,
+    final List<StereoSample> samples)
+  {
+    final var instruments = new ArrayList<KeyedInstrument>(4);
+
+    for (final var family : CalDrumFamily.values()) {
+      var keyLow = Integer.MAX_VALUE;
+      var keyHigh = Integer.MIN_VALUE;
+      for (final var zone : zones) {
+        if (zone.sample().family() == family) {
+          keyLow = Math.min(keyLow, zone.sample().rootNote());
+          keyHigh = Math.max(keyHigh, zone.sample().rootNote());
+        }
+      }
+      if (keyLow > keyHigh) {
+        continue;
+      }
+
+      final var instrument = builder.addInstrument(instrumentName(family));
+      addInstrumentGlobalZone(instrument);
+      addFamilyZones(instrument, family, zones, samples);
+      instruments.add(new KeyedInstrument(instrument, keyLow, keyHigh));
+    }
+
+    /*
+     * The kit preset is added first so that it receives the same preset
+     * number as the single preset of the combined layout.
+     */
+
+    final var kit =
+      builder.addPreset(NTBankIndex.of(128), "calais");
+
+    for (final var keyed : instruments) {
+      kit.addZone()
+        .addKeyRangeGenerator(keyed.keyLow(), keyed.keyHigh())
+        .addInstrumentGenerator(keyed.instrument());
+    }
+
+    for (final var keyed : instruments) {
+      final var instrument = keyed.instrument();
+      builder.addPreset(NTBankIndex.of(128), instrument.name().value())
+        .addZone()
+        .addKeyRangeGenerator(0, 127)
+        .addInstrumentGenerator(instrument);
+    }
+  }
+
+  private static void addInstrumentGlobalZone(
+    final NTInstrumentBuilderType instrument)
+  {
     final var instrumentZoneGlobal =
-      sfInstrument.addZone();
+      instrument.addZone();
 
     /*
      * Allow for controlling the pitch via the pitch wheel.
@@ -696,9 +667,8 @@ public final class CalFont
 
     instrumentZoneGlobal.addModulator(
       526,
-      NTGenerators.findForName("coarseTune")
-        .orElseThrow(() -> new IllegalStateException("Missing generator")),
-      (short) 12,
+      GENERATOR_COARSE_TUNE,
+      (short) CalZone.PITCH_WHEEL_RANGE,
       512,
       NTTransforms.find(0)
     );
@@ -711,115 +681,20 @@ public final class CalFont
 
     instrumentZoneGlobal.addModulator(
       258,
-      NTGenerators.findForName("initialAttenuation")
-        .orElseThrow(() -> new IllegalStateException("Missing generator")),
+      GENERATOR_INITIAL_ATTENUATION,
       (short) -256,
       0,
       NTTransforms.find(0)
     );
 
-    addSnareSampleDefinitions(snareSamples, sfInstrument);
-    addBassDrumSampleDefinitions(bassDrumSamples, sfInstrument);
-    addHiHatSampleDefinitions(hiHatSamples, sfInstrument);
-    addCrashSampleDefinitions(crashSamples, sfInstrument);
-  }
-
-  private static void addCrashSampleDefinitions(
-    final SortedMap<Integer, List<StereoSample>> crashSamples,
-    final NTInstrumentBuilderType sfInstrument)
-  {
-    for (final var crashEntry : crashSamples.entrySet()) {
-      final var rootNote =
-        crashEntry.getKey().intValue();
-      final var samples =
-        crashEntry.getValue();
-
-      final var velocityRegionSize = 128 / samples.size();
-      var velocityLow = 0;
-      var velocityHigh = velocityLow + velocityRegionSize;
-
-      for (final var sample : samples) {
-        final var zoneL = sfInstrument.addZone();
-        zoneL.addKeyRangeGenerator(rootNote, rootNote);
-        zoneL.addVelocityRangeGenerator(velocityLow, velocityHigh);
-        zoneL.addGenerator(
-          NTGenerators.findForName("sampleModes").orElseThrow(),
-          NTGenericAmount.of(0));
-        zoneL.addSampleGenerator(sample.left);
-
-        // Hard pan left
-        zoneL.addGenerator(
-          NTGenerators.findForName("pan").orElseThrow(),
-          NTGenericAmount.of(0xfe10)
-        );
-
-        final var zoneR = sfInstrument.addZone();
-        zoneR.addKeyRangeGenerator(rootNote, rootNote);
-        zoneR.addVelocityRangeGenerator(velocityLow, velocityHigh);
-        zoneR.addGenerator(
-          NTGenerators.findForName("sampleModes").orElseThrow(),
-          NTGenericAmount.of(0));
-        zoneR.addSampleGenerator(sample.right);
-
-        // Hard pan right
-        zoneR.addGenerator(
-          NTGenerators.findForName("pan").orElseThrow(),
-          NTGenericAmount.of(0x1f0)
-        );
-
-        velocityLow = velocityHigh + 1;
-        velocityHigh = Math.min(127, velocityHigh + velocityRegionSize);
-      }
-    }
-  }
-
-  private static void addHiHatSampleDefinitions(
-    final SortedMap<Integer, List<StereoSample>> hiHatSamples,
-    final NTInstrumentBuilderType sfInstrument)
-  {
-    for (final var hiHatEntry : hiHatSamples.entrySet()) {
-      final var rootNote =
-        hiHatEntry.getKey().intValue();
-      final var samples =
-        hiHatEntry.getValue();
-
-      final var velocityRegionSize = 128 / samples.size();
-      var velocityLow = 0;
-      var velocityHigh = velocityLow + velocityRegionSize;
-
-      for (final var sample : samples) {
-        final var zoneL = sfInstrument.addZone();
-        zoneL.addKeyRangeGenerator(rootNote, rootNote);
-        zoneL.addVelocityRangeGenerator(velocityLow, velocityHigh);
-        zoneL.addGenerator(
-          NTGenerators.findForName("sampleModes").orElseThrow(),
-          NTGenericAmount.of(0));
-        zoneL.addSampleGenerator(sample.left);
-
-        // Hard pan left
-        zoneL.addGenerator(
-          NTGenerators.findForName("pan").orElseThrow(),
-          NTGenericAmount.of(0xfe10)
-        );
-
-        final var zoneR = sfInstrument.addZone();
-        zoneR.addKeyRangeGenerator(rootNote, rootNote);
-        zoneR.addVelocityRangeGenerator(velocityLow, velocityHigh);
-        zoneR.addGenerator(
-          NTGenerators.findForName("sampleModes").orElseThrow(),
-          NTGenericAmount.of(0));
-        zoneR.addSampleGenerator(sample.right);
-
-        // Hard pan right
-        zoneR.addGenerator(
-          NTGenerators.findForName("pan").orElseThrow(),
-          NTGenericAmount.of(0x1f0)
-        );
+    /*
+     * Every zone plays its sample without looping.
+     */
 
-        velocityLow = velocityHigh + 1;
-        velocityHigh = Math.min(127, velocityHigh + velocityRegionSize);
-      }
-    }
+    instrumentZoneGlobal.addGenerator(
+      GENERATOR_SAMPLE_MODES,
+      NTGenericAmount.of(0)
+    );
   }
 
   private void serialize(
@@ -837,40 +712,4 @@ public final class CalFont
       throw new IOException(e);
     }
   }
-
-  private SortedMap<Integer, List<StereoSample>> addSnare(
-    final NTBuilderType builder)
-    throws IOException
-  {
-    final AtomicInteger rootNote =
-      new AtomicInteger(36);
-    final SortedMap<Integer, List<StereoSample>> samples =
-      new TreeMap<>();
-
-    try {
-      this.snare.snare().forEach((tautnessKind, tautnessFiles) -> {
-        tautnessFiles.filesByKind().forEach((strikeKind, strikeFiles) -> {
-          try {
-            final var rootNoteNow = rootNote.get();
-            final var sampleList =
-              addSnareSpecific(
-                builder,
-                rootNoteNow,
-                tautnessKind,
-                strikeKind,
-                strikeFiles
-              );
-
-            samples.put(Integer.valueOf(rootNoteNow), sampleList);
-            rootNote.incrementAndGet();
-          } catch (final IOException e) {
-            throw new UncheckedIOException(e);
-          }
-        });
-      });
-    } catch (final UncheckedIOException e) {
-      throw e.getCause();
-    }
-    return samples;
-  }
 }
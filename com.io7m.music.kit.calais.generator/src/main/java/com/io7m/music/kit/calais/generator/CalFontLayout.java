@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+/**
+ * The arrangement of instruments and presets in the generated kit.
+ */
+
+public enum CalFontLayout
+{
+  /**
+   * A single instrument containing every drum, under a single preset.
+   */
+
+  COMBINED("combined"),
+
+  /**
+   * One instrument and one preset per drum family, plus a kit preset that
+   * references every instrument through preset zones. Hosts that load
+   * samples per preset can then load a single drum without loading the
+   * entire kit.
+   */
+
+  PER_DRUM("per-drum");
+
+  private final String externalName;
+
+  CalFontLayout(
+    final String inExternalName)
+  {
+    this.externalName = inExternalName;
+  }
+
+  /**
+   * @return The name used on the command line
+   */
+
+  public String externalName()
+  {
+    return this.externalName;
+  }
+
+  /**
+   * Find the layout with the given command-line name.
+   *
+   * @param name The name
+   *
+   * @return The layout
+   */
+
+  public static CalFontLayout ofExternalName(
+    final String name)
+  {
+    for (final var layout : values()) {
+      if (layout.externalName.equals(name)) {
+        return layout;
+      }
+    }
+    throw new IllegalArgumentException(
+      String.format("Unrecognized layout: %s", name)
+    );
+  }
+}
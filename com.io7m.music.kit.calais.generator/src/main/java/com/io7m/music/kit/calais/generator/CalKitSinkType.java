@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * An output that receives the decoded samples of a kit, and the zones that
+ * map them onto the keyboard, alongside the SF2 file. A sink receives the
+ * same decoded samples as the SF2 file, so an additional output format
+ * costs no additional decoding.
+ */
+
+interface CalKitSinkType
+{
+  /**
+   * @return The name of the output format, such as {@code sfz}
+   */
+
+  String format();
+
+  /**
+   * @return The main file written by the sink
+   */
+
+  Path file();
+
+  /**
+   * Write a single decoded sample. This is called once for each sample, as
+   * soon as the sample has been decoded, and possibly concurrently with
+   * calls for other samples.
+   *
+   * @param sample The sample
+   * @param data   The decoded data of the sample
+   *
+   * @throws IOException On errors
+   */
+
+  void writeSample(
+    CalSampleSpec sample,
+    CalDecodedSampleType data)
+    throws IOException;
+
+  /**
+   * Write the mapping of the samples onto the keyboard. This is called once
+   * every sample has been written.
+   *
+   * @param zones The zones
+   *
+   * @throws IOException On errors
+   */
+
+  void writeZones(
+    List<CalZone> zones)
+    throws IOException;
+}
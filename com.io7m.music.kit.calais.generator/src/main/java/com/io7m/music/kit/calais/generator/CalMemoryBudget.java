@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+/**
+ * A budget of memory shared between concurrently executing tasks. A task
+ * acquires its estimated size before it starts and releases it when it
+ * completes. A task whose estimate exceeds the entire budget is admitted
+ * only when no other task holds any of the budget, so that it runs alone
+ * rather than never running at all.
+ */
+
+final class CalMemoryBudget
+{
+  private final long capacity;
+  private long used;
+
+  CalMemoryBudget(
+    final long inCapacity)
+  {
+    if (inCapacity < 1L) {
+      throw new IllegalArgumentException(
+        String.format("Memory budget %d must be >= 1", Long.valueOf(inCapacity))
+      );
+    }
+    this.capacity = inCapacity;
+  }
+
+  /**
+   * Wait until the given amount fits within the budget, and then take it.
+   *
+   * @param size The estimated size
+   *
+   * @return The amount taken, to be passed to {@link #release(long)}
+   *
+   * @throws InterruptedException If interrupted whilst waiting
+   */
+
+  synchronized long acquire(
+    final long size)
+    throws InterruptedException
+  {
+    final var amount = Math.min(Math.max(0L, size), this.capacity);
+    while (this.used + amount > this.capacity) {
+      this.wait();
+    }
+    this.used += amount;
+    return amount;
+  }
+
+  /**
+   * Return an amount previously taken.
+   *
+   * @param amount The amount
+   */
+
+  synchronized void release(
+    final long amount)
+  {
+    this.used -= amount;
+    this.notifyAll();
+  }
+
+  /**
+   * @return The size of the budget
+   */
+
+  long capacity()
+  {
+    return this.capacity;
+  }
+}
@@ -0,0 +1,647 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A cache of decoded 16-bit PCM data that may be shared between workspaces
+ * and machines.
+ *
+ * <p>Entries are keyed by a SHA-256 hash of the source file's contents and
+ * of the parameters of the conversion to 16-bit PCM, so an entry is valid
+ * wherever and whenever its source was found. Each entry is a small header
+ * followed by little-endian 16-bit PCM data. Entries are written to a
+ * temporary file and atomically moved into place, and are never modified
+ * afterwards, so any number of processes may read and write the cache at
+ * once.</p>
+ *
+ * <p>Reading an entry updates its modification time. When the entries
+ * exceed the capacity of the cache, the least recently used entries are
+ * deleted by whichever process holds the lock file. Deleting an entry that
+ * is being read does not affect the reader on platforms that allow it, and
+ * fails harmlessly on those that do not.</p>
+ */
+
+final class CalPCMCache
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalPCMCache.class);
+
+  private static final byte[] MAGIC =
+    "CALPCM16".getBytes(US_ASCII);
+
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 32;
+
+  /**
+   * The parameters of the conversion. This must change whenever the
+   * conversion of a given source file could produce different data.
+   */
+
+  private static final String PARAMETERS =
+    "calais-pcm-cache 1\nformat=pcm_signed_16_le\nconversion=jdk\n";
+
+  /**
+   * In-progress writes are deleted by eviction if they are older than this.
+   */
+
+  private static final Duration ABANDONED =
+    Duration.ofDays(1L);
+
+  /**
+   * The lock that prevents threads in this JVM from evicting at the same
+   * time, as a file lock cannot be held twice by the same JVM.
+   */
+
+  private static final ReentrantLock EVICTION_LOCK =
+    new ReentrantLock();
+
+  private final Path directory;
+  private final long capacity;
+  private final AtomicLong storedSinceEviction;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder stored;
+
+  /**
+   * Create a cache.
+   *
+   * @param inDirectory The cache directory, which is created if necessary
+   * @param inCapacity  The maximum total size of the entries in bytes
+   */
+
+  CalPCMCache(
+    final Path inDirectory,
+    final long inCapacity)
+  {
+    this.directory =
+      Objects.requireNonNull(inDirectory, "directory").toAbsolutePath();
+    this.capacity =
+      inCapacity;
+    this.storedSinceEviction =
+      new AtomicLong(0L);
+    this.hits =
+      new LongAdder();
+    this.misses =
+      new LongAdder();
+    this.stored =
+      new LongAdder();
+  }
+
+  /**
+   * Compute the cache key of a source file.
+   *
+   * @param source   The source file
+   * @param contents The contents of the file, if they have been read already
+   *
+   * @return The key
+   *
+   * @throws IOException On errors
+   */
+
+  String key(
+    final Path source,
+    final Optional<ByteBuffer> contents)
+    throws IOException
+  {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    digest.update(PARAMETERS.getBytes(UTF_8));
+    if (contents.isPresent()) {
+      digest.update(contents.get().duplicate());
+    } else {
+      try (var channel = FileChannel.open(source, READ)) {
+        final var buffer = ByteBuffer.allocate(65536);
+        while (channel.read(buffer) != -1) {
+          digest.update(buffer.flip());
+          buffer.clear();
+        }
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private Path fileFor(
+    final String key)
+  {
+    return this.directory
+      .resolve(key.substring(0, 2))
+      .resolve(key + ".pcm");
+  }
+
+  /**
+   * Open the entry with the given key.
+   *
+   * @param key The key
+   *
+   * @return The entry, or nothing if there is no valid entry
+   *
+   * @throws IOException On errors
+   */
+
+  Optional<Hit> find(
+    final String key)
+    throws IOException
+  {
+    final var file = this.fileFor(key);
+
+    final FileChannel channel;
+    try {
+      channel = FileChannel.open(file, READ);
+    } catch (final NoSuchFileException e) {
+      this.misses.increment();
+      return Optional.empty();
+    }
+
+    final Hit hit;
+    try {
+      final var header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining()) {
+        if (channel.read(header) == -1) {
+          break;
+        }
+      }
+      header.flip();
+      hit = parse(header, channel);
+    } catch (final IOException e) {
+      channel.close();
+      throw e;
+    }
+
+    if (hit == null) {
+      channel.close();
+      LOG.warn("{}: discarding malformed cache entry", file);
+      Files.deleteIfExists(file);
+      this.misses.increment();
+      return Optional.empty();
+    }
+
+    try {
+      Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+    } catch (final IOException e) {
+      LOG.debug("{}: could not update access time: {}", file, e.getMessage());
+    }
+
+    LOG.debug("{}: cache hit", file);
+    this.hits.increment();
+    return Optional.of(hit);
+  }
+
+  /**
+   * An entry found in the cache. The decoded data follows the header in the
+   * entry's file, and remains readable until the entry is closed, even if
+   * the entry is evicted in the meantime.
+   *
+   * @param channel The entry's file
+   * @param format  The format of the decoded data
+   * @param frames  The number of frames of decoded data
+   */
+
+  record Hit(
+    FileChannel channel,
+    AudioFormat format,
+    long frames)
+    implements AutoCloseable
+  {
+    Hit
+    {
+      Objects.requireNonNull(channel, "channel");
+      Objects.requireNonNull(format, "format");
+    }
+
+    /**
+     * @return The position of the decoded data in the entry's file
+     */
+
+    long position()
+    {
+      return HEADER_SIZE;
+    }
+
+    /**
+     * @return The size of the decoded data in bytes
+     */
+
+    long size()
+    {
+      return this.frames * this.format.getFrameSize();
+    }
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      this.channel.close();
+    }
+  }
+
+  private static Hit parse(
+    final ByteBuffer header,
+    final FileChannel channel)
+    throws IOException
+  {
+    if (header.remaining() != HEADER_SIZE) {
+      return null;
+    }
+
+    final var magic = new byte[MAGIC.length];
+    header.get(magic);
+    final var version = header.getInt();
+    final var channels = header.getInt();
+    final var sampleRate = Float.intBitsToFloat(header.getInt());
+    final var frames = header.getLong();
+
+    if (!Arrays.equals(magic, MAGIC)
+        || version != VERSION
+        || channels < 1
+        || frames < 0L) {
+      return null;
+    }
+
+    final var frameSize = channels * 2L;
+    if (channel.size() != HEADER_SIZE + frames * frameSize) {
+      return null;
+    }
+
+    return new Hit(channel, formatOf(sampleRate, channels), frames);
+  }
+
+  private static AudioFormat formatOf(
+    final float sampleRate,
+    final int channels)
+  {
+    return new AudioFormat(
+      AudioFormat.Encoding.PCM_SIGNED,
+      sampleRate,
+      16,
+      channels,
+      channels * 2,
+      sampleRate,
+      false
+    );
+  }
+
+  /**
+   * Store the data read from the given stream as the entry with the given
+   * key. The returned stream yields the same data as the given stream, and
+   * the entry is stored once the stream has been read to the end. If the
+   * entry cannot be written, the data is still returned, and the cache is
+   * left unchanged.
+   *
+   * @param key    The key
+   * @param stream The decoded data
+   *
+   * @return A stream of the decoded data
+   */
+
+  AudioInputStream store(
+    final String key,
+    final AudioInputStream stream)
+  {
+    final var format = stream.getFormat();
+    final var frames = stream.getFrameLength();
+    if (!format.matches(formatOf(format.getSampleRate(), format.getChannels()))
+        || frames == AudioSystem.NOT_SPECIFIED) {
+      return stream;
+    }
+
+    final var file = this.fileFor(key);
+    final Path temporary;
+    final FileChannel channel;
+    try {
+      Files.createDirectories(file.getParent());
+      temporary = Files.createTempFile(file.getParent(), key, ".tmp");
+      channel = FileChannel.open(temporary, WRITE);
+      channel.position(HEADER_SIZE);
+    } catch (final IOException e) {
+      LOG.warn("{}: could not write cache entry: {}", file, e.getMessage());
+      return stream;
+    }
+
+    final var header = ByteBuffer.allocate(HEADER_SIZE);
+    header.put(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(format.getChannels());
+    header.putInt(Float.floatToIntBits(format.getSampleRate()));
+    header.putLong(frames);
+    header.flip();
+
+    final var writer =
+      new Writer(
+        this,
+        stream,
+        file,
+        temporary,
+        channel,
+        header,
+        frames * format.getFrameSize()
+      );
+    return new AudioInputStream(writer, format, frames);
+  }
+
+  private void stored(
+    final long size)
+  {
+    this.stored.add(size);
+    if (this.storedSinceEviction.addAndGet(size) > this.capacity / 4L) {
+      this.storedSinceEviction.set(0L);
+      this.evict();
+    }
+  }
+
+  /**
+   * Delete the least recently used entries until the entries fit within the
+   * capacity of the cache, unless another thread or process is already
+   * doing so, and log the statistics of the cache.
+   */
+
+  void finish()
+  {
+    this.evict();
+
+    LOG.debug(
+      "pcm cache: {} hits, {} misses, {} bytes stored",
+      Long.valueOf(this.hits.sum()),
+      Long.valueOf(this.misses.sum()),
+      Long.valueOf(this.stored.sum())
+    );
+  }
+
+  private void evict()
+  {
+    if (!Files.isDirectory(this.directory)) {
+      return;
+    }
+    if (!EVICTION_LOCK.tryLock()) {
+      return;
+    }
+
+    try (var channel =
+           FileChannel.open(this.directory.resolve("lock"), CREATE, WRITE);
+         var lock = channel.tryLock()) {
+      if (lock != null) {
+        this.evictLocked();
+      }
+    } catch (final IOException e) {
+      LOG.warn("{}: eviction failed: {}", this.directory, e.getMessage());
+    } finally {
+      EVICTION_LOCK.unlock();
+    }
+  }
+
+  private record Entry(
+    Path file,
+    long size,
+    FileTime time)
+  {
+
+  }
+
+  private void evictLocked()
+    throws IOException
+  {
+    final var abandoned = Instant.now().minus(ABANDONED);
+    final var entries = new ArrayList<Entry>();
+    var total = 0L;
+
+    try (var files = Files.walk(this.directory, 2)) {
+      for (final var file : (Iterable<Path>) files::iterator) {
+        final var name = file.getFileName().toString();
+        final var isEntry = name.endsWith(".pcm");
+        final var isTemporary = name.endsWith(".tmp");
+        if (!isEntry && !isTemporary) {
+          continue;
+        }
+
+        try {
+          final var time = Files.getLastModifiedTime(file);
+          if (isTemporary) {
+            if (time.toInstant().isBefore(abandoned)) {
+              Files.deleteIfExists(file);
+            }
+            continue;
+          }
+          final var size = Files.size(file);
+          entries.add(new Entry(file, size, time));
+          total += size;
+        } catch (final IOException e) {
+          // Deleted or being replaced by another process
+        }
+      }
+    }
+
+    if (total <= this.capacity) {
+      return;
+    }
+
+    entries.sort(Comparator.comparing(Entry::time));
+    var evicted = 0;
+    for (final var entry : entries) {
+      if (total <= this.capacity) {
+        break;
+      }
+      try {
+        Files.deleteIfExists(entry.file);
+        total -= entry.size;
+        ++evicted;
+      } catch (final IOException e) {
+        LOG.debug("{}: could not evict: {}", entry.file, e.getMessage());
+      }
+    }
+
+    LOG.debug(
+      "pcm cache: evicted {} entries, {} bytes remain",
+      Integer.valueOf(evicted),
+      Long.valueOf(total)
+    );
+  }
+
+  /**
+   * A stream that copies the data it reads into a temporary file, and moves
+   * the file into the cache once all of the data has been read.
+   */
+
+  private static final class Writer extends InputStream
+  {
+    private final CalPCMCache cache;
+    private final InputStream delegate;
+    private final Path file;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final ByteBuffer header;
+    private final long expected;
+    private long written;
+    private boolean writing;
+
+    Writer(
+      final CalPCMCache inCache,
+      final InputStream inDelegate,
+      final Path inFile,
+      final Path inTemporary,
+      final FileChannel inChannel,
+      final ByteBuffer inHeader,
+      final long inExpected)
+    {
+      this.cache =
+        Objects.requireNonNull(inCache, "cache");
+      this.delegate =
+        Objects.requireNonNull(inDelegate, "delegate");
+      this.file =
+        Objects.requireNonNull(inFile, "file");
+      this.temporary =
+        Objects.requireNonNull(inTemporary, "temporary");
+      this.channel =
+        Objects.requireNonNull(inChannel, "channel");
+      this.header =
+        Objects.requireNonNull(inHeader, "header");
+      this.expected =
+        inExpected;
+      this.writing =
+        true;
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      final var single = new byte[1];
+      final var count = this.read(single, 0, 1);
+      return count == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(
+      final byte[] buffer,
+      final int offset,
+      final int length)
+      throws IOException
+    {
+      final var count = this.delegate.read(buffer, offset, length);
+      if (count > 0 && this.writing) {
+        this.copy(ByteBuffer.wrap(buffer, offset, count));
+      }
+      if (count == -1 && this.writing) {
+        this.abandon();
+      }
+      return count;
+    }
+
+    @Override
+    public long skip(
+      final long count)
+      throws IOException
+    {
+      this.abandon();
+      return this.delegate.skip(count);
+    }
+
+    private void copy(
+      final ByteBuffer data)
+    {
+      try {
+        while (data.hasRemaining()) {
+          this.written += this.channel.write(data);
+        }
+        if (this.written == this.expected) {
+          this.commit();
+        } else if (this.written > this.expected) {
+          this.abandon();
+        }
+      } catch (final IOException e) {
+        LOG.warn(
+          "{}: could not write cache entry: {}", this.file, e.getMessage());
+        this.abandon();
+      }
+    }
+
+    private void commit()
+      throws IOException
+    {
+      while (this.header.hasRemaining()) {
+        this.channel.write(this.header, this.header.position());
+      }
+      this.channel.close();
+      Files.move(this.temporary, this.file, REPLACE_EXISTING, ATOMIC_MOVE);
+      this.writing = false;
+      LOG.debug("{}: stored", this.file);
+      this.cache.stored(HEADER_SIZE + this.written);
+    }
+
+    private void abandon()
+    {
+      if (!this.writing) {
+        return;
+      }
+      this.writing = false;
+      try {
+        this.channel.close();
+        Files.deleteIfExists(this.temporary);
+      } catch (final IOException e) {
+        LOG.debug("{}: {}", this.temporary, e.getMessage());
+      }
+    }
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      this.abandon();
+      this.delegate.close();
+    }
+  }
+}
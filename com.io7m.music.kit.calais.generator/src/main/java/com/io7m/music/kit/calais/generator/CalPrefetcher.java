@@ -0,0 +1,333 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A prefetcher that reads upcoming source files into memory ahead of the
+ * tasks that decode them.
+ *
+ * <p>Given the order in which files will be consumed, a coordinating
+ * virtual thread starts a virtual thread to read each file in turn, as long
+ * as fewer than {@code depth} files are held and the held files fit within
+ * a fixed memory capacity. A file is held until the task that consumes it
+ * closes it.</p>
+ *
+ * <p>A task never waits for a file that the prefetcher has not yet started
+ * to read: it claims the file and reads it from disk itself. Tasks therefore
+ * only wait for reads that are already in progress, so the prefetcher can
+ * never deadlock with the tasks that consume its files, and a prefetcher
+ * that falls behind costs nothing.</p>
+ */
+
+final class CalPrefetcher implements AutoCloseable
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalPrefetcher.class);
+
+  private static final int PENDING = 0;
+  private static final int READING = 1;
+  private static final int CLAIMED = 2;
+
+  private final int depth;
+  private final Semaphore slots;
+  private final CalMemoryBudget memory;
+  private final Map<Path, Entry> entries;
+  private final List<Thread> readers;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder waitNanos;
+  private Thread coordinator;
+
+  private static final class Entry
+  {
+    private final Path file;
+    private final AtomicInteger state;
+    private final AtomicBoolean released;
+    private final CompletableFuture<ByteBuffer> data;
+    private long granted;
+
+    Entry(
+      final Path inFile)
+    {
+      this.file = Objects.requireNonNull(inFile, "file");
+      this.state = new AtomicInteger(PENDING);
+      this.released = new AtomicBoolean(false);
+      this.data = new CompletableFuture<>();
+    }
+  }
+
+  /**
+   * A file taken from the prefetcher. Closing the file returns its memory
+   * to the prefetcher.
+   *
+   * @param contents The contents of the file, or nothing if the file was not
+   *                 prefetched and must be read from disk
+   * @param release  The action that returns the file's memory
+   */
+
+  record Prefetched(
+    Optional<ByteBuffer> contents,
+    Runnable release)
+    implements AutoCloseable
+  {
+    Prefetched
+    {
+      Objects.requireNonNull(contents, "contents");
+      Objects.requireNonNull(release, "release");
+    }
+
+    @Override
+    public void close()
+    {
+      this.release.run();
+    }
+  }
+
+  /**
+   * Create a prefetcher.
+   *
+   * @param inDepth    The maximum number of files held at once, or 0 to
+   *                   disable prefetching
+   * @param inCapacity The maximum number of bytes held at once
+   */
+
+  CalPrefetcher(
+    final int inDepth,
+    final long inCapacity)
+  {
+    this.depth =
+      inDepth;
+    this.slots =
+      new Semaphore(Math.max(1, inDepth));
+    this.memory =
+      new CalMemoryBudget(Math.max(1L, inCapacity));
+    this.entries =
+      new HashMap<>();
+    this.readers =
+      new ArrayList<>();
+    this.hits =
+      new LongAdder();
+    this.misses =
+      new LongAdder();
+    this.waitNanos =
+      new LongAdder();
+  }
+
+  /**
+   * Start reading the given files in order. This method must be called at
+   * most once, before any file is taken.
+   *
+   * @param files The files, in the order in which they will be consumed
+   */
+
+  void start(
+    final List<Path> files)
+  {
+    if (this.depth == 0) {
+      return;
+    }
+
+    final var order = new ArrayList<Entry>(files.size());
+    for (final var file : files) {
+      final var entry = new Entry(file);
+      this.entries.put(file, entry);
+      order.add(entry);
+    }
+
+    this.coordinator =
+      Thread.ofVirtual()
+        .name("com.io7m.music.kit.calais.prefetch")
+        .start(() -> this.run(order));
+  }
+
+  private void run(
+    final List<Entry> order)
+  {
+    try {
+      for (final var entry : order) {
+        if (entry.state.get() != PENDING) {
+          continue;
+        }
+
+        final long size;
+        try {
+          size = Files.size(entry.file);
+        } catch (final IOException e) {
+          continue;
+        }
+        if (size > this.memory.capacity() || size > Integer.MAX_VALUE) {
+          continue;
+        }
+
+        this.slots.acquire();
+        final var granted = this.memory.acquire(size);
+        entry.granted = granted;
+
+        if (!entry.state.compareAndSet(PENDING, READING)) {
+          this.memory.release(granted);
+          this.slots.release();
+          continue;
+        }
+
+        final var reader =
+          Thread.ofVirtual()
+            .name(String.format(
+              "com.io7m.music.kit.calais.prefetch[%s]",
+              entry.file.getFileName()))
+            .start(() -> read(entry, (int) size));
+
+        synchronized (this.readers) {
+          this.readers.add(reader);
+        }
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void read(
+    final Entry entry,
+    final int size)
+  {
+    try (var channel = FileChannel.open(entry.file, READ)) {
+      final var buffer = ByteBuffer.allocate(size);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) == -1) {
+          break;
+        }
+      }
+      entry.data.complete(buffer.flip());
+    } catch (final IOException | RuntimeException e) {
+      entry.data.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Take the given file. If the file has been read, or is being read, its
+   * contents are returned. Otherwise, the file is withdrawn from the
+   * prefetcher and nothing is returned.
+   *
+   * @param file The file
+   *
+   * @return The file
+   *
+   * @throws InterruptedIOException If interrupted whilst waiting for a read
+   */
+
+  Prefetched take(
+    final Path file)
+    throws InterruptedIOException
+  {
+    final var entry = this.entries.get(file);
+    if (entry == null) {
+      return new Prefetched(Optional.empty(), () -> { });
+    }
+
+    if (entry.state.compareAndSet(PENDING, CLAIMED)) {
+      this.misses.increment();
+      return new Prefetched(Optional.empty(), () -> { });
+    }
+    if (entry.state.get() != READING) {
+      return new Prefetched(Optional.empty(), () -> { });
+    }
+
+    final var timeThen = System.nanoTime();
+    try {
+      final var data = entry.data.get();
+      this.hits.increment();
+      return new Prefetched(Optional.of(data), () -> this.release(entry));
+    } catch (final InterruptedException e) {
+      this.release(entry);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted whilst prefetching");
+    } catch (final ExecutionException e) {
+      this.release(entry);
+      this.misses.increment();
+      LOG.debug("{}: prefetch failed: {}", file, e.getCause().getMessage());
+      return new Prefetched(Optional.empty(), () -> { });
+    } finally {
+      this.waitNanos.add(System.nanoTime() - timeThen);
+    }
+  }
+
+  private void release(
+    final Entry entry)
+  {
+    if (entry.released.compareAndSet(false, true)) {
+      this.memory.release(entry.granted);
+      this.slots.release();
+    }
+  }
+
+  @Override
+  public void close()
+    throws InterruptedIOException
+  {
+    if (this.coordinator == null) {
+      return;
+    }
+
+    final List<Thread> stopping;
+    try {
+      this.coordinator.interrupt();
+      this.coordinator.join();
+
+      synchronized (this.readers) {
+        stopping = List.copyOf(this.readers);
+      }
+      for (final var reader : stopping) {
+        reader.interrupt();
+        reader.join();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted during shutdown");
+    }
+
+    LOG.debug(
+      "prefetch: {} hits, {} misses, {} ms waiting for reads in progress",
+      Long.valueOf(this.hits.sum()),
+      Long.valueOf(this.misses.sum()),
+      Long.valueOf(this.waitNanos.sum() / 1_000_000L)
+    );
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+/**
+ * The means by which the SF2 builder and writer providers are located.
+ */
+
+public enum CalProviderWiring
+{
+  /**
+   * Locate providers using {@link java.util.ServiceLoader}.
+   */
+
+  SERVICE_LOADER("service-loader"),
+
+  /**
+   * Instantiate the vanilla providers directly, avoiding a service scan of
+   * the class path. This is the faster option for short-lived generator
+   * processes.
+   */
+
+  DIRECT("direct");
+
+  private final String externalName;
+
+  CalProviderWiring(
+    final String inExternalName)
+  {
+    this.externalName = inExternalName;
+  }
+
+  /**
+   * @return The name used on the command line
+   */
+
+  public String externalName()
+  {
+    return this.externalName;
+  }
+
+  /**
+   * Find the wiring with the given command-line name.
+   *
+   * @param name The name
+   *
+   * @return The wiring
+   */
+
+  public static CalProviderWiring ofExternalName(
+    final String name)
+  {
+    for (final var wiring : values()) {
+      if (wiring.externalName.equals(name)) {
+        return wiring;
+      }
+    }
+    throw new IllegalArgumentException(
+      String.format("Unrecognized provider wiring: %s", name)
+    );
+  }
+}
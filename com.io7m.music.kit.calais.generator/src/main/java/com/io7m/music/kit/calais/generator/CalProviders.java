@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import com.io7m.jnoisetype.vanilla.NTBuilders;
+import com.io7m.jnoisetype.vanilla.NTWriters;
+import com.io7m.jnoisetype.writer.api.NTBuilderProviderType;
+import com.io7m.jnoisetype.writer.api.NTWriterProviderType;
+
+import java.util.Objects;
+import java.util.ServiceLoader;
+
+/**
+ * The SF2 builder and writer providers used by the generator.
+ *
+ * @param builders The builder provider
+ * @param writers  The writer provider
+ */
+
+public record CalProviders(
+  NTBuilderProviderType builders,
+  NTWriterProviderType writers)
+{
+  public CalProviders
+  {
+    Objects.requireNonNull(builders, "builders");
+    Objects.requireNonNull(writers, "writers");
+  }
+
+  /**
+   * Locate providers using the given wiring.
+   *
+   * @param wiring The wiring
+   *
+   * @return The providers
+   */
+
+  public static CalProviders create(
+    final CalProviderWiring wiring)
+  {
+    return switch (wiring) {
+      case SERVICE_LOADER -> serviceLoaded();
+      case DIRECT -> direct();
+    };
+  }
+
+  private static CalProviders direct()
+  {
+    return new CalProviders(new NTBuilders(), new NTWriters());
+  }
+
+  private static CalProviders serviceLoaded()
+  {
+    final var builders =
+      ServiceLoader.load(NTBuilderProviderType.class)
+        .findFirst()
+        .orElseThrow(() -> new IllegalStateException(
+          "No builder service available"));
+
+    final var writers =
+      ServiceLoader.load(NTWriterProviderType.class)
+        .findFirst()
+        .orElseThrow(() -> new IllegalStateException(
+          "No writer service available"));
+
+    return new CalProviders(builders, writers);
+  }
+}
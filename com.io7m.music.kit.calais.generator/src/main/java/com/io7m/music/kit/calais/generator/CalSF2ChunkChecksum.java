@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.util.Objects;
+
+/**
+ * The checksum of the data of a single RIFF chunk.
+ *
+ * @param path   The path of the chunk, such as {@code LIST:pdta/shdr}
+ * @param offset The offset of the chunk data within the file
+ * @param size   The size of the chunk data in bytes
+ * @param crc32c The CRC-32C of the chunk data
+ */
+
+public record CalSF2ChunkChecksum(
+  String path,
+  long offset,
+  long size,
+  long crc32c)
+{
+  public CalSF2ChunkChecksum
+  {
+    Objects.requireNonNull(path, "path");
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format(
+      "%s @%d [%d] crc32c %08x",
+      this.path,
+      Long.valueOf(this.offset),
+      Long.valueOf(this.size),
+      Long.valueOf(this.crc32c)
+    );
+  }
+}
@@ -0,0 +1,759 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32C;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A structural verifier for written SF2 files. The file is memory-mapped and
+ * the RIFF structure is walked in place; every sample header is checked
+ * against the sample data, the samples are checked not to overlap and to be
+ * followed by the zero padding points that the specification requires,
+ * every bag, generator, instrument and sample index is checked against the
+ * table it refers to, and a CRC-32C is computed for the data of every leaf
+ * chunk other than the sample data. Apart from the padding points, the
+ * sample data is never read, so the time taken does not grow with the size
+ * of the samples.
+ */
+
+public final class CalSF2Verifier
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalSF2Verifier.class);
+
+  /**
+   * The number of zero-valued sample points that must follow each sample.
+   */
+
+  private static final int SAMPLE_PADDING_POINTS = 46;
+
+  private static final int GENERATOR_INSTRUMENT = 41;
+  private static final int GENERATOR_KEY_RANGE = 43;
+  private static final int GENERATOR_VELOCITY_RANGE = 44;
+  private static final int GENERATOR_SAMPLE_ID = 53;
+
+  private static final int SAMPLE_TYPE_RIGHT = 2;
+  private static final int SAMPLE_TYPE_LEFT = 4;
+  private static final int SAMPLE_TYPE_LINKED = 8;
+  private static final int SAMPLE_TYPE_ROM = 0x8000;
+
+  private static final List<PdtaTable> PDTA_TABLES = List.of(
+    new PdtaTable("phdr", 38, 2),
+    new PdtaTable("pbag", 4, 2),
+    new PdtaTable("pmod", 10, 1),
+    new PdtaTable("pgen", 4, 1),
+    new PdtaTable("inst", 22, 2),
+    new PdtaTable("ibag", 4, 2),
+    new PdtaTable("imod", 10, 1),
+    new PdtaTable("igen", 4, 1),
+    new PdtaTable("shdr", 46, 2)
+  );
+
+  private final Path file;
+  private final FileChannel channel;
+  private final List<String> errors;
+  private final List<CalSF2ChunkChecksum> checksums;
+  private final Map<String, ByteBuffer> tables;
+  private long sampleDataOffset;
+  private long sampleDataPoints;
+
+  private CalSF2Verifier(
+    final Path inFile,
+    final FileChannel inChannel)
+  {
+    this.file =
+      Objects.requireNonNull(inFile, "file");
+    this.channel =
+      Objects.requireNonNull(inChannel, "channel");
+    this.errors =
+      new ArrayList<>();
+    this.checksums =
+      new ArrayList<>();
+    this.tables =
+      new HashMap<>();
+  }
+
+  private record Chunk(
+    String id,
+    long offset,
+    long size)
+  {
+    Chunk
+    {
+      Objects.requireNonNull(id, "id");
+    }
+
+    long dataOffset()
+    {
+      return this.offset + 8L;
+    }
+
+    long dataEnd()
+    {
+      return this.dataOffset() + this.size;
+    }
+  }
+
+  private record SampleRange(
+    int index,
+    long start,
+    long end)
+  {
+
+  }
+
+  private record PdtaTable(
+    String id,
+    int recordSize,
+    int minimumRecords)
+  {
+    PdtaTable
+    {
+      Objects.requireNonNull(id, "id");
+    }
+  }
+
+  /**
+   * Verify the structure of the given SF2 file.
+   *
+   * @param file The file
+   *
+   * @return The checksums of every leaf chunk other than the sample data,
+   * in file order
+   *
+   * @throws IOException If the file cannot be read, or is malformed
+   */
+
+  public static List<CalSF2ChunkChecksum> verify(
+    final Path file)
+    throws IOException
+  {
+    Objects.requireNonNull(file, "file");
+
+    final var timeThen = System.nanoTime();
+    try (var channel = FileChannel.open(file, READ)) {
+      final var verifier = new CalSF2Verifier(file, channel);
+      verifier.run();
+
+      if (!verifier.errors.isEmpty()) {
+        throw new IOException(
+          String.format(
+            "Structural verification of %s failed:%n  %s",
+            file,
+            String.join(System.lineSeparator() + "  ", verifier.errors)
+          )
+        );
+      }
+
+      final var timeNow = System.nanoTime();
+      LOG.info(
+        "verified {} ({} chunks, {} sample points) in {} ms",
+        file,
+        Integer.valueOf(verifier.checksums.size()),
+        Long.valueOf(verifier.sampleDataPoints),
+        Long.valueOf((timeNow - timeThen) / 1_000_000L)
+      );
+      for (final var checksum : verifier.checksums) {
+        LOG.debug("chunk {}", checksum);
+      }
+      return List.copyOf(verifier.checksums);
+    }
+  }
+
+  private void error(
+    final String format,
+    final Object... arguments)
+  {
+    this.errors.add(String.format(format, arguments));
+  }
+
+  private ByteBuffer map(
+    final long offset,
+    final long size)
+    throws IOException
+  {
+    return this.channel.map(READ_ONLY, offset, size)
+      .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static String fourCC(
+    final ByteBuffer buffer,
+    final int offset)
+  {
+    final var bytes = new byte[4];
+    buffer.get(offset, bytes);
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  private static long u32(
+    final ByteBuffer buffer,
+    final int offset)
+  {
+    return Integer.toUnsignedLong(buffer.getInt(offset));
+  }
+
+  private static int u16(
+    final ByteBuffer buffer,
+    final int offset)
+  {
+    return Short.toUnsignedInt(buffer.getShort(offset));
+  }
+
+  private void run()
+    throws IOException
+  {
+    final var fileSize = this.channel.size();
+    if (fileSize < 12L) {
+      this.error(
+        "File is too short (%d bytes) to be a RIFF file",
+        Long.valueOf(fileSize)
+      );
+      return;
+    }
+
+    final var header = this.map(0L, 12L);
+    final var riffId = fourCC(header, 0);
+    final var riffSize = u32(header, 4);
+    final var formId = fourCC(header, 8);
+
+    if (!"RIFF".equals(riffId)) {
+      this.error("Expected a RIFF chunk, but found '%s'", riffId);
+      return;
+    }
+    if (!"sfbk".equals(formId)) {
+      this.error("Expected an sfbk form, but found '%s'", formId);
+      return;
+    }
+    if (8L + riffSize != fileSize) {
+      this.error(
+        "RIFF size %d does not match the file size %d",
+        Long.valueOf(riffSize + 8L),
+        Long.valueOf(fileSize)
+      );
+    }
+
+    final var lists =
+      this.chunks("RIFF:sfbk", 12L, Math.min(8L + riffSize, fileSize));
+    final var expected = List.of("INFO", "sdta", "pdta");
+    if (lists.size() != expected.size()) {
+      this.error(
+        "Expected %d top-level chunks, but found %d",
+        Integer.valueOf(expected.size()),
+        Integer.valueOf(lists.size())
+      );
+      return;
+    }
+
+    for (var index = 0; index < expected.size(); ++index) {
+      final var list = lists.get(index);
+      final var name = expected.get(index);
+      if (!"LIST".equals(list.id()) || list.size() < 4L) {
+        this.error("Expected LIST:%s, but found '%s'", name, list.id());
+        return;
+      }
+      final var listForm = fourCC(this.map(list.dataOffset(), 4L), 0);
+      if (!name.equals(listForm)) {
+        this.error("Expected LIST:%s, but found LIST:%s", name, listForm);
+        return;
+      }
+    }
+
+    this.checkInfo(lists.get(0));
+    this.checkSampleData(lists.get(1));
+    this.checkPresetData(lists.get(2));
+  }
+
+  /**
+   * Read the headers of the chunks contained within {@code [start, end)}.
+   */
+
+  private List<Chunk> chunks(
+    final String parent,
+    final long start,
+    final long end)
+    throws IOException
+  {
+    final var results = new ArrayList<Chunk>();
+    var offset = start;
+    while (offset < end) {
+      if (end - offset < 8L) {
+        this.error(
+          "%s: Truncated chunk header at offset %d",
+          parent,
+          Long.valueOf(offset)
+        );
+        break;
+      }
+
+      final var header = this.map(offset, 8L);
+      final var chunk = new Chunk(fourCC(header, 0), offset, u32(header, 4));
+      if (chunk.dataEnd() > end) {
+        this.error(
+          "%s/%s: Chunk at offset %d of size %d overruns its parent (end %d)",
+          parent,
+          chunk.id(),
+          Long.valueOf(offset),
+          Long.valueOf(chunk.size()),
+          Long.valueOf(end)
+        );
+        break;
+      }
+
+      results.add(chunk);
+      offset = chunk.dataEnd() + (chunk.size() & 1L);
+    }
+    return results;
+  }
+
+  private void checksum(
+    final String path,
+    final Chunk chunk)
+    throws IOException
+  {
+    final var crc = new CRC32C();
+    crc.update(this.map(chunk.dataOffset(), chunk.size()));
+    this.checksums.add(
+      new CalSF2ChunkChecksum(
+        path,
+        chunk.dataOffset(),
+        chunk.size(),
+        crc.getValue()
+      )
+    );
+  }
+
+  private void checkInfo(
+    final Chunk list)
+    throws IOException
+  {
+    final var found = new HashSet<String>();
+    for (final var chunk : this.chunks(
+      "LIST:INFO", list.dataOffset() + 4L, list.dataEnd())) {
+      found.add(chunk.id());
+      this.checksum("LIST:INFO/" + chunk.id(), chunk);
+    }
+
+    for (final var required : List.of("ifil", "isng", "INAM")) {
+      if (!found.contains(required)) {
+        this.error("LIST:INFO: Missing required chunk '%s'", required);
+      }
+    }
+  }
+
+  private void checkSampleData(
+    final Chunk list)
+    throws IOException
+  {
+    Chunk smpl = null;
+    Chunk sm24 = null;
+
+    for (final var chunk : this.chunks(
+      "LIST:sdta", list.dataOffset() + 4L, list.dataEnd())) {
+      switch (chunk.id()) {
+        case "smpl" -> smpl = chunk;
+        case "sm24" -> sm24 = chunk;
+        default -> {
+          this.error("LIST:sdta: Unexpected chunk '%s'", chunk.id());
+        }
+      }
+    }
+
+    if (smpl == null) {
+      if (sm24 != null) {
+        this.error("LIST:sdta: An sm24 chunk requires an smpl chunk");
+      }
+      return;
+    }
+
+    if ((smpl.size() & 1L) != 0L) {
+      this.error(
+        "LIST:sdta/smpl: Odd size %d for 16-bit data",
+        Long.valueOf(smpl.size())
+      );
+    }
+    this.sampleDataOffset = smpl.dataOffset();
+    this.sampleDataPoints = smpl.size() / 2L;
+
+    if (sm24 != null) {
+      final var expected =
+        this.sampleDataPoints + (this.sampleDataPoints & 1L);
+      if (sm24.size() != expected) {
+        this.error(
+          "LIST:sdta/sm24: Size %d does not match the %d smpl points",
+          Long.valueOf(sm24.size()),
+          Long.valueOf(this.sampleDataPoints)
+        );
+      }
+    }
+  }
+
+  private void checkPresetData(
+    final Chunk list)
+    throws IOException
+  {
+    final var chunks =
+      this.chunks("LIST:pdta", list.dataOffset() + 4L, list.dataEnd());
+
+    if (chunks.size() != PDTA_TABLES.size()) {
+      this.error(
+        "LIST:pdta: Expected %d chunks, but found %d",
+        Integer.valueOf(PDTA_TABLES.size()),
+        Integer.valueOf(chunks.size())
+      );
+      return;
+    }
+
+    for (var index = 0; index < PDTA_TABLES.size(); ++index) {
+      final var table = PDTA_TABLES.get(index);
+      final var chunk = chunks.get(index);
+      final var path = "LIST:pdta/" + chunk.id();
+
+      if (!table.id().equals(chunk.id())) {
+        this.error(
+          "LIST:pdta: Expected '%s' at position %d, but found '%s'",
+          table.id(),
+          Integer.valueOf(index),
+          chunk.id()
+        );
+        return;
+      }
+
+      this.checksum(path, chunk);
+
+      if (chunk.size() % table.recordSize() != 0L) {
+        this.error(
+          "%s: Size %d is not a multiple of the record size %d",
+          path,
+          Long.valueOf(chunk.size()),
+          Integer.valueOf(table.recordSize())
+        );
+        return;
+      }
+
+      final var records = chunk.size() / table.recordSize();
+      if (records < table.minimumRecords() || records > 65536L) {
+        this.error(
+          "%s: Invalid record count %d", path, Long.valueOf(records));
+        return;
+      }
+
+      this.tables.put(table.id(), this.map(chunk.dataOffset(), chunk.size()));
+    }
+
+    this.checkIndices("phdr", 38, 24, "pbag");
+    this.checkIndices("pbag", 4, 0, "pgen");
+    this.checkIndices("pbag", 4, 2, "pmod");
+    this.checkIndices("inst", 22, 20, "ibag");
+    this.checkIndices("ibag", 4, 0, "igen");
+    this.checkIndices("ibag", 4, 2, "imod");
+    this.checkPresetNumbers();
+    this.checkGenerators("pgen", GENERATOR_INSTRUMENT, "inst");
+    this.checkGenerators("igen", GENERATOR_SAMPLE_ID, "shdr");
+    this.checkSampleHeaders();
+  }
+
+  private int records(
+    final String id)
+  {
+    return this.tables.get(id).capacity() / tableRecordSize(id);
+  }
+
+  /**
+   * Check that the index field of each record in {@code id} is
+   * non-decreasing, and that the terminal record refers to the terminal
+   * record of {@code targetId}.
+   */
+
+  private void checkIndices(
+    final String id,
+    final int recordSize,
+    final int fieldOffset,
+    final String targetId)
+  {
+    final var buffer = this.tables.get(id);
+    final var count = this.records(id);
+    final var targetLast = this.records(targetId) - 1;
+
+    var previous = 0;
+    for (var index = 0; index < count; ++index) {
+      final var value = u16(buffer, index * recordSize + fieldOffset);
+      if (value < previous) {
+        this.error(
+          "%s[%d]: %s index %d is less than the preceding index %d",
+          id,
+          Integer.valueOf(index),
+          targetId,
+          Integer.valueOf(value),
+          Integer.valueOf(previous)
+        );
+        return;
+      }
+      if (value > targetLast) {
+        this.error(
+          "%s[%d]: %s index %d is out of range [0, %d]",
+          id,
+          Integer.valueOf(index),
+          targetId,
+          Integer.valueOf(value),
+          Integer.valueOf(targetLast)
+        );
+        return;
+      }
+      previous = value;
+    }
+
+    if (previous != targetLast) {
+      this.error(
+        "%s: Terminal record refers to %s[%d], not the terminal %s[%d]",
+        id,
+        targetId,
+        Integer.valueOf(previous),
+        targetId,
+        Integer.valueOf(targetLast)
+      );
+    }
+  }
+
+  private static int tableRecordSize(
+    final String id)
+  {
+    for (final var table : PDTA_TABLES) {
+      if (table.id().equals(id)) {
+        return table.recordSize();
+      }
+    }
+    throw new IllegalStateException(
+      String.format("Unrecognized table: %s", id)
+    );
+  }
+
+  private void checkPresetNumbers()
+  {
+    final var buffer = this.tables.get("phdr");
+    final var count = this.records("phdr") - 1;
+    final var seen = new HashSet<Integer>();
+
+    for (var index = 0; index < count; ++index) {
+      final var preset = u16(buffer, index * 38 + 20);
+      final var bank = u16(buffer, index * 38 + 22);
+      if (!seen.add(Integer.valueOf((bank << 16) | preset))) {
+        this.error(
+          "phdr[%d]: Duplicate preset %d in bank %d",
+          Integer.valueOf(index),
+          Integer.valueOf(preset),
+          Integer.valueOf(bank)
+        );
+      }
+    }
+  }
+
+  private void checkGenerators(
+    final String id,
+    final int referenceOperator,
+    final String targetId)
+  {
+    final var buffer = this.tables.get(id);
+    final var count = this.records(id) - 1;
+    final var targetCount = this.records(targetId) - 1;
+
+    for (var index = 0; index < count; ++index) {
+      final var operator = u16(buffer, index * 4);
+      final var amount = u16(buffer, index * 4 + 2);
+
+      if (operator == referenceOperator && amount >= targetCount) {
+        this.error(
+          "%s[%d]: Refers to %s[%d], but only %d exist",
+          id,
+          Integer.valueOf(index),
+          targetId,
+          Integer.valueOf(amount),
+          Integer.valueOf(targetCount)
+        );
+      }
+
+      if (operator == GENERATOR_KEY_RANGE
+          || operator == GENERATOR_VELOCITY_RANGE) {
+        final var low = amount & 0xff;
+        final var high = (amount >>> 8) & 0xff;
+        if (low > high || high > 127) {
+          this.error(
+            "%s[%d]: Invalid range [%d, %d]",
+            id,
+            Integer.valueOf(index),
+            Integer.valueOf(low),
+            Integer.valueOf(high)
+          );
+        }
+      }
+    }
+  }
+
+  private void checkSampleHeaders()
+    throws IOException
+  {
+    final var buffer = this.tables.get("shdr");
+    final var count = this.records("shdr") - 1;
+    final var ranges = new ArrayList<SampleRange>(count);
+
+    for (var index = 0; index < count; ++index) {
+      final var base = index * 46;
+      final var start = u32(buffer, base + 20);
+      final var end = u32(buffer, base + 24);
+      final var loopStart = u32(buffer, base + 28);
+      final var loopEnd = u32(buffer, base + 32);
+      final var sampleRate = u32(buffer, base + 36);
+      final var link = u16(buffer, base + 42);
+      final var type = u16(buffer, base + 44);
+
+      if ((type & SAMPLE_TYPE_ROM) != 0) {
+        continue;
+      }
+
+      if (start >= end || end > this.sampleDataPoints) {
+        this.error(
+          "shdr[%d]: Sample range [%d, %d) lies outside the %d smpl points",
+          Integer.valueOf(index),
+          Long.valueOf(start),
+          Long.valueOf(end),
+          Long.valueOf(this.sampleDataPoints)
+        );
+      } else {
+        ranges.add(new SampleRange(index, start, end));
+      }
+      if (loopStart < start || loopStart > loopEnd || loopEnd > end) {
+        this.error(
+          "shdr[%d]: Loop [%d, %d] lies outside the sample [%d, %d)",
+          Integer.valueOf(index),
+          Long.valueOf(loopStart),
+          Long.valueOf(loopEnd),
+          Long.valueOf(start),
+          Long.valueOf(end)
+        );
+      }
+      if (sampleRate == 0L) {
+        this.error("shdr[%d]: Sample rate is zero", Integer.valueOf(index));
+      }
+
+      final var linkedTypes =
+        SAMPLE_TYPE_RIGHT | SAMPLE_TYPE_LEFT | SAMPLE_TYPE_LINKED;
+      if ((type & linkedTypes) != 0 && link >= count) {
+        this.error(
+          "shdr[%d]: Linked sample %d does not exist (%d samples)",
+          Integer.valueOf(index),
+          Integer.valueOf(link),
+          Integer.valueOf(count)
+        );
+      }
+    }
+
+    this.checkSamplePadding(ranges);
+  }
+
+  /**
+   * Check that no two samples overlap, and that each sample is followed by
+   * at least {@link #SAMPLE_PADDING_POINTS} zero-valued points before the
+   * next sample or the end of the sample data. Only the padding points are
+   * read.
+   */
+
+  private void checkSamplePadding(
+    final List<SampleRange> ranges)
+    throws IOException
+  {
+    ranges.sort(
+      Comparator.comparingLong(SampleRange::start)
+        .thenComparingLong(SampleRange::end)
+    );
+
+    final var padding =
+      ByteBuffer.allocate(SAMPLE_PADDING_POINTS * 2)
+        .order(ByteOrder.LITTLE_ENDIAN);
+
+    for (var index = 0; index < ranges.size(); ++index) {
+      final var range = ranges.get(index);
+      final var limit =
+        index + 1 < ranges.size()
+          ? ranges.get(index + 1).start()
+          : this.sampleDataPoints;
+
+      if (limit < range.end()) {
+        final var next = ranges.get(index + 1);
+        this.error(
+          "shdr[%d]: Sample range [%d, %d) overlaps shdr[%d] [%d, %d)",
+          Integer.valueOf(range.index()),
+          Long.valueOf(range.start()),
+          Long.valueOf(range.end()),
+          Integer.valueOf(next.index()),
+          Long.valueOf(next.start()),
+          Long.valueOf(next.end())
+        );
+        continue;
+      }
+
+      final var points = Math.min(limit - range.end(), SAMPLE_PADDING_POINTS);
+      if (points < SAMPLE_PADDING_POINTS) {
+        this.error(
+          "shdr[%d]: Sample is followed by %d padding points, not %d",
+          Integer.valueOf(range.index()),
+          Long.valueOf(points),
+          Integer.valueOf(SAMPLE_PADDING_POINTS)
+        );
+      }
+
+      padding.clear();
+      padding.limit((int) points * 2);
+      final var position = this.sampleDataOffset + range.end() * 2L;
+      while (padding.hasRemaining()) {
+        if (this.channel.read(padding, position + padding.position()) < 0) {
+          throw new IOException(
+            String.format("%s: Unexpected end of file", this.file));
+        }
+      }
+
+      for (var point = 0; point < points; ++point) {
+        if (padding.getShort(point * 2) != 0) {
+          this.error(
+            "shdr[%d]: Padding point %d after the sample is not zero",
+            Integer.valueOf(range.index()),
+            Integer.valueOf(point)
+          );
+          break;
+        }
+      }
+    }
+  }
+}
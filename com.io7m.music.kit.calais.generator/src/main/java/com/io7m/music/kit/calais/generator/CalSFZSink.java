@@ -0,0 +1,254 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * A sink that writes the kit as an SFZ instrument. Each channel of each
+ * sample is written to a mono WAV file in a directory next to the SFZ
+ * file, and each zone becomes a pair of regions panned left and right, as
+ * in the SF2 file. The articulations of a choked family are placed in
+ * groups that turn each other off. The velocity curve is left to the
+ * player.
+ */
+
+public final class CalSFZSink implements CalKitSinkType
+{
+  private static final String SUFFIX = ".sfz";
+
+  private final Path file;
+  private final Path sampleDirectory;
+
+  private CalSFZSink(
+    final Path inFile)
+  {
+    this.file =
+      Objects.requireNonNull(inFile, "file");
+    this.sampleDirectory =
+      sampleDirectoryFor(inFile);
+  }
+
+  /**
+   * Create a sink.
+   *
+   * @param file The SFZ file
+   *
+   * @return A new sink
+   */
+
+  static CalSFZSink create(
+    final Path file)
+  {
+    return new CalSFZSink(file);
+  }
+
+  /**
+   * @param target The SF2 file
+   *
+   * @return The SFZ file written alongside the given SF2 file
+   */
+
+  public static Path fileFor(
+    final Path target)
+  {
+    final var name = target.getFileName().toString();
+    final var base =
+      name.toLowerCase(Locale.ROOT).endsWith(".sf2")
+        ? name.substring(0, name.length() - 4)
+        : name;
+    return target.resolveSibling(base + SUFFIX);
+  }
+
+  private static Path sampleDirectoryFor(
+    final Path file)
+  {
+    final var name = file.getFileName().toString();
+    final var base =
+      name.endsWith(SUFFIX)
+        ? name.substring(0, name.length() - SUFFIX.length())
+        : name;
+    return file.resolveSibling(base + "_samples");
+  }
+
+  @Override
+  public String format()
+  {
+    return "sfz";
+  }
+
+  @Override
+  public Path file()
+  {
+    return this.file;
+  }
+
+  @Override
+  public void writeSample(
+    final CalSampleSpec sample,
+    final CalDecodedSampleType data)
+    throws IOException
+  {
+    Files.createDirectories(this.sampleDirectory);
+    writeChannel(data, 0, this.sampleDirectory.resolve(fileName(sample, 0)));
+    writeChannel(data, 1, this.sampleDirectory.resolve(fileName(sample, 1)));
+  }
+
+  private static void writeChannel(
+    final CalDecodedSampleType data,
+    final int channel,
+    final Path output)
+    throws IOException
+  {
+    final var outputTemporary =
+      output.resolveSibling(output.getFileName() + ".tmp");
+    CalWaveFile.writeChannel(data, channel, outputTemporary);
+    Files.move(outputTemporary, output, REPLACE_EXISTING, ATOMIC_MOVE);
+  }
+
+  private static String fileName(
+    final CalSampleSpec sample,
+    final int channel)
+  {
+    return (channel == 0 ? sample.nameLeft() : sample.nameRight()) + ".wav";
+  }
+
+  @Override
+  public void writeZones(
+    final List<CalZone> zones)
+    throws IOException
+  {
+    final var outputTemporary =
+      this.file.resolveSibling(this.file.getFileName() + ".tmp");
+    Files.writeString(outputTemporary, this.show(zones), UTF_8);
+    Files.move(outputTemporary, this.file, REPLACE_EXISTING, ATOMIC_MOVE);
+  }
+
+  private String show(
+    final List<CalZone> zones)
+  {
+    final var text = new StringBuilder(zones.size() * 160);
+    text.append("// Calais\n");
+    text.append("// Generated by com.io7m.music.kit.calais\n");
+    text.append('\n');
+    text.append("<control>\n");
+    text.append("default_path=")
+      .append(this.sampleDirectory.getFileName())
+      .append("/\n");
+    text.append('\n');
+    text.append("<global>\n");
+    text.append("loop_mode=no_loop\n");
+    text.append(
+      String.format(
+        Locale.ROOT,
+        "bend_up=%d bend_down=%d\n",
+        Integer.valueOf(CalZone.PITCH_WHEEL_RANGE * 100),
+        Integer.valueOf(-CalZone.PITCH_WHEEL_RANGE * 100))
+    );
+
+    CalDrumFamily family = null;
+    for (final var zone : zones) {
+      if (zone.sample().family() != family) {
+        family = zone.sample().family();
+        text.append('\n');
+        text.append("// ").append(family.externalName()).append('\n');
+        text.append("<group>\n");
+        if (family == CalDrumFamily.BASS_DRUM) {
+          text.append(bassDrumEnvelope());
+        }
+      }
+      text.append(region(zone, 0));
+      text.append(region(zone, 1));
+    }
+    return text.toString();
+  }
+
+  /**
+   * The bass drum envelope of the SF2 file, converted from timecents and
+   * centibels of attenuation to seconds and a percentage.
+   */
+
+  private static String bassDrumEnvelope()
+  {
+    final var decay =
+      Math.pow(2.0, CalZone.BASS_DRUM_DECAY / 1200.0);
+    final var sustain =
+      100.0 * Math.pow(10.0, -CalZone.BASS_DRUM_SUSTAIN / 200.0);
+
+    return String.format(
+      Locale.ROOT,
+      "ampeg_decay=%.3f ampeg_sustain=%.3f\n",
+      Double.valueOf(decay),
+      Double.valueOf(sustain)
+    );
+  }
+
+  private static String region(
+    final CalZone zone,
+    final int channel)
+  {
+    final var sample = zone.sample();
+    final var pan = channel == 0 ? CalZone.PAN_LEFT : CalZone.PAN_RIGHT;
+
+    /*
+     * The velocity range of a note with a single sample extends to 128,
+     * which is not a valid SFZ velocity.
+     */
+
+    final var velocityHigh = Math.min(127, zone.velocityHigh());
+    final var text = new StringBuilder(160);
+    text.append(
+      String.format(
+        Locale.ROOT,
+        "<region> sample=%s key=%d lovel=%d hivel=%d pan=%.1f",
+        fileName(sample, channel),
+        Integer.valueOf(sample.rootNote()),
+        Integer.valueOf(zone.velocityLow()),
+        Integer.valueOf(velocityHigh),
+        Double.valueOf(pan / 5.0))
+    );
+
+    /*
+     * The left and right regions of a sample are started by the same note,
+     * and must not turn each other off. Each channel of a choked family
+     * therefore has its own group, which turns off only the same channel
+     * of the family.
+     */
+
+    if (zone.exclusiveClass() != 0) {
+      final var group = zone.exclusiveClass() * 2 - 1 + channel;
+      text.append(
+        String.format(
+          Locale.ROOT,
+          " group=%d off_by=%d",
+          Integer.valueOf(group),
+          Integer.valueOf(group))
+      );
+    }
+    return text.append('\n').toString();
+  }
+}
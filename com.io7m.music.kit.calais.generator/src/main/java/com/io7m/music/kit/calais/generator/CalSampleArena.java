@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+
+/**
+ * An arena of off-heap memory from which sample data is allocated. Memory
+ * is allocated in large direct slabs and handed out as slices, so that a
+ * kit with thousands of samples needs only a handful of native allocations.
+ * Slices are writable by the thread that allocated them; the arena itself
+ * may be shared between threads.
+ *
+ * Closing the arena releases its references to every slab, after which
+ * no further allocations are possible. Direct buffers are returned to the
+ * operating system by the garbage collector once the last slice referring
+ * to them is unreachable.
+ */
+
+final class CalSampleArena implements AutoCloseable
+{
+  private static final int SLAB_SIZE = 64 * 1024 * 1024;
+
+  private final List<ByteBuffer> slabs;
+  private ByteBuffer current;
+  private long allocated;
+  private boolean closed;
+
+  private CalSampleArena()
+  {
+    this.slabs = new ArrayList<>();
+  }
+
+  /**
+   * @return A new, empty arena
+   */
+
+  static CalSampleArena create()
+  {
+    return new CalSampleArena();
+  }
+
+  /**
+   * Allocate a little-endian buffer of the given size.
+   *
+   * @param size The size in bytes
+   *
+   * @return A buffer with position 0 and limit {@code size}
+   */
+
+  synchronized ByteBuffer allocate(
+    final long size)
+  {
+    if (this.closed) {
+      throw new IllegalStateException("Arena is closed");
+    }
+
+    final var sizeInt = Math.toIntExact(size);
+    this.allocated += size;
+
+    /*
+     * Allocations larger than a quarter of a slab get a dedicated buffer,
+     * so that they do not waste the remainder of a partially used slab.
+     */
+
+    if (sizeInt > SLAB_SIZE / 4) {
+      final var buffer = ByteBuffer.allocateDirect(sizeInt);
+      this.slabs.add(buffer);
+      return buffer.order(LITTLE_ENDIAN);
+    }
+
+    if (this.current == null || this.current.remaining() < sizeInt) {
+      this.current = ByteBuffer.allocateDirect(SLAB_SIZE);
+      this.slabs.add(this.current);
+    }
+
+    final var slice =
+      this.current.slice(this.current.position(), sizeInt);
+    this.current.position(this.current.position() + sizeInt);
+    return slice.order(LITTLE_ENDIAN);
+  }
+
+  /**
+   * @return The total number of bytes allocated
+   */
+
+  synchronized long allocated()
+  {
+    return this.allocated;
+  }
+
+  @Override
+  public synchronized void close()
+  {
+    this.closed = true;
+    this.current = null;
+    this.slabs.clear();
+  }
+}
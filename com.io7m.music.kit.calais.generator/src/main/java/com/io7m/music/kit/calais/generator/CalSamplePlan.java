@@ -0,0 +1,177 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The canonical ordering of every sample in the kit. Sample indices and the
+ * layout of the sample data in the SF2 file are assigned from this order,
+ * which depends only on the set of input files. Samples may be decoded in
+ * any order, on any number of threads, and the output remains identical.
+ */
+
+public final class CalSamplePlan
+{
+  private static final int SNARE_FIRST_NOTE = 36;
+  static final int BASS_DRUM_NOTE = 24;
+  private static final int HI_HAT_FIRST_NOTE = 42;
+  private static final int CRASH_FIRST_NOTE = 60;
+
+  private final List<CalSampleSpec> samples;
+
+  private CalSamplePlan(
+    final List<CalSampleSpec> inSamples)
+  {
+    this.samples =
+      List.copyOf(Objects.requireNonNull(inSamples, "samples"));
+  }
+
+  /**
+   * Create a plan for the given converted samples. Families appear in the
+   * order of {@link CalDrumFamily}; within a family, samples are ordered by
+   * kind (in enum order) and then by velocity. Each distinct kind within a
+   * family is assigned the next root note.
+   *
+   * @param snare  The snare samples
+   * @param bd     The bass drum samples
+   * @param hiHats The hi-hat samples
+   * @param crash  The crash samples
+   *
+   * @return A plan
+   */
+
+  public static CalSamplePlan create(
+    final CalSnare snare,
+    final CalBassDrum bd,
+    final CalChinaHiHat hiHats,
+    final CalZildjian18 crash)
+  {
+    Objects.requireNonNull(snare, "snare");
+    Objects.requireNonNull(bd, "bd");
+    Objects.requireNonNull(hiHats, "hiHats");
+    Objects.requireNonNull(crash, "crash");
+
+    final var samples = new ArrayList<CalSampleSpec>();
+
+    var rootNote = SNARE_FIRST_NOTE;
+    for (final var tautnessEntry : snare.snare().entrySet()) {
+      final var tautnessKind = tautnessEntry.getKey();
+      for (final var strikeEntry :
+        tautnessEntry.getValue().filesByKind().entrySet()) {
+        final var strikeKind = strikeEntry.getKey();
+        for (final var entry :
+          strikeEntry.getValue().filesByVelocity().entrySet()) {
+          samples.add(new CalSampleSpec(
+            CalDrumFamily.SNARE,
+            rootNote,
+            String.format(
+              "SNARE_%s_%s_%02d",
+              tautnessKind.shortName(),
+              strikeKind.shortName(),
+              entry.getKey()
+            ),
+            entry.getValue(),
+            String.format(
+              "%s_%s",
+              tautnessKind.shortName(),
+              strikeKind.shortName()
+            ),
+            entry.getKey().intValue()
+          ));
+        }
+        ++rootNote;
+      }
+    }
+
+    for (final var entry : bd.byVelocity().entrySet()) {
+      samples.add(new CalSampleSpec(
+        CalDrumFamily.BASS_DRUM,
+        BASS_DRUM_NOTE,
+        String.format("BD_%02d", entry.getKey()),
+        entry.getValue(),
+        "",
+        entry.getKey().intValue()
+      ));
+    }
+
+    rootNote = HI_HAT_FIRST_NOTE;
+    for (final var opennessEntry : hiHats.hiHats().entrySet()) {
+      final var opennessKind = opennessEntry.getKey();
+      for (final var strikeEntry :
+        opennessEntry.getValue().filesByKind().entrySet()) {
+        final var strikeKind = strikeEntry.getKey();
+        for (final var entry :
+          strikeEntry.getValue().filesByVelocity().entrySet()) {
+          samples.add(new CalSampleSpec(
+            CalDrumFamily.HI_HAT,
+            rootNote,
+            String.format(
+              "HH_%s_%s_%02d",
+              opennessKind.shortName(),
+              strikeKind.shortName(),
+              entry.getKey()
+            ),
+            entry.getValue(),
+            String.format(
+              "%s_%s",
+              opennessKind.shortName(),
+              strikeKind.shortName()
+            ),
+            entry.getKey().intValue()
+          ));
+        }
+        ++rootNote;
+      }
+    }
+
+    rootNote = CRASH_FIRST_NOTE;
+    for (final var strikeEntry : crash.crash().entrySet()) {
+      final var strikeKind = strikeEntry.getKey();
+      for (final var entry :
+        strikeEntry.getValue().filesByVelocity().entrySet()) {
+        samples.add(new CalSampleSpec(
+          CalDrumFamily.CRASH,
+          rootNote,
+          String.format(
+            "CRASH_%s_%02d",
+            strikeKind.shortName(),
+            entry.getKey()
+          ),
+          entry.getValue(),
+          strikeKind.shortName(),
+          entry.getKey().intValue()
+        ));
+      }
+      ++rootNote;
+    }
+
+    return new CalSamplePlan(samples);
+  }
+
+  /**
+   * @return The samples in canonical order
+   */
+
+  public List<CalSampleSpec> samples()
+  {
+    return this.samples;
+  }
+}
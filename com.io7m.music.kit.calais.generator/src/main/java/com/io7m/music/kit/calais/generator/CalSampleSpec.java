@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * A single stereo sample in the kit.
+ *
+ * @param family       The drum family
+ * @param rootNote     The note to which the sample is mapped
+ * @param name         The sample name, without the channel suffix
+ * @param file         The converted WAV file
+ * @param articulation The articulation of the drum, such as the strike kind,
+ *                     or the empty string if the family has only one
+ * @param layer        The velocity layer
+ */
+
+public record CalSampleSpec(
+  CalDrumFamily family,
+  int rootNote,
+  String name,
+  Path file,
+  String articulation,
+  int layer)
+{
+  public CalSampleSpec
+  {
+    Objects.requireNonNull(family, "family");
+    Objects.requireNonNull(name, "name");
+    Objects.requireNonNull(file, "file");
+    Objects.requireNonNull(articulation, "articulation");
+  }
+
+  /**
+   * @return The name of the left channel sample
+   */
+
+  public String nameLeft()
+  {
+    return this.name + "_L";
+  }
+
+  /**
+   * @return The name of the right channel sample
+   */
+
+  public String nameRight()
+  {
+    return this.name + "_R";
+  }
+}
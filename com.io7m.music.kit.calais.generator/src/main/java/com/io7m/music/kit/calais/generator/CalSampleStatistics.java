@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Analysis statistics for a converted sample. Statistics are computed in
+ * the same streaming pass that produces the converted sample, and are
+ * stored next to it so that later builds and reports can use them without
+ * decoding the audio again.
+ *
+ * @param frames      The number of frames
+ * @param sampleRate  The sample rate
+ * @param tailStart   The index of the first frame after which every sample
+ *                    in every channel lies below {@link #TAIL_THRESHOLD}
+ * @param correlation The correlation coefficient of the first two channels,
+ *                    or {@code NaN} if the sample does not have two channels
+ * @param channels    The per-channel statistics
+ */
+
+public record CalSampleStatistics(
+  long frames,
+  double sampleRate,
+  long tailStart,
+  double correlation,
+  List<CalChannelStatistics> channels)
+{
+  /**
+   * The level (-60 dBFS) below which a sample is considered to be part of
+   * the tail.
+   */
+
+  public static final double TAIL_THRESHOLD = 0.001;
+
+  private static final String SUFFIX = ".stats";
+
+  public CalSampleStatistics
+  {
+    channels = List.copyOf(Objects.requireNonNull(channels, "channels"));
+  }
+
+  /**
+   * @param sample The converted sample
+   *
+   * @return The file holding the statistics for the given sample
+   */
+
+  public static Path fileFor(
+    final Path sample)
+  {
+    return sample.resolveSibling(sample.getFileName() + SUFFIX);
+  }
+
+  /**
+   * Load statistics from the given file.
+   *
+   * @param file The file
+   *
+   * @return The statistics
+   *
+   * @throws IOException On errors
+   */
+
+  public static CalSampleStatistics load(
+    final Path file)
+    throws IOException
+  {
+    final var properties = new Properties();
+    properties.load(new StringReader(Files.readString(file, UTF_8)));
+
+    try {
+      final var channelCount =
+        Integer.parseInt(required(properties, file, "channels"));
+      final var channels = new ArrayList<CalChannelStatistics>(channelCount);
+      for (var index = 0; index < channelCount; ++index) {
+        final var prefix = String.format("channel.%d.", Integer.valueOf(index));
+        channels.add(new CalChannelStatistics(
+          Double.parseDouble(required(properties, file, prefix + "peak")),
+          Double.parseDouble(required(properties, file, prefix + "rms")),
+          Double.parseDouble(required(properties, file, prefix + "dcOffset"))
+        ));
+      }
+
+      return new CalSampleStatistics(
+        Long.parseLong(required(properties, file, "frames")),
+        Double.parseDouble(required(properties, file, "sampleRate")),
+        Long.parseLong(required(properties, file, "tailStart")),
+        Double.parseDouble(required(properties, file, "correlation")),
+        channels
+      );
+    } catch (final NumberFormatException e) {
+      throw new IOException(
+        String.format("Malformed statistics file %s", file), e);
+    }
+  }
+
+  private static String required(
+    final Properties properties,
+    final Path file,
+    final String name)
+    throws IOException
+  {
+    final var value = properties.getProperty(name);
+    if (value == null) {
+      throw new IOException(
+        String.format("Statistics file %s is missing %s", file, name)
+      );
+    }
+    return value;
+  }
+
+  /**
+   * Atomically write the statistics to the given file.
+   *
+   * @param file The file
+   *
+   * @throws IOException On errors
+   */
+
+  public void store(
+    final Path file)
+    throws IOException
+  {
+    final Map<String, String> values = new TreeMap<>();
+    values.put("frames", Long.toString(this.frames));
+    values.put("sampleRate", Double.toString(this.sampleRate));
+    values.put("tailStart", Long.toString(this.tailStart));
+    values.put("correlation", Double.toString(this.correlation));
+    values.put("channels", Integer.toString(this.channels.size()));
+
+    for (var index = 0; index < this.channels.size(); ++index) {
+      final var channel = this.channels.get(index);
+      final var prefix = String.format("channel.%d.", Integer.valueOf(index));
+      values.put(prefix + "peak", Double.toString(channel.peak()));
+      values.put(prefix + "rms", Double.toString(channel.rms()));
+      values.put(prefix + "dcOffset", Double.toString(channel.dcOffset()));
+    }
+
+    final var text = new StringBuilder(256);
+    for (final var entry : values.entrySet()) {
+      text.append(entry.getKey())
+        .append('=')
+        .append(entry.getValue())
+        .append('\n');
+    }
+
+    final var fileTemporary =
+      file.resolveSibling(file.getFileName() + ".tmp");
+    Files.writeString(fileTemporary, text, UTF_8);
+    Files.move(fileTemporary, file, REPLACE_EXISTING, ATOMIC_MOVE);
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.util.ArrayList;
+
+/**
+ * An accumulator of sample statistics over a stream of 16-bit signed
+ * little-endian PCM frames. Data may be supplied in arbitrary pieces; a
+ * frame split across two calls is carried over to the next call.
+ */
+
+final class CalSampleStatisticsAccumulator
+{
+  private static final double SCALE = 1.0 / 32768.0;
+
+  private final int channels;
+  private final int frameSize;
+  private final byte[] partial;
+  private int partialSize;
+  private long frames;
+  private long tailStart;
+  private final double[] peak;
+  private final double[] sum;
+  private final double[] sumSquares;
+  private double sumProducts;
+
+  CalSampleStatisticsAccumulator(
+    final int inChannels)
+  {
+    if (inChannels < 1) {
+      throw new IllegalArgumentException(
+        String.format("Channel count %d must be >= 1", inChannels)
+      );
+    }
+
+    this.channels = inChannels;
+    this.frameSize = inChannels * 2;
+    this.partial = new byte[this.frameSize];
+    this.peak = new double[inChannels];
+    this.sum = new double[inChannels];
+    this.sumSquares = new double[inChannels];
+  }
+
+  /**
+   * Accumulate the given bytes.
+   *
+   * @param data   The data
+   * @param offset The offset of the first byte
+   * @param length The number of bytes
+   */
+
+  void update(
+    final byte[] data,
+    final int offset,
+    final int length)
+  {
+    var position = offset;
+    final var end = offset + length;
+
+    if (this.partialSize > 0) {
+      final var needed =
+        Math.min(this.frameSize - this.partialSize, end - position);
+      System.arraycopy(data, position, this.partial, this.partialSize, needed);
+      this.partialSize += needed;
+      position += needed;
+      if (this.partialSize < this.frameSize) {
+        return;
+      }
+      this.frame(this.partial, 0);
+      this.partialSize = 0;
+    }
+
+    while (end - position >= this.frameSize) {
+      this.frame(data, position);
+      position += this.frameSize;
+    }
+
+    final var remaining = end - position;
+    System.arraycopy(data, position, this.partial, 0, remaining);
+    this.partialSize = remaining;
+  }
+
+  private void frame(
+    final byte[] data,
+    final int offset)
+  {
+    var audible = false;
+    var first = 0.0;
+    var second = 0.0;
+
+    for (var channel = 0; channel < this.channels; ++channel) {
+      final var index = offset + channel * 2;
+      final var value =
+        (short) ((data[index] & 0xff) | (data[index + 1] << 8)) * SCALE;
+      final var magnitude = Math.abs(value);
+
+      this.peak[channel] = Math.max(this.peak[channel], magnitude);
+      this.sum[channel] += value;
+      this.sumSquares[channel] += value * value;
+      audible |= magnitude > CalSampleStatistics.TAIL_THRESHOLD;
+
+      if (channel == 0) {
+        first = value;
+      } else if (channel == 1) {
+        second = value;
+      }
+    }
+
+    this.sumProducts += first * second;
+    ++this.frames;
+    if (audible) {
+      this.tailStart = this.frames;
+    }
+  }
+
+  /**
+   * @param sampleRate The sample rate
+   *
+   * @return The statistics of the frames accumulated so far
+   */
+
+  CalSampleStatistics finish(
+    final double sampleRate)
+  {
+    final var results = new ArrayList<CalChannelStatistics>(this.channels);
+    final var count = Math.max(1L, this.frames);
+
+    for (var channel = 0; channel < this.channels; ++channel) {
+      results.add(new CalChannelStatistics(
+        this.peak[channel],
+        Math.sqrt(this.sumSquares[channel] / count),
+        this.sum[channel] / count
+      ));
+    }
+
+    return new CalSampleStatistics(
+      this.frames,
+      sampleRate,
+      this.tailStart,
+      this.correlation(count),
+      results
+    );
+  }
+
+  private double correlation(
+    final long count)
+  {
+    if (this.channels != 2) {
+      return Double.NaN;
+    }
+
+    final var covariance =
+      this.sumProducts - (this.sum[0] * this.sum[1]) / count;
+    final var variance0 =
+      this.sumSquares[0] - (this.sum[0] * this.sum[0]) / count;
+    final var variance1 =
+      this.sumSquares[1] - (this.sum[1] * this.sum[1]) / count;
+
+    /*
+     * Two constant channels are trivially identical.
+     */
+
+    if (variance0 <= 0.0 && variance1 <= 0.0) {
+      return 1.0;
+    }
+    if (variance0 <= 0.0 || variance1 <= 0.0) {
+      return 0.0;
+    }
+    return covariance / Math.sqrt(variance0 * variance1);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+/**
+ * Where decoded sample data is held until it is written to the SF2 file.
+ */
+
+public enum CalSampleStore
+{
+  /**
+   * Decoded samples are converted to 16-bit data as they are decoded, and
+   * held in heap buffers until they are written.
+   */
+
+  HEAP("heap"),
+
+  /**
+   * Decoded samples are converted to 16-bit data immediately and held in
+   * large off-heap slabs, which are written to the SF2 file without
+   * copying. The heap only holds samples that are being decoded, and so
+   * stays small regardless of the size of the kit.
+   */
+
+  OFF_HEAP("off-heap"),
+
+  /**
+   * Decoded samples are converted to 16-bit data as they are decoded, and
+   * held in heap buffers up to a limit. Beyond the limit, the least
+   * recently used samples are spilled to a file in the temporary directory
+   * and written to the SF2 file from memory-mapped regions of that file.
+   * Kits larger than the heap can then be written without decoding any
+   * sample twice.
+   */
+
+  SPILL("spill");
+
+  private final String externalName;
+
+  CalSampleStore(
+    final String inExternalName)
+  {
+    this.externalName = inExternalName;
+  }
+
+  /**
+   * @return The name used on the command line
+   */
+
+  public String externalName()
+  {
+    return this.externalName;
+  }
+
+  /**
+   * Find the store with the given command-line name.
+   *
+   * @param name The name
+   *
+   * @return The store
+   */
+
+  public static CalSampleStore ofExternalName(
+    final String name)
+  {
+    for (final var store : values()) {
+      if (store.externalName.equals(name)) {
+        return store;
+      }
+    }
+    throw new IllegalArgumentException(
+      String.format("Unrecognized sample store: %s", name)
+    );
+  }
+}
@@ -0,0 +1,529 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A breakdown of the size of a written SF2 file. The sizes of the top-level
+ * chunks are read from the file, and the sample data is broken down by drum
+ * family, articulation and velocity layer, along with the part of it that is
+ * trailing silence according to the statistics recorded during conversion.
+ *
+ * @param file      The SF2 file
+ * @param fileSize  The size of the file
+ * @param infoSize  The size of the {@code INFO} list, including its header
+ * @param sdtaSize  The size of the {@code sdta} list, including its header
+ * @param pdtaSize  The size of the {@code pdta} list, including its header
+ * @param samples   The samples, in canonical order
+ */
+
+public record CalSizeProfile(
+  Path file,
+  long fileSize,
+  long infoSize,
+  long sdtaSize,
+  long pdtaSize,
+  List<Sample> samples)
+{
+  /**
+   * The number of zero sample points that follow each sample in the
+   * {@code smpl} chunk, as required by the SF2 specification.
+   */
+
+  private static final long SAMPLE_PADDING_POINTS = 46L;
+
+  private static final String SUFFIX = ".size.json";
+
+  public CalSizeProfile
+  {
+    Objects.requireNonNull(file, "file");
+    samples = List.copyOf(Objects.requireNonNull(samples, "samples"));
+  }
+
+  /**
+   * The size of a single stereo sample.
+   *
+   * @param spec          The sample
+   * @param frames        The number of frames
+   * @param silentFrames  The number of frames of trailing silence
+   * @param hasStatistics {@code false} if no statistics were recorded for
+   *                      the sample, in which case its trailing silence is
+   *                      unknown and counted as zero
+   */
+
+  public record Sample(
+    CalSampleSpec spec,
+    long frames,
+    long silentFrames,
+    boolean hasStatistics)
+  {
+    public Sample
+    {
+      Objects.requireNonNull(spec, "spec");
+    }
+
+    /**
+     * @return The size of the data of both channels in the {@code smpl}
+     * chunk, including the padding that follows each channel
+     */
+
+    public long bytes()
+    {
+      return 2L * (this.frames + SAMPLE_PADDING_POINTS) * 2L;
+    }
+
+    /**
+     * @return The size of the trailing silence of both channels
+     */
+
+    public long silenceBytes()
+    {
+      return 2L * this.silentFrames * 2L;
+    }
+  }
+
+  /**
+   * @param target The SF2 file
+   *
+   * @return The file to which the profile of the given SF2 file is written
+   */
+
+  public static Path fileFor(
+    final Path target)
+  {
+    return target.resolveSibling(target.getFileName() + SUFFIX);
+  }
+
+  /**
+   * Profile the SF2 file previously written for the given configuration.
+   * The source files are discovered, but nothing is converted or decoded.
+   *
+   * @param configuration The configuration
+   *
+   * @return The profile
+   *
+   * @throws IOException On errors
+   */
+
+  public static CalSizeProfile create(
+    final CalaisConfiguration configuration)
+    throws IOException
+  {
+    final var kit =
+      Calais.discover(configuration, new ArrayList<>());
+    final var specs =
+      CalSamplePlan.create(
+        kit.snare(),
+        kit.bassDrum(),
+        kit.hiHats(),
+        kit.crash()
+      ).samples();
+
+    return create(configuration.targetFile(), specs);
+  }
+
+  /**
+   * Profile the given SF2 file.
+   *
+   * @param file  The SF2 file
+   * @param specs The samples in the file, in canonical order
+   *
+   * @return The profile
+   *
+   * @throws IOException On errors
+   */
+
+  static CalSizeProfile create(
+    final Path file,
+    final List<CalSampleSpec> specs)
+    throws IOException
+  {
+    final var samples = new ArrayList<Sample>(specs.size());
+    for (final var spec : specs) {
+      final var statisticsFile = CalSampleStatistics.fileFor(spec.file());
+      if (Files.isRegularFile(statisticsFile)) {
+        final var statistics = CalSampleStatistics.load(statisticsFile);
+        samples.add(new Sample(
+          spec,
+          statistics.frames(),
+          Math.max(0L, statistics.frames() - statistics.tailStart()),
+          true
+        ));
+      } else {
+        samples.add(new Sample(spec, framesOf(spec.file()), 0L, false));
+      }
+    }
+
+    var infoSize = 0L;
+    var sdtaSize = 0L;
+    var pdtaSize = 0L;
+
+    try (var channel = FileChannel.open(file, READ)) {
+      final var fileSize = channel.size();
+      final var header =
+        ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+
+      /*
+       * Walk the lists directly beneath the RIFF chunk, reading only their
+       * headers.
+       */
+
+      var offset = 12L;
+      while (offset + 12L <= fileSize) {
+        header.clear();
+        while (header.hasRemaining()) {
+          if (channel.read(header, offset + header.position()) < 0) {
+            throw new IOException(
+              String.format("Unexpected end of file in %s", file));
+          }
+        }
+
+        final var id =
+          new String(header.array(), 0, 4, US_ASCII);
+        final var size =
+          Integer.toUnsignedLong(header.getInt(4));
+        final var type =
+          new String(header.array(), 8, 4, US_ASCII);
+
+        if ("LIST".equals(id)) {
+          switch (type) {
+            case "INFO" -> infoSize = 8L + size;
+            case "sdta" -> sdtaSize = 8L + size;
+            case "pdta" -> pdtaSize = 8L + size;
+            default -> {
+
+            }
+          }
+        }
+        offset += 8L + size + (size & 1L);
+      }
+
+      return new CalSizeProfile(
+        file,
+        fileSize,
+        infoSize,
+        sdtaSize,
+        pdtaSize,
+        samples
+      );
+    }
+  }
+
+  private static long framesOf(
+    final Path file)
+    throws IOException
+  {
+    try {
+      return AudioSystem.getAudioFileFormat(file.toFile()).getFrameLength();
+    } catch (final UnsupportedAudioFileException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * @return The size of the sample data, including padding
+   */
+
+  public long sampleBytes()
+  {
+    return this.samples.stream()
+      .mapToLong(Sample::bytes)
+      .sum();
+  }
+
+  /**
+   * @return The size of the trailing silence in the sample data
+   */
+
+  public long silenceBytes()
+  {
+    return this.samples.stream()
+      .mapToLong(Sample::silenceBytes)
+      .sum();
+  }
+
+  /**
+   * @return The number of samples for which no statistics were recorded
+   */
+
+  public long samplesWithoutStatistics()
+  {
+    return this.samples.stream()
+      .filter(sample -> !sample.hasStatistics())
+      .count();
+  }
+
+  /**
+   * Group the samples by family and then by articulation, preserving the
+   * canonical order.
+   */
+
+  private Map<CalDrumFamily, Map<String, List<Sample>>> grouped()
+  {
+    final var results =
+      new LinkedHashMap<CalDrumFamily, Map<String, List<Sample>>>();
+    for (final var sample : this.samples) {
+      final var spec = sample.spec();
+      results.computeIfAbsent(spec.family(), k -> new LinkedHashMap<>())
+        .computeIfAbsent(spec.articulation(), k -> new ArrayList<>())
+        .add(sample);
+    }
+    return results;
+  }
+
+  private static long bytesOf(
+    final List<Sample> samples)
+  {
+    return samples.stream().mapToLong(Sample::bytes).sum();
+  }
+
+  private static long silenceOf(
+    final List<Sample> samples)
+  {
+    return samples.stream().mapToLong(Sample::silenceBytes).sum();
+  }
+
+  /**
+   * @return The profile as a human-readable table
+   */
+
+  public List<String> show()
+  {
+    final var lines = new ArrayList<String>();
+    lines.add(
+      String.format(
+        "%s: %d bytes",
+        this.file.getFileName(),
+        Long.valueOf(this.fileSize)));
+    lines.add(this.chunkLine("INFO", this.infoSize));
+    lines.add(this.chunkLine("sdta", this.sdtaSize));
+    lines.add(this.chunkLine("pdta", this.pdtaSize));
+    lines.add(
+      String.format(
+        Locale.ROOT,
+        "  trailing silence  %12d bytes %5.1f%% of sample data",
+        Long.valueOf(this.silenceBytes()),
+        Double.valueOf(percent(this.silenceBytes(), this.sampleBytes()))));
+
+    final var missing = this.samplesWithoutStatistics();
+    if (missing > 0L) {
+      lines.add(
+        String.format(
+          "  (%d samples have no statistics; their silence is not counted)",
+          Long.valueOf(missing)));
+    }
+
+    lines.add(
+      String.format(
+        "%-24s %12s %6s %8s",
+        "sample data",
+        "bytes",
+        "share",
+        "silence"));
+
+    for (final var family : this.grouped().entrySet()) {
+      final var all = new ArrayList<Sample>();
+      family.getValue().values().forEach(all::addAll);
+      lines.add(this.row(family.getKey().name(), all));
+
+      for (final var articulation : family.getValue().entrySet()) {
+        final var name = articulation.getKey();
+        final var layers = articulation.getValue();
+        if (!name.isEmpty()) {
+          lines.add(this.row("  " + name, layers));
+        }
+        for (final var sample : layers) {
+          lines.add(
+            this.row(
+              String.format(
+                "%slayer %d",
+                name.isEmpty() ? "  " : "    ",
+                Integer.valueOf(sample.spec().layer())),
+              List.of(sample)
+            )
+          );
+        }
+      }
+    }
+    return lines;
+  }
+
+  private String chunkLine(
+    final String name,
+    final long size)
+  {
+    return String.format(
+      Locale.ROOT,
+      "  %-16s  %12d bytes %5.1f%%",
+      name,
+      Long.valueOf(size),
+      Double.valueOf(percent(size, this.fileSize)));
+  }
+
+  private String row(
+    final String label,
+    final List<Sample> rowSamples)
+  {
+    final var bytes = bytesOf(rowSamples);
+    return String.format(
+      Locale.ROOT,
+      "%-24s %12d %5.1f%% %7.1f%%",
+      label,
+      Long.valueOf(bytes),
+      Double.valueOf(percent(bytes, this.fileSize)),
+      Double.valueOf(percent(silenceOf(rowSamples), bytes)));
+  }
+
+  private static double percent(
+    final long part,
+    final long whole)
+  {
+    if (whole == 0L) {
+      return 0.0;
+    }
+    return (100.0 * part) / whole;
+  }
+
+  /**
+   * @return The profile as a JSON object
+   */
+
+  public String toJSON()
+  {
+    final var text = new StringBuilder(4096);
+    text.append("{\n");
+    text.append("  \"file\": ").append(quote(this.file.toString()));
+    text.append(",\n  \"fileSize\": ").append(this.fileSize);
+    text.append(",\n  \"infoSize\": ").append(this.infoSize);
+    text.append(",\n  \"sdtaSize\": ").append(this.sdtaSize);
+    text.append(",\n  \"pdtaSize\": ").append(this.pdtaSize);
+    text.append(",\n  \"sampleBytes\": ").append(this.sampleBytes());
+    text.append(",\n  \"silenceBytes\": ").append(this.silenceBytes());
+    text.append(",\n  \"samplesWithoutStatistics\": ")
+      .append(this.samplesWithoutStatistics());
+    text.append(",\n  \"families\": [");
+
+    var firstFamily = true;
+    for (final var family : this.grouped().entrySet()) {
+      final var all = new ArrayList<Sample>();
+      family.getValue().values().forEach(all::addAll);
+
+      text.append(firstFamily ? "\n" : ",\n");
+      firstFamily = false;
+      text.append("    {\n");
+      text.append("      \"family\": ")
+        .append(quote(family.getKey().name()));
+      text.append(",\n      \"bytes\": ").append(bytesOf(all));
+      text.append(",\n      \"silenceBytes\": ").append(silenceOf(all));
+      text.append(",\n      \"articulations\": [");
+
+      var firstArticulation = true;
+      for (final var articulation : family.getValue().entrySet()) {
+        final var layers = articulation.getValue();
+        text.append(firstArticulation ? "\n" : ",\n");
+        firstArticulation = false;
+        text.append("        {\n");
+        text.append("          \"articulation\": ")
+          .append(quote(articulation.getKey()));
+        text.append(",\n          \"bytes\": ").append(bytesOf(layers));
+        text.append(",\n          \"silenceBytes\": ")
+          .append(silenceOf(layers));
+        text.append(",\n          \"layers\": [");
+
+        var firstLayer = true;
+        for (final var sample : layers) {
+          text.append(firstLayer ? "\n" : ",\n");
+          firstLayer = false;
+          text.append("            { \"layer\": ")
+            .append(sample.spec().layer());
+          text.append(", \"sample\": ")
+            .append(quote(sample.spec().name()));
+          text.append(", \"frames\": ").append(sample.frames());
+          text.append(", \"bytes\": ").append(sample.bytes());
+          text.append(", \"silenceBytes\": ").append(sample.silenceBytes());
+          text.append(" }");
+        }
+        text.append("\n          ]\n        }");
+      }
+      text.append("\n      ]\n    }");
+    }
+    text.append("\n  ]\n}\n");
+    return text.toString();
+  }
+
+  private static String quote(
+    final String value)
+  {
+    final var text = new StringBuilder(value.length() + 2);
+    text.append('"');
+    for (var index = 0; index < value.length(); ++index) {
+      final var c = value.charAt(index);
+      switch (c) {
+        case '"' -> text.append("\\\"");
+        case '\\' -> text.append("\\\\");
+        default -> {
+          if (c < 0x20) {
+            text.append(String.format("\\u%04x", Integer.valueOf(c)));
+          } else {
+            text.append(c);
+          }
+        }
+      }
+    }
+    text.append('"');
+    return text.toString();
+  }
+
+  /**
+   * Atomically write the profile as JSON to the given file.
+   *
+   * @param output The file
+   *
+   * @throws IOException On errors
+   */
+
+  public void store(
+    final Path output)
+    throws IOException
+  {
+    final var outputTemporary =
+      output.resolveSibling(output.getFileName() + ".tmp");
+    Files.writeString(outputTemporary, this.toJSON(), UTF_8);
+    Files.move(outputTemporary, output, REPLACE_EXISTING, ATOMIC_MOVE);
+  }
+}
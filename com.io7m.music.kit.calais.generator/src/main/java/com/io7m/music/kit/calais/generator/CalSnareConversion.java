@@ -16,76 +16,69 @@
 
 package com.io7m.music.kit.calais.generator;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.EnumMap;
+import java.util.List;
 
 import static com.io7m.music.kit.calais.generator.CalSnareTautnessKind.SNARES_TIGHT;
 
 public final class CalSnareConversion
 {
-  private static final Logger LOG =
-    LoggerFactory.getLogger(CalSnareConversion.class);
-
   private CalSnareConversion()
   {
 
   }
 
-  public static CalSnare convertFLACs(
+  /**
+   * Plan the conversion of the given FLAC files to WAV files in the given
+   * directory, without converting them.
+   *
+   * @param snareInput      The FLAC files
+   * @param outputDirectory The output directory
+   * @param jobs            The list to which the conversions are added
+   *
+   * @return The WAV files that the conversions will produce
+   */
+
+  public static CalSnare planConversions(
     final CalSnare snareInput,
-    final Path outputDirectory)
-    throws IOException
+    final Path outputDirectory,
+    final List<CalConversionJob> jobs)
   {
     final var snareOutput =
       new EnumMap<CalSnareTautnessKind, CalSnareTautnessFiles>(
         CalSnareTautnessKind.class
       );
 
-    try {
-      final var tautnessFiles =
-        snareInput.snare()
-          .get(SNARES_TIGHT);
-
-      tautnessFiles.filesByKind().forEach((strikeKind, strikeFiles) -> {
-        strikeFiles.filesByVelocity().forEach((velocity, path) -> {
-          try {
-            convert(
-              snareOutput,
-              SNARES_TIGHT,
-              strikeKind,
-              velocity,
-              path,
-              outputDirectory
-            );
-          } catch (final IOException e) {
-            throw new UncheckedIOException(e);
-          }
-        });
+    final var tautnessFiles =
+      snareInput.snare()
+        .get(SNARES_TIGHT);
+
+    tautnessFiles.filesByKind().forEach((strikeKind, strikeFiles) -> {
+      strikeFiles.filesByVelocity().forEach((velocity, path) -> {
+        convert(
+          snareOutput,
+          jobs,
+          SNARES_TIGHT,
+          strikeKind,
+          velocity,
+          path,
+          outputDirectory
+        );
       });
-    } catch (final UncheckedIOException e) {
-      throw e.getCause();
-    }
+    });
 
     return new CalSnare(snareOutput);
   }
 
   private static void convert(
     final EnumMap<CalSnareTautnessKind, CalSnareTautnessFiles> snareOutput,
+    final List<CalConversionJob> jobs,
     final CalSnareTautnessKind tautnessKind,
     final CalSnareStrikeKind strikeKind,
     final Integer velocity,
     final Path path,
     final Path outputDirectory)
-    throws IOException
   {
     final var outputFileDirectory =
       outputDirectory.resolve(tautnessKind.name())
@@ -94,15 +87,7 @@ public final class CalSnareConversion
       outputFileDirectory.resolve(
         String.format("%02d.wav", velocity));
 
-    Files.createDirectories(outputFileDirectory);
-
-    LOG.info("write {}", outputFile);
-
-    try (var stream = CalFLAC.readAs16(path)) {
-      AudioSystem.write(stream, AudioFileFormat.Type.WAVE, outputFile.toFile());
-    } catch (final UnsupportedAudioFileException e) {
-      throw new IOException(e);
-    }
+    jobs.add(new CalConversionJob(path, outputFile));
 
     final var tautnessFiles =
       snareOutput.computeIfAbsent(tautnessKind, k -> new CalSnareTautnessFiles());
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * A stream that passes every byte read through a statistics accumulator.
+ */
+
+final class CalStatisticsInputStream extends FilterInputStream
+{
+  private final CalSampleStatisticsAccumulator accumulator;
+  private final byte[] single;
+
+  CalStatisticsInputStream(
+    final InputStream inStream,
+    final CalSampleStatisticsAccumulator inAccumulator)
+  {
+    super(Objects.requireNonNull(inStream, "stream"));
+    this.accumulator =
+      Objects.requireNonNull(inAccumulator, "accumulator");
+    this.single =
+      new byte[1];
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    final var count = this.read(this.single, 0, 1);
+    if (count == -1) {
+      return -1;
+    }
+    return this.single[0] & 0xff;
+  }
+
+  @Override
+  public int read(
+    final byte[] buffer,
+    final int offset,
+    final int length)
+    throws IOException
+  {
+    final var count = this.in.read(buffer, offset, length);
+    if (count > 0) {
+      this.accumulator.update(buffer, offset, count);
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(
+    final long count)
+    throws IOException
+  {
+    if (count <= 0L) {
+      return 0L;
+    }
+
+    /*
+     * Skipped bytes must still be accumulated.
+     */
+
+    final var buffer = new byte[(int) Math.min(count, 8192L)];
+    var skipped = 0L;
+    while (skipped < count) {
+      final var read =
+        this.read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+      if (read == -1) {
+        break;
+      }
+      skipped += read;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return false;
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * A scope in which independent subtasks run concurrently, each on its own
+ * virtual thread. The owner forks subtasks, then joins the scope, which
+ * waits for every subtask to complete. If any subtask fails, the subtasks
+ * that have not yet completed are cancelled, and the failure is rethrown
+ * with a description of the subtask. No subtask outlives the scope.
+ */
+
+final class CalSubtasks implements AutoCloseable
+{
+  private final ExecutorService executor;
+  private final List<Subtask<?>> subtasks;
+  private final BlockingQueue<Subtask<?>> completed;
+  private boolean joined;
+
+  CalSubtasks()
+  {
+    this.executor =
+      Executors.newVirtualThreadPerTaskExecutor();
+    this.subtasks =
+      new ArrayList<>();
+    this.completed =
+      new LinkedBlockingQueue<>();
+  }
+
+  private final class Subtask<T> extends FutureTask<T>
+  {
+    private final String description;
+
+    Subtask(
+      final String inDescription,
+      final Callable<T> task)
+    {
+      super(task);
+      this.description =
+        Objects.requireNonNull(inDescription, "description");
+    }
+
+    @Override
+    protected void done()
+    {
+      CalSubtasks.this.completed.add(this);
+    }
+  }
+
+  /**
+   * Start a subtask.
+   *
+   * @param description A description of the subtask, such as "open the
+   *                    snare samples", used in error messages
+   * @param task        The subtask
+   * @param <T>         The type of results
+   *
+   * @return The result of the subtask, available once the scope has been
+   * joined
+   */
+
+  <T> Supplier<T> fork(
+    final String description,
+    final Callable<T> task)
+  {
+    final var subtask = new Subtask<>(description, task);
+    this.subtasks.add(subtask);
+    this.executor.execute(subtask);
+    return () -> {
+      if (!this.joined) {
+        throw new IllegalStateException("The scope has not been joined");
+      }
+      return subtask.resultNow();
+    };
+  }
+
+  /**
+   * Wait for every subtask to complete.
+   *
+   * @throws IOException If any subtask fails, or the calling thread is
+   *                     interrupted
+   */
+
+  void join()
+    throws IOException
+  {
+    try {
+      for (var index = 0; index < this.subtasks.size(); ++index) {
+        final var subtask = this.completed.take();
+        switch (subtask.state()) {
+          case SUCCESS -> {
+
+          }
+          case FAILED -> {
+            this.cancel();
+            throw new IOException(
+              String.format("Failed to %s", subtask.description),
+              subtask.exceptionNow()
+            );
+          }
+          default -> {
+            this.cancel();
+            throw new InterruptedIOException(
+              String.format("Cancelled: %s", subtask.description));
+          }
+        }
+      }
+      this.joined = true;
+    } catch (final InterruptedException e) {
+      this.cancel();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting");
+    }
+  }
+
+  private void cancel()
+  {
+    for (final var subtask : this.subtasks) {
+      subtask.cancel(true);
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    this.cancel();
+    this.executor.close();
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A writer of 16-bit signed little-endian WAV files. The files are the same
+ * as those written by {@code AudioSystem.write}, but the data is written to
+ * the file without passing through the audio system's file writers, and
+ * data that already exists in a file is copied to the WAV file without
+ * being read by the JVM at all.
+ */
+
+final class CalWaveFile
+{
+  /**
+   * The size of the header that precedes the sample data.
+   */
+
+  static final int HEADER_SIZE = 44;
+
+  private static final long MAXIMUM_DATA_SIZE =
+    0xffff_ffffL - (HEADER_SIZE - 8);
+
+  private CalWaveFile()
+  {
+
+  }
+
+  /**
+   * Write the given stream to a WAV file.
+   *
+   * @param stream The stream of 16-bit signed little-endian data
+   * @param file   The output file
+   *
+   * @throws IOException On errors
+   */
+
+  static void write(
+    final AudioInputStream stream,
+    final Path file)
+    throws IOException
+  {
+    final var format = stream.getFormat();
+    checkFormat(format, file);
+
+    try (var channel =
+           FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      channel.position(HEADER_SIZE);
+
+      final var buffer = new byte[65536];
+      var size = 0L;
+      while (true) {
+        final var count = stream.read(buffer, 0, buffer.length);
+        if (count == -1) {
+          break;
+        }
+        CalDecodedSampleHeap.writeFully(
+          channel, ByteBuffer.wrap(buffer, 0, count));
+        size += count;
+      }
+
+      /*
+       * The length of a stream is not always known in advance, so the
+       * header is written once all of the data has been read.
+       */
+
+      CalDecodedSampleHeap.writeFully(
+        channel.position(0L), header(format, size, file));
+    }
+  }
+
+  /**
+   * Copy data that is already 16-bit signed little-endian to a WAV file.
+   * The data is transferred between the files by the operating system.
+   *
+   * @param source   The file containing the data
+   * @param position The position of the data in the file
+   * @param format   The format of the data
+   * @param frames   The number of frames of data
+   * @param file     The output file
+   *
+   * @throws IOException On errors
+   */
+
+  static void transfer(
+    final FileChannel source,
+    final long position,
+    final AudioFormat format,
+    final long frames,
+    final Path file)
+    throws IOException
+  {
+    checkFormat(format, file);
+
+    final var size = frames * format.getFrameSize();
+    try (var channel =
+           FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      CalDecodedSampleHeap.writeFully(channel, header(format, size, file));
+
+      var copied = 0L;
+      while (copied < size) {
+        final var count =
+          source.transferTo(position + copied, size - copied, channel);
+        if (count <= 0L) {
+          throw new IOException(
+            String.format(
+              "Source data for %s ended after %d of %d bytes",
+              file,
+              Long.valueOf(copied),
+              Long.valueOf(size))
+          );
+        }
+        copied += count;
+      }
+    }
+  }
+
+  /**
+   * Write a single channel of a decoded sample to a mono WAV file.
+   *
+   * @param sample  The sample
+   * @param channel The channel
+   * @param file    The output file
+   *
+   * @throws IOException On errors
+   */
+
+  static void writeChannel(
+    final CalDecodedSampleType sample,
+    final int channel,
+    final Path file)
+    throws IOException
+  {
+    final var sampleRate = (float) sample.sampleRate();
+    final var format =
+      new AudioFormat(
+        AudioFormat.Encoding.PCM_SIGNED,
+        sampleRate,
+        16,
+        1,
+        2,
+        sampleRate,
+        false
+      );
+
+    try (var output =
+           FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      CalDecodedSampleHeap.writeFully(
+        output, header(format, sample.frames() * 2L, file));
+      sample.writeChannel(channel, output);
+    }
+  }
+
+  private static void checkFormat(
+    final AudioFormat format,
+    final Path file)
+    throws IOException
+  {
+    if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())
+        || format.getSampleSizeInBits() != 16
+        || format.getFrameSize() != format.getChannels() * 2
+        || format.isBigEndian()) {
+      throw new IOException(
+        String.format("Cannot write sample format %s to %s", format, file)
+      );
+    }
+  }
+
+  private static ByteBuffer header(
+    final AudioFormat format,
+    final long size,
+    final Path file)
+    throws IOException
+  {
+    if (size > MAXIMUM_DATA_SIZE) {
+      throw new IOException(
+        String.format(
+          "Sample data of %d bytes is too large for %s",
+          Long.valueOf(size),
+          file)
+      );
+    }
+
+    final var sampleRate = (int) format.getSampleRate();
+    final var frameSize = format.getFrameSize();
+    final var header = ByteBuffer.allocate(HEADER_SIZE);
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    header.put("RIFF".getBytes(US_ASCII));
+    header.putInt((int) (size + HEADER_SIZE - 8));
+    header.put("WAVE".getBytes(US_ASCII));
+    header.put("fmt ".getBytes(US_ASCII));
+    header.putInt(16);
+    header.putShort((short) 1);
+    header.putShort((short) format.getChannels());
+    header.putInt(sampleRate);
+    header.putInt(sampleRate * frameSize);
+    header.putShort((short) frameSize);
+    header.putShort((short) 16);
+    header.put("data".getBytes(US_ASCII));
+    header.putInt((int) size);
+    return header.flip();
+  }
+}
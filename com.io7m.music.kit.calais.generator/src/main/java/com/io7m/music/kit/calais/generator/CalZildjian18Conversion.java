@@ -16,66 +16,60 @@
 
 package com.io7m.music.kit.calais.generator;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.UnsupportedAudioFileException;
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.EnumMap;
+import java.util.List;
 
 public final class CalZildjian18Conversion
 {
-  private static final Logger LOG =
-    LoggerFactory.getLogger(CalZildjian18Conversion.class);
-
   private CalZildjian18Conversion()
   {
 
   }
 
-  public static CalZildjian18 convertFLACs(
+  /**
+   * Plan the conversion of the given FLAC files to WAV files in the given
+   * directory, without converting them.
+   *
+   * @param crashInput      The FLAC files
+   * @param outputDirectory The output directory
+   * @param jobs            The list to which the conversions are added
+   *
+   * @return The WAV files that the conversions will produce
+   */
+
+  public static CalZildjian18 planConversions(
     final CalZildjian18 crashInput,
-    final Path outputDirectory)
-    throws IOException
+    final Path outputDirectory,
+    final List<CalConversionJob> jobs)
   {
     final var crashOutput =
       new EnumMap<CalZildjian18StrikeKind, CalZildjian18StrikeFiles>(
         CalZildjian18StrikeKind.class);
 
-    try {
-      crashInput.crash().forEach((strike, strikeFiles) -> {
-        strikeFiles.filesByVelocity().forEach((velocity, path) -> {
-          try {
-            convert(
-              crashOutput,
-              strike,
-              velocity,
-              path,
-              outputDirectory
-            );
-          } catch (final IOException e) {
-            throw new UncheckedIOException(e);
-          }
-        });
+    crashInput.crash().forEach((strike, strikeFiles) -> {
+      strikeFiles.filesByVelocity().forEach((velocity, path) -> {
+        convert(
+          crashOutput,
+          jobs,
+          strike,
+          velocity,
+          path,
+          outputDirectory
+        );
       });
-    } catch (final UncheckedIOException e) {
-      throw e.getCause();
-    }
+    });
+
     return new CalZildjian18(crashOutput);
   }
 
   private static void convert(
     final EnumMap<CalZildjian18StrikeKind, CalZildjian18StrikeFiles> crashOutput,
+    final List<CalConversionJob> jobs,
     final CalZildjian18StrikeKind strike,
     final Integer velocity,
     final Path path,
     final Path outputDirectory)
-    throws IOException
   {
     final var outputFileDirectory =
       outputDirectory.resolve(strike.name())
@@ -84,15 +78,7 @@ public final class CalZildjian18Conversion
       outputFileDirectory.resolve(
         String.format("%02d.wav", velocity));
 
-    Files.createDirectories(outputFileDirectory);
-
-    LOG.info("write {}", outputFile);
-
-    try (var stream = CalFLAC.readAs16(path)) {
-      AudioSystem.write(stream, AudioFileFormat.Type.WAVE, outputFile.toFile());
-    } catch (final UnsupportedAudioFileException e) {
-      throw new IOException(e);
-    }
+    jobs.add(new CalConversionJob(path, outputFile));
 
     final var strikeFiles =
       crashOutput.computeIfAbsent(strike, k -> new CalZildjian18StrikeFiles());
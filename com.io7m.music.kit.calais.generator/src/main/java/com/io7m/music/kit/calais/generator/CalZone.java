@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The mapping of a single stereo sample onto the keyboard. Every output
+ * format maps the samples of the kit with the same zones, so that the kit
+ * plays the same way in any of them.
+ *
+ * @param index          The index of the sample in the plan
+ * @param sample         The sample
+ * @param velocityLow    The lowest velocity that plays the sample
+ * @param velocityHigh   The highest velocity that plays the sample
+ * @param exclusiveClass The class of samples that choke each other, or
+ *                       {@code 0} if the sample does not choke
+ */
+
+record CalZone(
+  int index,
+  CalSampleSpec sample,
+  int velocityLow,
+  int velocityHigh,
+  int exclusiveClass)
+{
+  /**
+   * The pan of the left channel of each sample, in units of 0.1%, where
+   * -500 is hard left.
+   */
+
+  static final int PAN_LEFT = -496;
+
+  /**
+   * The pan of the right channel of each sample, in units of 0.1%, where
+   * 500 is hard right.
+   */
+
+  static final int PAN_RIGHT = 496;
+
+  /**
+   * The decay time of the bass drum envelope, in timecents.
+   */
+
+  static final int BASS_DRUM_DECAY = 702;
+
+  /**
+   * The sustain level of the bass drum envelope, as an attenuation in
+   * centibels.
+   */
+
+  static final int BASS_DRUM_SUSTAIN = 1440;
+
+  /**
+   * The range of the pitch wheel, in semitones.
+   */
+
+  static final int PITCH_WHEEL_RANGE = 12;
+
+  CalZone
+  {
+    Objects.requireNonNull(sample, "sample");
+  }
+
+  /**
+   * @param family The drum family
+   *
+   * @return The exclusive class assigned to the family when its
+   * articulations choke each other
+   */
+
+  static int exclusiveClassOf(
+    final CalDrumFamily family)
+  {
+    return family.ordinal() + 1;
+  }
+
+  /**
+   * Map the samples of a plan onto the keyboard. Each sample is played by
+   * its root note. The velocity range of each note is divided evenly
+   * between the samples of the note, in plan order. Each family whose
+   * articulations choke each other is assigned its own exclusive class.
+   *
+   * @param samples       The samples, in plan order
+   * @param chokeFamilies The drum families whose articulations choke each
+   *                      other
+   *
+   * @return The zones, ordered by family, then by note, then by plan order
+   */
+
+  static List<CalZone> of(
+    final List<CalSampleSpec> samples,
+    final Set<CalDrumFamily> chokeFamilies)
+  {
+    Objects.requireNonNull(samples, "samples");
+    Objects.requireNonNull(chokeFamilies, "chokeFamilies");
+
+    final var indices = new ArrayList<Integer>(samples.size());
+    for (var index = 0; index < samples.size(); ++index) {
+      indices.add(Integer.valueOf(index));
+    }
+    indices.sort(
+      Comparator.comparing((Integer index) -> samples.get(index).family())
+        .thenComparingInt(index -> samples.get(index).rootNote())
+    );
+
+    final var zones = new ArrayList<CalZone>(samples.size());
+    var start = 0;
+    while (start < indices.size()) {
+      final var first = samples.get(indices.get(start).intValue());
+      var end = start;
+      while (end < indices.size()) {
+        final var next = samples.get(indices.get(end).intValue());
+        if (next.family() != first.family()
+            || next.rootNote() != first.rootNote()) {
+          break;
+        }
+        ++end;
+      }
+
+      final var exclusiveClass =
+        chokeFamilies.contains(first.family())
+          ? exclusiveClassOf(first.family())
+          : 0;
+
+      final var velocityRegionSize = 128 / (end - start);
+      var velocityLow = 0;
+      var velocityHigh = velocityLow + velocityRegionSize;
+      for (var position = start; position < end; ++position) {
+        final var index = indices.get(position).intValue();
+        zones.add(new CalZone(
+          index,
+          samples.get(index),
+          velocityLow,
+          velocityHigh,
+          exclusiveClass
+        ));
+        velocityLow = velocityHigh + 1;
+        velocityHigh = Math.min(127, velocityHigh + velocityRegionSize);
+      }
+      start = end;
+    }
+    return List.copyOf(zones);
+  }
+}
@@ -16,119 +16,303 @@
 
 package com.io7m.music.kit.calais.generator;
 
-import com.io7m.jnoisetype.writer.api.NTBuilderProviderType;
-import com.io7m.jnoisetype.writer.api.NTWriterProviderType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.ServiceLoader;
+import java.util.Optional;
 
 public final class Calais
 {
-  private final Path sourceDirectory;
-  private final Path temporaryDirectory;
-  private final Path targetFile;
+  private static final Logger LOG =
+    LoggerFactory.getLogger(Calais.class);
+
+  private final CalaisConfiguration configuration;
 
   private Calais(
-    final Path inSourceDirectory,
-    final Path inTemporaryDirectory,
-    final Path inTargetFile)
+    final CalaisConfiguration inConfiguration)
+  {
+    this.configuration =
+      Objects.requireNonNull(inConfiguration, "configuration");
+  }
+
+  /**
+   * Create a generator.
+   *
+   * @param configuration The configuration
+   *
+   * @return A generator
+   */
+
+  public static Calais create(
+    final CalaisConfiguration configuration)
   {
-    this.sourceDirectory =
-      Objects.requireNonNull(inSourceDirectory, "sourceDirectory");
-    this.temporaryDirectory =
-      Objects.requireNonNull(inTemporaryDirectory, "temporaryDirectory");
-    this.targetFile =
-      Objects.requireNonNull(inTargetFile, "targetFile");
+    return new Calais(configuration);
   }
 
   public static void main(
     final String[] args)
     throws Exception
   {
-    final var sourceDirectory =
-      Paths.get(args[0]);
-    final var temporaryDirectory =
-      Paths.get(args[1]);
-    final var targetFile =
-      Paths.get(args[2]);
-
-    final var calais =
-      new Calais(sourceDirectory, temporaryDirectory, targetFile);
+    final var configuration = CalaisCommandLine.parse(args);
+    if (configuration.planOnly()) {
+      for (final var line : CalBuildPlan.create(configuration).show()) {
+        System.out.println(line);
+      }
+      return;
+    }
 
-    calais.execute();
+    create(configuration)
+      .execute();
   }
 
+  /**
+   * Generate the kit. All threads created during generation are stopped
+   * before this method returns.
+   *
+   * @throws Exception On errors
+   */
+
   public void execute()
     throws Exception
   {
-    final var builders =
-      ServiceLoader.load(NTBuilderProviderType.class)
-        .findFirst()
-        .orElseThrow(() -> new IllegalStateException(
-          "No builder service available"));
-
-    final var writers =
-      ServiceLoader.load(NTWriterProviderType.class)
-        .findFirst()
-        .orElseThrow(() -> new IllegalStateException(
-          "No writer service available"));
-
-    final var snare =
-      CalSnare.open(
-        this.sourceDirectory.resolve(
-          "8839__quartertone__snaredrum-14x08inchtama-highpitch-multisampled")
-      );
-    final var snareConverted =
-      CalSnareConversion.convertFLACs(
-        snare,
-        this.temporaryDirectory.resolve("snare")
-      );
+    try (var conversions = CalConversions.create(this.configuration)) {
+      this.execute(conversions);
+    }
+  }
 
-    final var bd =
-      CalBassDrum.open(
-        this.sourceDirectory.resolve(
-          "8586__quartertone__bassdrum-22x16-open-multisampled")
-      );
-    final var bdConverted =
-      CalBassDrumConversion.convertFLACs(
-        bd,
-        this.temporaryDirectory.resolve("bd")
-      );
+  /**
+   * Generate the kit using the given pool.
+   *
+   * @param conversions The pool
+   *
+   * @throws Exception On errors
+   */
 
-    final var hiHats =
-      CalChinaHiHat.open(
-        this.sourceDirectory.resolve(
-          "8656__quartertone__hihats-18x20inchchinahats-multisampled")
-      );
-    final var hiHatsConverted =
-      CalChinaHiHatConversion.convertFLACs(
-        hiHats,
-        this.temporaryDirectory.resolve("hh")
-      );
+  void execute(
+    final CalConversions conversions)
+    throws Exception
+  {
+    this.execute(
+      conversions,
+      CalProviders.create(this.configuration.providerWiring())
+    );
+  }
 
-    final var crash =
-      CalZildjian18.open(
-        this.sourceDirectory.resolve(
-          "8488__quartertone__crashcymbal-18inzildjianamedium")
-      );
-    final var crashConverted =
-      CalZildjian18Conversion.convertFLACs(
-        crash,
-        this.temporaryDirectory.resolve("crash")
-      );
+  /**
+   * Generate the kit using the given pool and providers.
+   *
+   * @param conversions The pool
+   * @param providers   The SF2 providers
+   *
+   * @throws Exception On errors
+   */
+
+  void execute(
+    final CalConversions conversions,
+    final CalProviders providers)
+    throws Exception
+  {
+    final var jobs = new ArrayList<CalConversionJob>();
+    final var kit = discover(this.configuration, jobs);
 
     final var calFont =
       CalFont.of(
-        builders,
-        writers,
-        snareConverted,
-        bdConverted,
-        hiHatsConverted,
-        crashConverted
+        providers.builders(),
+        providers.writers(),
+        kit.snare(),
+        kit.bassDrum(),
+        kit.hiHats(),
+        kit.crash(),
+        this.configuration.layout(),
+        this.configuration.sampleStore(),
+        this.configuration.chokeFamilies()
       );
 
-    calFont.write(this.targetFile);
+    final var targetFile = this.configuration.targetFile();
+
+    /*
+     * The build is planned as a graph in which each sample is decoded as
+     * soon as it has been converted, rather than after every sample has been
+     * converted, and the kit is written once every sample has been decoded.
+     * Any off-heap or spilled sample data is released as soon as the file
+     * is written.
+     */
+
+    try (var arena = CalSampleArena.create();
+         var cache = CalDecodedSampleCache.create(
+           this.configuration.temporaryDirectory()
+             .resolve("decoded-samples.pcm"),
+           this.configuration.sampleMemory())) {
+      final var graph = new CalBuildGraph();
+      final var converted = conversions.addConversions(graph, jobs);
+      final var sinks = new ArrayList<CalKitSinkType>();
+      if (this.configuration.sfz()) {
+        sinks.add(CalSFZSink.create(CalSFZSink.fileFor(targetFile)));
+      }
+
+      final var written =
+        calFont.addNodes(graph, targetFile, arena, cache, converted, sinks);
+
+      if (this.configuration.verifyOutput()) {
+        graph.add(
+          "verify",
+          targetFile.toString(),
+          written.weight(),
+          node -> 0L,
+          Optional.empty(),
+          input -> CalSF2Verifier.verify(targetFile),
+          List.of(written)
+        );
+      }
+
+      if (this.configuration.sizeProfile()) {
+        final var specs =
+          CalSamplePlan.create(
+            kit.snare(),
+            kit.bassDrum(),
+            kit.hiHats(),
+            kit.crash()
+          ).samples();
+
+        graph.add(
+          "profile",
+          targetFile.toString(),
+          0L,
+          node -> 0L,
+          Optional.empty(),
+          input -> {
+            final var profile = CalSizeProfile.create(targetFile, specs);
+            for (final var line : profile.show()) {
+              LOG.info("{}", line);
+            }
+            profile.store(CalSizeProfile.fileFor(targetFile));
+          },
+          List.of(written)
+        );
+      }
+
+      conversions.executeGraph(graph);
+    }
+  }
+
+  /**
+   * The converted samples of every drum family in a kit.
+   *
+   * @param snare    The snare samples
+   * @param bassDrum The bass drum samples
+   * @param hiHats   The hi-hat samples
+   * @param crash    The crash samples
+   */
+
+  record Kit(
+    CalSnare snare,
+    CalBassDrum bassDrum,
+    CalChinaHiHat hiHats,
+    CalZildjian18 crash)
+  {
+    Kit
+    {
+      Objects.requireNonNull(snare, "snare");
+      Objects.requireNonNull(bassDrum, "bassDrum");
+      Objects.requireNonNull(hiHats, "hiHats");
+      Objects.requireNonNull(crash, "crash");
+    }
+  }
+
+  /**
+   * Discover the source files of the kit, and plan their conversion without
+   * converting them.
+   *
+   * @param configuration The configuration
+   * @param jobs          The list to which the conversions are added
+   *
+   * @return The samples that the conversions will produce
+   *
+   * @throws IOException On errors
+   */
+
+  static Kit discover(
+    final CalaisConfiguration configuration,
+    final List<CalConversionJob> jobs)
+    throws IOException
+  {
+    final var sourceDirectory =
+      configuration.sourceDirectory();
+    final var temporaryDirectory =
+      configuration.temporaryDirectory();
+
+    final var snareDirectory =
+      sourceDirectory.resolve(
+        "8839__quartertone__snaredrum-14x08inchtama-highpitch-multisampled");
+    final var bdDirectory =
+      sourceDirectory.resolve(
+        "8586__quartertone__bassdrum-22x16-open-multisampled");
+    final var hiHatsDirectory =
+      sourceDirectory.resolve(
+        "8656__quartertone__hihats-18x20inchchinahats-multisampled");
+    final var crashDirectory =
+      sourceDirectory.resolve(
+        "8488__quartertone__crashcymbal-18inzildjianamedium");
+
+    /*
+     * The families are independent of each other, so each is discovered
+     * concurrently, on a slow or network-mounted sample library taking as
+     * long as the slowest family rather than the sum of all four. The jobs
+     * of each family are collected separately and then appended in family
+     * order, so that the jobs do not depend on the order of completion.
+     */
+
+    final var snareJobs = new ArrayList<CalConversionJob>();
+    final var bdJobs = new ArrayList<CalConversionJob>();
+    final var hiHatsJobs = new ArrayList<CalConversionJob>();
+    final var crashJobs = new ArrayList<CalConversionJob>();
+
+    try (var subtasks = new CalSubtasks()) {
+      final var snare =
+        subtasks.fork(
+          String.format("open the snare samples in %s", snareDirectory),
+          () -> CalSnareConversion.planConversions(
+            CalSnare.open(snareDirectory),
+            temporaryDirectory.resolve("snare"),
+            snareJobs)
+        );
+      final var bd =
+        subtasks.fork(
+          String.format("open the bass drum samples in %s", bdDirectory),
+          () -> CalBassDrumConversion.planConversions(
+            CalBassDrum.open(bdDirectory),
+            temporaryDirectory.resolve("bd"),
+            bdJobs)
+        );
+      final var hiHats =
+        subtasks.fork(
+          String.format("open the hi-hat samples in %s", hiHatsDirectory),
+          () -> CalChinaHiHatConversion.planConversions(
+            CalChinaHiHat.open(hiHatsDirectory),
+            temporaryDirectory.resolve("hh"),
+            hiHatsJobs)
+        );
+      final var crash =
+        subtasks.fork(
+          String.format("open the crash samples in %s", crashDirectory),
+          () -> CalZildjian18Conversion.planConversions(
+            CalZildjian18.open(crashDirectory),
+            temporaryDirectory.resolve("crash"),
+            crashJobs)
+        );
+
+      subtasks.join();
+
+      jobs.addAll(snareJobs);
+      jobs.addAll(bdJobs);
+      jobs.addAll(hiHatsJobs);
+      jobs.addAll(crashJobs);
+      return new Kit(snare.get(), bd.get(), hiHats.get(), crash.get());
+    }
   }
+
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A generator that builds several kits in a single JVM.
+ *
+ * <p>The kits share one conversion pool, one set of SF2 providers, and any
+ * cache of decoded samples. Up to {@code parallelKits} kits are generated
+ * at once, so that the work that each kit performs sequentially, such as
+ * writing the SF2 file, overlaps with the conversion and decoding work of
+ * the others and the pool is kept busy.</p>
+ */
+
+public final class CalaisBatch
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalaisBatch.class);
+
+  private final CalaisBatchConfiguration configuration;
+
+  private CalaisBatch(
+    final CalaisBatchConfiguration inConfiguration)
+  {
+    this.configuration =
+      Objects.requireNonNull(inConfiguration, "configuration");
+  }
+
+  /**
+   * The time taken to generate a kit.
+   *
+   * @param kit  The kit
+   * @param time The wall-clock time from the start of the kit to its end
+   */
+
+  public record KitTiming(
+    CalaisConfiguration kit,
+    Duration time)
+  {
+    public KitTiming
+    {
+      Objects.requireNonNull(kit, "kit");
+      Objects.requireNonNull(time, "time");
+    }
+  }
+
+  /**
+   * Create a batch generator.
+   *
+   * @param configuration The configuration
+   *
+   * @return A generator
+   */
+
+  public static CalaisBatch create(
+    final CalaisBatchConfiguration configuration)
+  {
+    return new CalaisBatch(configuration);
+  }
+
+  public static void main(
+    final String[] args)
+    throws Exception
+  {
+    final var configuration = CalaisCommandLine.parseBatch(args);
+    if (configuration.kits().get(0).planOnly()) {
+      for (final var kit : configuration.kits()) {
+        System.out.println(kit.targetFile());
+        for (final var line : CalBuildPlan.create(kit).show()) {
+          System.out.println("  " + line);
+        }
+      }
+      return;
+    }
+
+    create(configuration)
+      .execute();
+  }
+
+  /**
+   * Generate every kit. If any kit fails, the remaining kits are still
+   * generated, and the first failure is raised once all of the kits have
+   * finished. All threads created during generation are stopped before
+   * this method returns.
+   *
+   * @return The time taken by each kit, in kit order
+   *
+   * @throws Exception On errors
+   */
+
+  public List<KitTiming> execute()
+    throws Exception
+  {
+    final var kits = this.configuration.kits();
+    final var providers =
+      CalProviders.create(kits.get(0).providerWiring());
+
+    final var threadIndex = new AtomicInteger(0);
+    final var executor =
+      Executors.newFixedThreadPool(this.configuration.parallelKits(), r -> {
+        final var thread = new Thread(r);
+        thread.setName(
+          String.format(
+            "com.io7m.music.kit.calais.batch[%d]",
+            Integer.valueOf(threadIndex.incrementAndGet()))
+        );
+        thread.setDaemon(true);
+        return thread;
+      });
+
+    final var timeThen = System.nanoTime();
+    final var timings = new ArrayList<KitTiming>(kits.size());
+    Exception failure = null;
+
+    try (var conversions = CalConversions.create(kits.get(0))) {
+      try {
+        final var futures = new ArrayList<Future<KitTiming>>(kits.size());
+        for (final var kit : kits) {
+          futures.add(executor.submit(() -> {
+            return execute(kit, conversions, providers);
+          }));
+        }
+
+        for (var index = 0; index < futures.size(); ++index) {
+          try {
+            timings.add(futures.get(index).get());
+          } catch (final ExecutionException e) {
+            final var error =
+              new IOException(
+                String.format(
+                  "Failed to generate %s", kits.get(index).targetFile()),
+                e.getCause()
+              );
+            if (failure == null) {
+              failure = error;
+            } else {
+              failure.addSuppressed(error);
+            }
+          }
+        }
+      } finally {
+        executor.shutdownNow();
+        if (!executor.awaitTermination(30L, TimeUnit.SECONDS)) {
+          LOG.warn("batch threads did not terminate");
+        }
+      }
+    }
+
+    final var wall = Duration.ofNanos(System.nanoTime() - timeThen);
+    final var total =
+      timings.stream()
+        .map(KitTiming::time)
+        .reduce(Duration.ZERO, Duration::plus);
+
+    LOG.info(
+      "{} of {} kits generated in {} ms ({} ms of kit time)",
+      Integer.valueOf(timings.size()),
+      Integer.valueOf(kits.size()),
+      Long.valueOf(wall.toMillis()),
+      Long.valueOf(total.toMillis())
+    );
+
+    if (failure != null) {
+      throw failure;
+    }
+    return List.copyOf(timings);
+  }
+
+  private static KitTiming execute(
+    final CalaisConfiguration kit,
+    final CalConversions conversions,
+    final CalProviders providers)
+    throws Exception
+  {
+    LOG.info("start {}", kit.targetFile());
+    final var timeThen = System.nanoTime();
+    Calais.create(kit).execute(conversions, providers);
+    final var time = Duration.ofNanos(System.nanoTime() - timeThen);
+    LOG.info(
+      "{} generated in {} ms",
+      kit.targetFile(),
+      Long.valueOf(time.toMillis())
+    );
+    return new KitTiming(kit, time);
+  }
+}
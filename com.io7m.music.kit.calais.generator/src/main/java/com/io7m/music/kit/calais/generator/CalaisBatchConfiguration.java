@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The configuration for the generation of several kits in a single JVM.
+ * The kits share a single conversion pool, which is configured by the
+ * conversion options of the first kit; the conversion options of the other
+ * kits are ignored.
+ *
+ * @param kits         The kits
+ * @param parallelKits The maximum number of kits generated at once
+ */
+
+public record CalaisBatchConfiguration(
+  List<CalaisConfiguration> kits,
+  int parallelKits)
+{
+  /**
+   * The default maximum number of kits generated at once. Two is enough to
+   * overlap the sequential writing of one kit with the conversion of the
+   * next.
+   */
+
+  public static final int DEFAULT_PARALLEL_KITS = 2;
+
+  public CalaisBatchConfiguration
+  {
+    kits = List.copyOf(Objects.requireNonNull(kits, "kits"));
+
+    if (kits.isEmpty()) {
+      throw new IllegalArgumentException("At least one kit is required");
+    }
+    if (parallelKits < 1) {
+      throw new IllegalArgumentException(
+        String.format("Parallel kit count %d must be >= 1", parallelKits)
+      );
+    }
+
+    final var targets = new HashSet<Path>();
+    final var temporaries = new HashSet<Path>();
+    for (final var kit : kits) {
+      if (!targets.add(kit.targetFile().toAbsolutePath().normalize())) {
+        throw new IllegalArgumentException(
+          String.format("Target file %s is used twice", kit.targetFile())
+        );
+      }
+      final var temporary =
+        kit.temporaryDirectory().toAbsolutePath().normalize();
+      if (!temporaries.add(temporary)) {
+        throw new IllegalArgumentException(
+          String.format(
+            "Temporary directory %s is used twice",
+            kit.temporaryDirectory())
+        );
+      }
+    }
+  }
+}
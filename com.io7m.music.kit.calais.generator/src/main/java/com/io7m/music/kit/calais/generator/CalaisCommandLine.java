@@ -0,0 +1,421 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The command-line parser for the generator.
+ *
+ * <pre>
+ * Calais [options] source-directory temporary-directory target-file
+ *
+ *   --threads N                        Use N conversion threads
+ *   --reuse-converted-samples (true|false)
+ *                                      Reuse up-to-date converted samples
+ *   --providers (service-loader|direct)
+ *                                      Locate or directly wire SF2 providers
+ *   --layout (combined|per-drum)       Arrange instruments and presets
+ *   --verify-output (true|false)       Verify the structure of the output
+ *   --memory-budget SIZE               Limit the memory of concurrent tasks
+ *                                      (bytes, or with a k, m or g suffix)
+ *   --sample-store (heap|off-heap|spill)
+ *                                      Hold decoded samples on or off heap,
+ *                                      or spill them to disk beyond a limit
+ *   --sample-memory SIZE               Limit the decoded samples held on
+ *                                      the heap by the spill store
+ *   --split-decode-threshold SIZE      Decode FLAC files larger than SIZE
+ *                                      in parallel ranges (0 disables)
+ *   --flac-decoder (native|jflac)      Select the FLAC decoder
+ *   --prefetch-depth N                 Read up to N source files ahead
+ *                                      (0 disables)
+ *   --prefetch-memory SIZE             Limit the memory of files read ahead
+ *   --pcm-cache DIRECTORY              Share decoded samples through a cache
+ *   --pcm-cache-size SIZE              Limit the size of the cache
+ *   --plan (true|false)                Print a plan of the build instead of
+ *                                      building the kit
+ *   --size-profile (true|false)        Profile the size of the output
+ *   --choke (none|FAMILY[,FAMILY...])  Choke the articulations of each of
+ *                                      the given drum families (snare,
+ *                                      bass-drum, hi-hat, crash)
+ *   --sfz (true|false)                 Also write an SFZ instrument
+ * </pre>
+ */
+
+public final class CalaisCommandLine
+{
+  private CalaisCommandLine()
+  {
+
+  }
+
+  /**
+   * Parse the given command-line arguments.
+   *
+   * @param args The arguments
+   *
+   * @return A configuration
+   *
+   * @throws IllegalArgumentException On malformed arguments
+   */
+
+  public static CalaisConfiguration parse(
+    final String[] args)
+    throws IllegalArgumentException
+  {
+    final var positional = new ArrayList<String>(3);
+    final var options = new ArrayList<String[]>();
+    split(args, positional, options);
+
+    if (positional.size() != 3) {
+      throw new IllegalArgumentException(usage());
+    }
+
+    return configuration(
+      Paths.get(positional.get(0)),
+      Paths.get(positional.get(1)),
+      Paths.get(positional.get(2)),
+      options
+    );
+  }
+
+  /**
+   * Parse the given batch command-line arguments. The arguments consist of
+   * the options accepted by {@link #parse(String[])}, which apply to every
+   * kit, an optional {@code --parallel-kits N} option, and the name of a job
+   * file. Each line of the job file names the source directory, temporary
+   * directory, and target file of one kit, separated by whitespace. Blank
+   * lines and lines starting with {@code #} are ignored, and relative paths
+   * are resolved against the directory containing the job file.
+   *
+   * <pre>
+   * CalaisBatch [options] [--parallel-kits N] job-file
+   * </pre>
+   *
+   * @param args The arguments
+   *
+   * @return A batch configuration
+   *
+   * @throws IllegalArgumentException On malformed arguments or job files
+   * @throws IOException              If the job file cannot be read
+   */
+
+  public static CalaisBatchConfiguration parseBatch(
+    final String[] args)
+    throws IllegalArgumentException, IOException
+  {
+    final var positional = new ArrayList<String>(1);
+    final var options = new ArrayList<String[]>();
+    split(args, positional, options);
+
+    if (positional.size() != 1) {
+      throw new IllegalArgumentException(batchUsage());
+    }
+
+    var parallelKits = CalaisBatchConfiguration.DEFAULT_PARALLEL_KITS;
+    final var kitOptions = new ArrayList<String[]>(options.size());
+    for (final var option : options) {
+      if (option[0].equals("--parallel-kits")) {
+        parallelKits = parseInteger(option[0], option[1]);
+      } else {
+        kitOptions.add(option);
+      }
+    }
+
+    final var jobFile =
+      Paths.get(positional.get(0)).toAbsolutePath();
+    final var base =
+      jobFile.getParent();
+    final var lines =
+      Files.readAllLines(jobFile, UTF_8);
+
+    final var kits = new ArrayList<CalaisConfiguration>(lines.size());
+    for (var index = 0; index < lines.size(); ++index) {
+      final var line = lines.get(index).trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+
+      final var fields = line.split("\\s+");
+      if (fields.length != 3) {
+        throw new IllegalArgumentException(
+          String.format(
+            "%s:%d: Expected a source directory, temporary directory, "
+              + "and target file",
+            jobFile,
+            Integer.valueOf(index + 1))
+        );
+      }
+
+      kits.add(
+        configuration(
+          base.resolve(fields[0]).normalize(),
+          base.resolve(fields[1]).normalize(),
+          base.resolve(fields[2]).normalize(),
+          kitOptions
+        )
+      );
+    }
+
+    return new CalaisBatchConfiguration(kits, parallelKits);
+  }
+
+  private static void split(
+    final String[] args,
+    final List<String> positional,
+    final List<String[]> options)
+  {
+    for (var index = 0; index < args.length; ++index) {
+      final var arg = args[index];
+      if (arg.startsWith("--")) {
+        if (index + 1 >= args.length) {
+          throw new IllegalArgumentException(
+            String.format("Option %s requires a value", arg)
+          );
+        }
+        options.add(new String[]{arg, args[index + 1]});
+        ++index;
+      } else {
+        positional.add(arg);
+      }
+    }
+  }
+
+  private static CalaisConfiguration configuration(
+    final Path sourceDirectory,
+    final Path temporaryDirectory,
+    final Path targetFile,
+    final List<String[]> options)
+  {
+    final var builder =
+      CalaisConfiguration.builder(
+        sourceDirectory,
+        temporaryDirectory,
+        targetFile
+      );
+
+    for (final var option : options) {
+      final var name = option[0];
+      final var value = option[1];
+      switch (name) {
+        case "--threads" -> {
+          builder.setThreads(parseInteger(name, value));
+        }
+        case "--reuse-converted-samples" -> {
+          builder.setReuseConvertedSamples(parseBoolean(name, value));
+        }
+        case "--providers" -> {
+          builder.setProviderWiring(CalProviderWiring.ofExternalName(value));
+        }
+        case "--layout" -> {
+          builder.setLayout(CalFontLayout.ofExternalName(value));
+        }
+        case "--verify-output" -> {
+          builder.setVerifyOutput(parseBoolean(name, value));
+        }
+        case "--memory-budget" -> {
+          builder.setMemoryBudget(parseSize(name, value));
+        }
+        case "--sample-store" -> {
+          builder.setSampleStore(CalSampleStore.ofExternalName(value));
+        }
+        case "--sample-memory" -> {
+          builder.setSampleMemory(parseSize(name, value));
+        }
+        case "--split-decode-threshold" -> {
+          builder.setSplitDecodeThreshold(parseSize(name, value));
+        }
+        case "--flac-decoder" -> {
+          builder.setFLACDecoding(CalFLACDecoding.ofExternalName(value));
+        }
+        case "--prefetch-depth" -> {
+          builder.setPrefetchDepth(parseInteger(name, value));
+        }
+        case "--prefetch-memory" -> {
+          builder.setPrefetchMemory(parseSize(name, value));
+        }
+        case "--pcm-cache" -> {
+          builder.setPCMCacheDirectory(Paths.get(value));
+        }
+        case "--pcm-cache-size" -> {
+          builder.setPCMCacheSize(parseSize(name, value));
+        }
+        case "--plan" -> {
+          builder.setPlanOnly(parseBoolean(name, value));
+        }
+        case "--size-profile" -> {
+          builder.setSizeProfile(parseBoolean(name, value));
+        }
+        case "--choke" -> {
+          builder.setChokeFamilies(parseFamilies(value));
+        }
+        case "--sfz" -> {
+          builder.setSFZ(parseBoolean(name, value));
+        }
+        default -> {
+          throw new IllegalArgumentException(
+            String.format("Unrecognized option: %s%n%s", name, usage())
+          );
+        }
+      }
+    }
+
+    return builder.build();
+  }
+
+  static int parseInteger(
+    final String name,
+    final String value)
+  {
+    try {
+      return Integer.parseInt(value);
+    } catch (final NumberFormatException e) {
+      throw new IllegalArgumentException(
+        String.format("Option %s requires an integer (received %s)", name, value),
+        e
+      );
+    }
+  }
+
+  /**
+   * Parse a size in bytes, optionally with a {@code k}, {@code m} or
+   * {@code g} suffix.
+   *
+   * @param name  The name of the option, for error messages
+   * @param value The value
+   *
+   * @return The size in bytes
+   */
+
+  public static long parseSize(
+    final String name,
+    final String value)
+  {
+    final var lower = value.toLowerCase(Locale.ROOT);
+    final long multiplier;
+    final String digits;
+    if (lower.endsWith("k")) {
+      multiplier = 1024L;
+      digits = lower.substring(0, lower.length() - 1);
+    } else if (lower.endsWith("m")) {
+      multiplier = 1024L * 1024L;
+      digits = lower.substring(0, lower.length() - 1);
+    } else if (lower.endsWith("g")) {
+      multiplier = 1024L * 1024L * 1024L;
+      digits = lower.substring(0, lower.length() - 1);
+    } else {
+      multiplier = 1L;
+      digits = lower;
+    }
+
+    try {
+      return Math.multiplyExact(Long.parseLong(digits), multiplier);
+    } catch (final NumberFormatException | ArithmeticException e) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Option %s requires a size such as 512m (received %s)", name, value),
+        e
+      );
+    }
+  }
+
+  /**
+   * Parse a comma-separated list of drum families, or {@code none}.
+   *
+   * @param value The value
+   *
+   * @return The families
+   */
+
+  public static Set<CalDrumFamily> parseFamilies(
+    final String value)
+  {
+    final var families = EnumSet.noneOf(CalDrumFamily.class);
+    if (!"none".equals(value)) {
+      for (final var name : value.split(",")) {
+        families.add(CalDrumFamily.ofExternalName(name.trim()));
+      }
+    }
+    return families;
+  }
+
+  static boolean parseBoolean(
+    final String name,
+    final String value)
+  {
+    return switch (value) {
+      case "true" -> true;
+      case "false" -> false;
+      default -> throw new IllegalArgumentException(
+        String.format(
+          "Option %s requires true or false (received %s)", name, value)
+      );
+    };
+  }
+
+  private static String batchUsage()
+  {
+    final var lines = new ArrayList<String>();
+    lines.add("usage: [options] [--parallel-kits N] job-file");
+    lines.addAll(optionUsage());
+    return String.join(System.lineSeparator(), lines);
+  }
+
+  private static String usage()
+  {
+    final var lines = new ArrayList<String>();
+    lines.add(
+      "usage: [options] source-directory temporary-directory target-file");
+    lines.addAll(optionUsage());
+    return String.join(System.lineSeparator(), lines);
+  }
+
+  private static List<String> optionUsage()
+  {
+    return List.of(
+      "  --threads N",
+      "  --reuse-converted-samples (true|false)",
+      "  --providers (service-loader|direct)",
+      "  --layout (combined|per-drum)",
+      "  --verify-output (true|false)",
+      "  --memory-budget SIZE",
+      "  --sample-store (heap|off-heap|spill)",
+      "  --sample-memory SIZE",
+      "  --split-decode-threshold SIZE",
+      "  --flac-decoder (native|jflac)",
+      "  --prefetch-depth N",
+      "  --prefetch-memory SIZE",
+      "  --pcm-cache DIRECTORY",
+      "  --pcm-cache-size SIZE",
+      "  --plan (true|false)",
+      "  --size-profile (true|false)",
+      "  --choke (none|FAMILY[,FAMILY...])",
+      "  --sfz (true|false)"
+    );
+  }
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The configuration for a single kit generation.
+ *
+ * @param sourceDirectory        The directory containing the source FLAC files
+ * @param temporaryDirectory     The directory used for converted samples
+ * @param targetFile             The output SF2 file
+ * @param threads                The number of threads used for conversion
+ * @param reuseConvertedSamples  {@code true} if converted samples that are
+ *                               newer than their sources should be reused
+ * @param providerWiring         The means by which SF2 providers are located
+ * @param layout                 The arrangement of instruments and presets
+ * @param verifyOutput           {@code true} if the structure of the written
+ *                               SF2 file should be verified
+ * @param memoryBudget           The number of bytes that concurrently
+ *                               executing conversion and decoding tasks may
+ *                               use between them
+ * @param sampleStore            Where decoded samples are held until they
+ *                               are written
+ * @param splitDecodeThreshold   The size in bytes above which a FLAC file is
+ *                               split into ranges that are decoded in
+ *                               parallel, or 0 to never split files
+ * @param flacDecoding           The decoder used to read source files
+ * @param prefetchDepth          The number of source files that may be read
+ *                               ahead of the conversions that consume them,
+ *                               or 0 to disable reading ahead
+ * @param prefetchMemory         The number of bytes of source files that may
+ *                               be held in memory after being read ahead
+ * @param pcmCacheDirectory      The directory of a cache of decoded samples
+ *                               that may be shared between workspaces
+ * @param pcmCacheSize           The size in bytes beyond which the least
+ *                               recently used decoded samples are evicted
+ *                               from the cache
+ * @param planOnly               {@code true} if the build should only be
+ *                               planned, without decoding any audio
+ * @param sizeProfile            {@code true} if a breakdown of the size of
+ *                               the written SF2 file should be produced
+ * @param chokeFamilies          The drum families whose articulations choke
+ *                               each other
+ * @param sampleMemory           The number of bytes of decoded samples held
+ *                               on the heap by the {@code spill} sample
+ *                               store
+ * @param sfz                    {@code true} if the kit should also be
+ *                               written as an SFZ instrument alongside the
+ *                               SF2 file
+ */
+
+public record CalaisConfiguration(
+  Path sourceDirectory,
+  Path temporaryDirectory,
+  Path targetFile,
+  int threads,
+  boolean reuseConvertedSamples,
+  CalProviderWiring providerWiring,
+  CalFontLayout layout,
+  boolean verifyOutput,
+  long memoryBudget,
+  CalSampleStore sampleStore,
+  long splitDecodeThreshold,
+  CalFLACDecoding flacDecoding,
+  int prefetchDepth,
+  long prefetchMemory,
+  Optional<Path> pcmCacheDirectory,
+  long pcmCacheSize,
+  boolean planOnly,
+  boolean sizeProfile,
+  Set<CalDrumFamily> chokeFamilies,
+  long sampleMemory,
+  boolean sfz)
+{
+  public CalaisConfiguration
+  {
+    Objects.requireNonNull(sourceDirectory, "sourceDirectory");
+    Objects.requireNonNull(temporaryDirectory, "temporaryDirectory");
+    Objects.requireNonNull(targetFile, "targetFile");
+    Objects.requireNonNull(providerWiring, "providerWiring");
+    Objects.requireNonNull(layout, "layout");
+    Objects.requireNonNull(sampleStore, "sampleStore");
+    Objects.requireNonNull(flacDecoding, "flacDecoding");
+    Objects.requireNonNull(pcmCacheDirectory, "pcmCacheDirectory");
+    chokeFamilies =
+      Set.copyOf(Objects.requireNonNull(chokeFamilies, "chokeFamilies"));
+
+    if (threads < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Thread count %d must be >= 1", Integer.valueOf(threads))
+      );
+    }
+    if (splitDecodeThreshold < 0L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Split decode threshold %d must be >= 0",
+          Long.valueOf(splitDecodeThreshold))
+      );
+    }
+    if (prefetchDepth < 0) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Prefetch depth %d must be >= 0", Integer.valueOf(prefetchDepth))
+      );
+    }
+    if (prefetchMemory < 1L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Prefetch memory %d must be >= 1", Long.valueOf(prefetchMemory))
+      );
+    }
+    if (pcmCacheSize < 0L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "PCM cache size %d must be >= 0", Long.valueOf(pcmCacheSize))
+      );
+    }
+    if (sampleMemory < 0L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Sample memory %d must be >= 0", Long.valueOf(sampleMemory))
+      );
+    }
+    if (memoryBudget < 1L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Memory budget %d must be >= 1", Long.valueOf(memoryBudget))
+      );
+    }
+  }
+
+  /**
+   * Create a new configuration builder.
+   *
+   * @param sourceDirectory    The directory containing the source FLAC files
+   * @param temporaryDirectory The directory used for converted samples
+   * @param targetFile         The output SF2 file
+   *
+   * @return A new builder
+   */
+
+  public static Builder builder(
+    final Path sourceDirectory,
+    final Path temporaryDirectory,
+    final Path targetFile)
+  {
+    return new Builder(sourceDirectory, temporaryDirectory, targetFile);
+  }
+
+  /**
+   * A mutable builder for configurations.
+   */
+
+  public static final class Builder
+  {
+    private final Path sourceDirectory;
+    private final Path temporaryDirectory;
+    private final Path targetFile;
+    private int threads;
+    private boolean reuseConvertedSamples;
+    private CalProviderWiring providerWiring;
+    private CalFontLayout layout;
+    private boolean verifyOutput;
+    private long memoryBudget;
+    private CalSampleStore sampleStore;
+    private long splitDecodeThreshold;
+    private CalFLACDecoding flacDecoding;
+    private int prefetchDepth;
+    private long prefetchMemory;
+    private Optional<Path> pcmCacheDirectory;
+    private long pcmCacheSize;
+    private boolean planOnly;
+    private boolean sizeProfile;
+    private Set<CalDrumFamily> chokeFamilies;
+    private long sampleMemory;
+    private boolean sfz;
+
+    private Builder(
+      final Path inSourceDirectory,
+      final Path inTemporaryDirectory,
+      final Path inTargetFile)
+    {
+      this.sourceDirectory =
+        Objects.requireNonNull(inSourceDirectory, "sourceDirectory");
+      this.temporaryDirectory =
+        Objects.requireNonNull(inTemporaryDirectory, "temporaryDirectory");
+      this.targetFile =
+        Objects.requireNonNull(inTargetFile, "targetFile");
+      this.threads =
+        Runtime.getRuntime().availableProcessors();
+      this.reuseConvertedSamples =
+        false;
+      this.providerWiring =
+        CalProviderWiring.SERVICE_LOADER;
+      this.layout =
+        CalFontLayout.COMBINED;
+      this.verifyOutput =
+        true;
+      this.memoryBudget =
+        Runtime.getRuntime().maxMemory() / 2L;
+      this.sampleStore =
+        CalSampleStore.HEAP;
+      this.splitDecodeThreshold =
+        16L * 1024L * 1024L;
+      this.flacDecoding =
+        CalFLACDecoding.NATIVE;
+      this.prefetchDepth =
+        4;
+      this.prefetchMemory =
+        256L * 1024L * 1024L;
+      this.pcmCacheDirectory =
+        Optional.empty();
+      this.pcmCacheSize =
+        4L * 1024L * 1024L * 1024L;
+      this.planOnly =
+        false;
+      this.sizeProfile =
+        false;
+      this.chokeFamilies =
+        EnumSet.of(CalDrumFamily.HI_HAT);
+      this.sampleMemory =
+        Runtime.getRuntime().maxMemory() / 4L;
+      this.sfz =
+        false;
+    }
+
+    /**
+     * Set the number of threads used for conversion.
+     *
+     * @param inThreads The thread count
+     *
+     * @return this
+     */
+
+    public Builder setThreads(
+      final int inThreads)
+    {
+      this.threads = inThreads;
+      return this;
+    }
+
+    /**
+     * Set whether previously converted samples may be reused.
+     *
+     * @param inReuse {@code true} if samples should be reused
+     *
+     * @return this
+     */
+
+    public Builder setReuseConvertedSamples(
+      final boolean inReuse)
+    {
+      this.reuseConvertedSamples = inReuse;
+      return this;
+    }
+
+    /**
+     * Set the means by which SF2 providers are located.
+     *
+     * @param inWiring The wiring
+     *
+     * @return this
+     */
+
+    public Builder setProviderWiring(
+      final CalProviderWiring inWiring)
+    {
+      this.providerWiring =
+        Objects.requireNonNull(inWiring, "providerWiring");
+      return this;
+    }
+
+    /**
+     * Set the arrangement of instruments and presets.
+     *
+     * @param inLayout The layout
+     *
+     * @return this
+     */
+
+    public Builder setLayout(
+      final CalFontLayout inLayout)
+    {
+      this.layout =
+        Objects.requireNonNull(inLayout, "layout");
+      return this;
+    }
+
+    /**
+     * Set whether the structure of the written SF2 file should be verified.
+     *
+     * @param inVerify {@code true} if the output should be verified
+     *
+     * @return this
+     */
+
+    public Builder setVerifyOutput(
+      final boolean inVerify)
+    {
+      this.verifyOutput = inVerify;
+      return this;
+    }
+
+    /**
+     * Set the memory budget for concurrently executing tasks. The default
+     * is half of the maximum heap size.
+     *
+     * @param inBytes The budget in bytes
+     *
+     * @return this
+     */
+
+    public Builder setMemoryBudget(
+      final long inBytes)
+    {
+      this.memoryBudget = inBytes;
+      return this;
+    }
+
+    /**
+     * Set where decoded samples are held until they are written.
+     *
+     * @param inSampleStore The sample store
+     *
+     * @return this
+     */
+
+    public Builder setSampleStore(
+      final CalSampleStore inSampleStore)
+    {
+      this.sampleStore =
+        Objects.requireNonNull(inSampleStore, "sampleStore");
+      return this;
+    }
+
+    /**
+     * Set the size above which FLAC files are split into ranges that are
+     * decoded in parallel. The default is 16 MiB.
+     *
+     * @param inBytes The threshold in bytes, or 0 to never split files
+     *
+     * @return this
+     */
+
+    public Builder setSplitDecodeThreshold(
+      final long inBytes)
+    {
+      this.splitDecodeThreshold = inBytes;
+      return this;
+    }
+
+    /**
+     * Set the decoder used to read source files.
+     *
+     * @param inDecoding The decoder
+     *
+     * @return this
+     */
+
+    public Builder setFLACDecoding(
+      final CalFLACDecoding inDecoding)
+    {
+      this.flacDecoding =
+        Objects.requireNonNull(inDecoding, "flacDecoding");
+      return this;
+    }
+
+    /**
+     * Set the number of source files that may be read ahead of the
+     * conversions that consume them. The default is 4.
+     *
+     * @param inDepth The depth, or 0 to disable reading ahead
+     *
+     * @return this
+     */
+
+    public Builder setPrefetchDepth(
+      final int inDepth)
+    {
+      this.prefetchDepth = inDepth;
+      return this;
+    }
+
+    /**
+     * Set the number of bytes of source files that may be held in memory
+     * after being read ahead. The default is 256 MiB.
+     *
+     * @param inBytes The size in bytes
+     *
+     * @return this
+     */
+
+    public Builder setPrefetchMemory(
+      final long inBytes)
+    {
+      this.prefetchMemory = inBytes;
+      return this;
+    }
+
+    /**
+     * Set the directory of a cache of decoded samples that may be shared
+     * between workspaces. By default, no cache is used.
+     *
+     * @param inDirectory The cache directory
+     *
+     * @return this
+     */
+
+    public Builder setPCMCacheDirectory(
+      final Path inDirectory)
+    {
+      this.pcmCacheDirectory =
+        Optional.of(Objects.requireNonNull(inDirectory, "directory"));
+      return this;
+    }
+
+    /**
+     * Set the size beyond which the least recently used decoded samples are
+     * evicted from the cache. The default is 4 GiB.
+     *
+     * @param inBytes The size in bytes
+     *
+     * @return this
+     */
+
+    public Builder setPCMCacheSize(
+      final long inBytes)
+    {
+      this.pcmCacheSize = inBytes;
+      return this;
+    }
+
+    /**
+     * Set whether the build should only be planned. A plan predicts the
+     * output size, memory use and build time from the headers of the
+     * source files, without decoding any audio.
+     *
+     * @param inPlanOnly {@code true} if the build should only be planned
+     *
+     * @return this
+     */
+
+    public Builder setPlanOnly(
+      final boolean inPlanOnly)
+    {
+      this.planOnly = inPlanOnly;
+      return this;
+    }
+
+    /**
+     * Set whether a breakdown of the size of the written SF2 file should be
+     * produced. The breakdown is logged as a table, and written as JSON to
+     * a file alongside the SF2 file.
+     *
+     * @param inSizeProfile {@code true} if the size should be profiled
+     *
+     * @return this
+     */
+
+    public Builder setSizeProfile(
+      final boolean inSizeProfile)
+    {
+      this.sizeProfile = inSizeProfile;
+      return this;
+    }
+
+    /**
+     * Set the drum families whose articulations choke each other: striking
+     * any articulation of a family silences any articulation of the same
+     * family that is still sounding. The default is the hi-hats alone.
+     *
+     * @param inFamilies The families
+     *
+     * @return this
+     */
+
+    public Builder setChokeFamilies(
+      final Set<CalDrumFamily> inFamilies)
+    {
+      this.chokeFamilies =
+        Set.copyOf(Objects.requireNonNull(inFamilies, "chokeFamilies"));
+      return this;
+    }
+
+    /**
+     * Set the number of bytes of decoded samples that the {@code spill}
+     * sample store holds on the heap before spilling the least recently
+     * used samples to disk. The default is a quarter of the maximum heap
+     * size.
+     *
+     * @param inBytes The size in bytes
+     *
+     * @return this
+     */
+
+    public Builder setSampleMemory(
+      final long inBytes)
+    {
+      this.sampleMemory = inBytes;
+      return this;
+    }
+
+    /**
+     * Set whether the kit should also be written as an SFZ instrument, with
+     * the samples as WAV files, alongside the SF2 file. The SFZ instrument
+     * is written from the same decoded samples as the SF2 file.
+     *
+     * @param inSFZ {@code true} if an SFZ instrument should be written
+     *
+     * @return this
+     */
+
+    public Builder setSFZ(
+      final boolean inSFZ)
+    {
+      this.sfz = inSFZ;
+      return this;
+    }
+
+    /**
+     * @return A configuration based on the values given so far
+     */
+
+    public CalaisConfiguration build()
+    {
+      return new CalaisConfiguration(
+        this.sourceDirectory,
+        this.temporaryDirectory,
+        this.targetFile,
+        this.threads,
+        this.reuseConvertedSamples,
+        this.providerWiring,
+        this.layout,
+        this.verifyOutput,
+        this.memoryBudget,
+        this.sampleStore,
+        this.splitDecodeThreshold,
+        this.flacDecoding,
+        this.prefetchDepth,
+        this.prefetchMemory,
+        this.pcmCacheDirectory,
+        this.pcmCacheSize,
+        this.planOnly,
+        this.sizeProfile,
+        this.chokeFamilies,
+        this.sampleMemory,
+        this.sfz
+      );
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A fingerprint of everything that can affect the generated kit: the names,
+ * sizes and modification times of the source FLAC files, the embedded
+ * comment, the contents of the generator's own jar or class files, and the
+ * configuration options that change the output. Two builds with equal
+ * fingerprints produce the same output. The generator version carried by
+ * the comment is not enough on its own, because a snapshot version does not
+ * change when the generator does.
+ */
+
+public final class CalaisInputFingerprint
+{
+  private CalaisInputFingerprint()
+  {
+
+  }
+
+  /**
+   * Compute the input fingerprint for the given configuration.
+   *
+   * @param configuration The configuration
+   *
+   * @return The fingerprint as a hex string
+   *
+   * @throws IOException On errors
+   */
+
+  public static String compute(
+    final CalaisConfiguration configuration)
+    throws IOException
+  {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    final var sourceDirectory =
+      configuration.sourceDirectory().toAbsolutePath();
+
+    final List<Path> files;
+    try (var pathStream = Files.walk(sourceDirectory)) {
+      files =
+        pathStream
+          .filter(Files::isRegularFile)
+          .filter(p -> p.getFileName().toString().endsWith(".flac"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+
+    for (final var file : files) {
+      final var line =
+        String.format(
+          "%s\t%d\t%d\n",
+          sourceDirectory.relativize(file),
+          Long.valueOf(Files.size(file)),
+          Long.valueOf(Files.getLastModifiedTime(file).toMillis())
+        );
+      digest.update(line.getBytes(UTF_8));
+    }
+
+    digest.update(CalFont.textResource("comment.txt").getBytes(UTF_8));
+    updateCode(digest);
+    digest.update(outputOptions(configuration).getBytes(UTF_8));
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /**
+   * Update the digest with the contents of the jar file or class directory
+   * from which the generator was loaded. If the generator's code cannot be
+   * located, the fingerprint is made unique, so that the kit is always
+   * rebuilt rather than wrongly considered up-to-date.
+   */
+
+  private static void updateCode(
+    final MessageDigest digest)
+    throws IOException
+  {
+    final var codeSource =
+      CalaisInputFingerprint.class.getProtectionDomain().getCodeSource();
+
+    Path code = null;
+    if (codeSource != null && codeSource.getLocation() != null) {
+      try {
+        code = Path.of(codeSource.getLocation().toURI());
+      } catch (final URISyntaxException
+                     | IllegalArgumentException
+                     | FileSystemNotFoundException e) {
+        code = null;
+      }
+    }
+
+    if (code == null) {
+      digest.update(
+        String.format("code=%s\n", UUID.randomUUID()).getBytes(UTF_8));
+      return;
+    }
+
+    if (!Files.isDirectory(code)) {
+      digest.update(Files.readAllBytes(code));
+      return;
+    }
+
+    final List<Path> files;
+    try (var pathStream = Files.walk(code)) {
+      files =
+        pathStream
+          .filter(Files::isRegularFile)
+          .sorted()
+          .collect(Collectors.toList());
+    }
+
+    for (final var file : files) {
+      digest.update(
+        String.format("%s\n", code.relativize(file)).getBytes(UTF_8));
+      digest.update(Files.readAllBytes(file));
+    }
+  }
+
+  private static String outputOptions(
+    final CalaisConfiguration configuration)
+  {
+    final var choke =
+      configuration.chokeFamilies()
+        .stream()
+        .sorted()
+        .map(CalDrumFamily::externalName)
+        .collect(Collectors.joining(","));
+
+    return String.format(
+      "layout=%s\nchoke=%s\nsfz=%s\n",
+      configuration.layout().externalName(),
+      choke,
+      Boolean.valueOf(configuration.sfz())
+    );
+  }
+}
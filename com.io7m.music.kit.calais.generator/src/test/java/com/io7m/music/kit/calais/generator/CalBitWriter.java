@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.util.Arrays;
+
+/**
+ * A growable big-endian bit writer, as required by the FLAC bitstream.
+ */
+
+final class CalBitWriter
+{
+  private byte[] data;
+  private int bytes;
+  private long accumulator;
+  private int accumulatorBits;
+
+  CalBitWriter()
+  {
+    this.data = new byte[8192];
+  }
+
+  void writeBits(
+    final long value,
+    final int count)
+  {
+    for (var remaining = count; remaining > 0; ) {
+      final var take = Math.min(remaining, 32);
+      remaining -= take;
+      final var chunk = (value >>> remaining) & ((1L << take) - 1L);
+      this.accumulator = (this.accumulator << take) | chunk;
+      this.accumulatorBits += take;
+      while (this.accumulatorBits >= 8) {
+        this.accumulatorBits -= 8;
+        this.put((int) (this.accumulator >>> this.accumulatorBits));
+      }
+    }
+  }
+
+  void writeSigned(
+    final long value,
+    final int count)
+  {
+    this.writeBits(value & ((1L << count) - 1L), count);
+  }
+
+  void writeUnary(
+    final long zeros)
+  {
+    for (var index = 0L; index < zeros; ++index) {
+      this.writeBits(0L, 1);
+    }
+    this.writeBits(1L, 1);
+  }
+
+  void alignToByte()
+  {
+    if (this.accumulatorBits > 0) {
+      this.writeBits(0L, 8 - this.accumulatorBits);
+    }
+  }
+
+  void writeByte(
+    final int value)
+  {
+    this.writeBits(value & 0xff, 8);
+  }
+
+  int byteCount()
+  {
+    return this.bytes;
+  }
+
+  int byteAt(
+    final int index)
+  {
+    return this.data[index] & 0xff;
+  }
+
+  byte[] toByteArray()
+  {
+    return Arrays.copyOf(this.data, this.bytes);
+  }
+
+  private void put(
+    final int value)
+  {
+    if (this.bytes == this.data.length) {
+      this.data = Arrays.copyOf(this.data, this.data.length * 2);
+    }
+    this.data[this.bytes] = (byte) value;
+    ++this.bytes;
+  }
+}
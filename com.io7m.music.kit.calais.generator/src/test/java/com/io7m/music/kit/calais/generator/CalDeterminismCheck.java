@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A check that the generated kit is byte-identical regardless of the number
+ * of threads and the order in which conversion and decoding tasks complete.
+ * For each layout, the kit is generated several times from scratch with
+ * different thread counts, alternating sample stores, and with task
+ * submission shuffled and delayed by a different seed each time; the
+ * SHA-256 of every output must match.
+ *
+ * <pre>
+ * CalDeterminismCheck corpus-directory work-directory [runs]
+ * </pre>
+ */
+
+public final class CalDeterminismCheck
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalDeterminismCheck.class);
+
+  private CalDeterminismCheck()
+  {
+
+  }
+
+  public static void main(
+    final String[] args)
+    throws Exception
+  {
+    if (args.length < 2) {
+      throw new IllegalArgumentException(
+        "usage: corpus-directory work-directory [runs]"
+      );
+    }
+
+    final var corpus =
+      Paths.get(args[0]).toAbsolutePath();
+    final var work =
+      Paths.get(args[1]).toAbsolutePath();
+    final var runs =
+      args.length > 2 ? CalaisCommandLine.parseInteger("runs", args[2]) : 4;
+
+    final var processors = Runtime.getRuntime().availableProcessors();
+    final var threadCounts =
+      List.of(
+        Integer.valueOf(1),
+        Integer.valueOf(2),
+        Integer.valueOf(processors),
+        Integer.valueOf(processors * 2)
+      );
+
+    for (final var layout : CalFontLayout.values()) {
+      final var hashes = new ArrayList<String>(runs);
+      for (var run = 0; run < runs; ++run) {
+        final var threads = threadCounts.get(run % threadCounts.size());
+        final var store =
+          CalSampleStore.values()[run % CalSampleStore.values().length];
+        final var directory =
+          work.resolve(layout.externalName())
+            .resolve(String.format("run-%d", Integer.valueOf(run)));
+
+        final var configuration =
+          CalaisConfiguration.builder(
+              corpus,
+              directory.resolve("samples"),
+              directory.resolve("calais.sf2"))
+            .setThreads(threads.intValue())
+            .setReuseConvertedSamples(false)
+            .setProviderWiring(CalProviderWiring.DIRECT)
+            .setLayout(layout)
+            .setSampleStore(store)
+            .build();
+
+        try (var conversions =
+               CalConversions.createPerturbed(configuration, run)) {
+          Calais.create(configuration).execute(conversions);
+        }
+
+        final var hash = sha256(configuration.targetFile());
+        LOG.info(
+          "{} run {} ({} threads, {}): {}",
+          layout.externalName(),
+          Integer.valueOf(run),
+          threads,
+          store.externalName(),
+          hash
+        );
+        hashes.add(hash);
+      }
+
+      if (new TreeSet<>(hashes).size() != 1) {
+        throw new IllegalStateException(
+          String.format(
+            "Output for layout %s differs between runs: %s",
+            layout.externalName(),
+            hashes
+          )
+        );
+      }
+    }
+  }
+
+  private static String sha256(
+    final Path file)
+    throws IOException, NoSuchAlgorithmException
+  {
+    final var digest = MessageDigest.getInstance("SHA-256");
+    final var buffer = new byte[65536];
+    try (var stream = Files.newInputStream(file)) {
+      while (true) {
+        final var count = stream.read(buffer);
+        if (count == -1) {
+          break;
+        }
+        digest.update(buffer, 0, count);
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A check that the native FLAC decoder produces exactly the same 16-bit
+ * data as the jflac decoder, for every FLAC file in a directory tree.
+ *
+ * <pre>
+ * CalFLACDecoderCheck corpus-directory
+ * </pre>
+ */
+
+public final class CalFLACDecoderCheck
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalFLACDecoderCheck.class);
+
+  private CalFLACDecoderCheck()
+  {
+
+  }
+
+  public static void main(
+    final String[] args)
+    throws Exception
+  {
+    if (args.length != 1) {
+      throw new IllegalArgumentException("usage: corpus-directory");
+    }
+
+    final List<Path> files;
+    try (var stream = Files.walk(Paths.get(args[0]))) {
+      files = stream
+        .filter(path -> path.getFileName().toString().endsWith(".flac"))
+        .sorted()
+        .collect(Collectors.toList());
+    }
+
+    if (files.isEmpty()) {
+      throw new IllegalStateException(
+        String.format("No FLAC files found in %s", args[0])
+      );
+    }
+
+    var frames = 0L;
+    for (final var file : files) {
+      try (var expected = CalFLAC.readAs16(file, CalFLACDecoding.JFLAC);
+           var received = CalFLAC.readAs16(file, CalFLACDecoding.NATIVE)) {
+        frames += compare(file, expected, received);
+      }
+    }
+
+    LOG.info(
+      "{} files ({} frames) decoded identically",
+      Integer.valueOf(files.size()),
+      Long.valueOf(frames)
+    );
+  }
+
+  private static long compare(
+    final Path file,
+    final AudioInputStream expected,
+    final AudioInputStream received)
+    throws IOException
+  {
+    if (!expected.getFormat().matches(received.getFormat())) {
+      throw new IllegalStateException(
+        String.format(
+          "%s: Format %s differs from %s",
+          file,
+          received.getFormat(),
+          expected.getFormat())
+      );
+    }
+
+    final var bufferExpected = new byte[65536];
+    final var bufferReceived = new byte[65536];
+    var offset = 0L;
+    while (true) {
+      final var countExpected =
+        expected.readNBytes(bufferExpected, 0, bufferExpected.length);
+      final var countReceived =
+        received.readNBytes(bufferReceived, 0, bufferReceived.length);
+
+      final var mismatch =
+        Arrays.mismatch(
+          bufferExpected, 0, countExpected,
+          bufferReceived, 0, countReceived
+        );
+      if (mismatch != -1) {
+        throw new IllegalStateException(
+          String.format(
+            "%s: Decoded data differs at byte %d",
+            file,
+            Long.valueOf(offset + mismatch))
+        );
+      }
+
+      offset += countExpected;
+      if (countExpected < bufferExpected.length) {
+        break;
+      }
+    }
+    return offset / expected.getFormat().getFrameSize();
+  }
+}
@@ -0,0 +1,718 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A small FLAC encoder used to produce synthetic sample libraries. The
+ * encoder is not intended to compress well: it deliberately rotates through
+ * every subframe type, stereo decorrelation mode and residual coding method
+ * so that the resulting files exercise every path of a decoder.
+ */
+
+public final class CalFLACWriter
+{
+  private static final int BLOCK_SIZE = 4096;
+  private static final int SEEK_POINT_INTERVAL_FRAMES = 8;
+
+  private static final int CHANNELS_INDEPENDENT = 0;
+  private static final int CHANNELS_LEFT_SIDE = 8;
+  private static final int CHANNELS_RIGHT_SIDE = 9;
+  private static final int CHANNELS_MID_SIDE = 10;
+
+  private CalFLACWriter()
+  {
+
+  }
+
+  /**
+   * Encode the given planar samples to a FLAC file.
+   *
+   * @param file          The output file
+   * @param sampleRate    The sample rate
+   * @param bitsPerSample The bits per sample (16 or 24)
+   * @param samples       The samples, indexed by channel and then by frame
+   *
+   * @throws IOException On errors
+   */
+
+  public static void write(
+    final Path file,
+    final int sampleRate,
+    final int bitsPerSample,
+    final int[][] samples)
+    throws IOException
+  {
+    final var channels = samples.length;
+    if (channels < 1 || channels > 2) {
+      throw new IllegalArgumentException("Only mono and stereo are supported");
+    }
+    if (bitsPerSample != 16 && bitsPerSample != 24) {
+      throw new IllegalArgumentException("Only 16 and 24 bit are supported");
+    }
+
+    final var frames = samples[0].length;
+    final var frameBytes = new CalBitWriter();
+    final var seekPoints = new ArrayList<long[]>();
+    var minFrameSize = Integer.MAX_VALUE;
+    var maxFrameSize = 0;
+
+    final var frameCount = (frames + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    for (var frameIndex = 0; frameIndex < frameCount; ++frameIndex) {
+      final var offset = frameIndex * BLOCK_SIZE;
+      final var blockSize = Math.min(BLOCK_SIZE, frames - offset);
+
+      if (frameIndex % SEEK_POINT_INTERVAL_FRAMES == 0) {
+        seekPoints.add(new long[]{
+          offset,
+          frameBytes.byteCount(),
+          blockSize,
+        });
+      }
+
+      final var start = frameBytes.byteCount();
+      writeFrame(
+        frameBytes,
+        frameIndex,
+        sampleRate,
+        bitsPerSample,
+        samples,
+        offset,
+        blockSize
+      );
+      final var size = frameBytes.byteCount() - start;
+      minFrameSize = Math.min(minFrameSize, size);
+      maxFrameSize = Math.max(maxFrameSize, size);
+    }
+
+    if (frameCount == 0) {
+      minFrameSize = 0;
+    }
+
+    final var header = new CalBitWriter();
+    header.writeBits(0x664C6143L, 32);
+
+    /*
+     * STREAMINFO.
+     */
+
+    header.writeBits(0L, 1);
+    header.writeBits(0L, 7);
+    header.writeBits(34L, 24);
+    header.writeBits(BLOCK_SIZE, 16);
+    header.writeBits(BLOCK_SIZE, 16);
+    header.writeBits(minFrameSize, 24);
+    header.writeBits(maxFrameSize, 24);
+    header.writeBits(sampleRate, 20);
+    header.writeBits(channels - 1L, 3);
+    header.writeBits(bitsPerSample - 1L, 5);
+    header.writeBits(frames, 36);
+    for (final var b : md5(samples, bitsPerSample)) {
+      header.writeByte(b);
+    }
+
+    /*
+     * SEEKTABLE.
+     */
+
+    header.writeBits(1L, 1);
+    header.writeBits(3L, 7);
+    header.writeBits(seekPoints.size() * 18L, 24);
+    for (final var point : seekPoints) {
+      header.writeBits(point[0], 64);
+      header.writeBits(point[1], 64);
+      header.writeBits(point[2], 16);
+    }
+
+    try (var channel = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      final var headerBuffer = ByteBuffer.wrap(header.toByteArray());
+      while (headerBuffer.hasRemaining()) {
+        channel.write(headerBuffer);
+      }
+      final var frameBuffer = ByteBuffer.wrap(frameBytes.toByteArray());
+      while (frameBuffer.hasRemaining()) {
+        channel.write(frameBuffer);
+      }
+    }
+  }
+
+  private static byte[] md5(
+    final int[][] samples,
+    final int bitsPerSample)
+  {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    final var bytesPerSample = bitsPerSample / 8;
+    final var frames = samples[0].length;
+    final var buffer = new byte[samples.length * bytesPerSample];
+    for (var frame = 0; frame < frames; ++frame) {
+      var position = 0;
+      for (final var channel : samples) {
+        final var value = channel[frame];
+        for (var b = 0; b < bytesPerSample; ++b) {
+          buffer[position] = (byte) (value >> (b * 8));
+          ++position;
+        }
+      }
+      digest.update(buffer);
+    }
+    return digest.digest();
+  }
+
+  private static void writeFrame(
+    final CalBitWriter output,
+    final int frameIndex,
+    final int sampleRate,
+    final int bitsPerSample,
+    final int[][] samples,
+    final int offset,
+    final int blockSize)
+  {
+    final var channels = samples.length;
+    final var mode =
+      channels == 2 ? stereoModeFor(frameIndex) : CHANNELS_INDEPENDENT;
+
+    final var decorrelated = new int[channels][];
+    final var widths = new int[channels];
+    for (var channel = 0; channel < channels; ++channel) {
+      final var block = new int[blockSize];
+      System.arraycopy(samples[channel], offset, block, 0, blockSize);
+      decorrelated[channel] = block;
+      widths[channel] = bitsPerSample;
+    }
+
+    if (mode != CHANNELS_INDEPENDENT) {
+      final var left = decorrelated[0];
+      final var right = decorrelated[1];
+      final var side = new int[blockSize];
+      for (var index = 0; index < blockSize; ++index) {
+        side[index] = left[index] - right[index];
+      }
+
+      switch (mode) {
+        case CHANNELS_LEFT_SIDE -> {
+          decorrelated[1] = side;
+          widths[1] = bitsPerSample + 1;
+        }
+        case CHANNELS_RIGHT_SIDE -> {
+          decorrelated[0] = side;
+          widths[0] = bitsPerSample + 1;
+        }
+        default -> {
+          final var mid = new int[blockSize];
+          for (var index = 0; index < blockSize; ++index) {
+            mid[index] = (left[index] + right[index]) >> 1;
+          }
+          decorrelated[0] = mid;
+          decorrelated[1] = side;
+          widths[1] = bitsPerSample + 1;
+        }
+      }
+    }
+
+    /*
+     * Independent channel assignments encode the channel count minus one.
+     */
+
+    final var assignment =
+      mode == CHANNELS_INDEPENDENT ? channels - 1 : mode;
+
+    final var start = output.byteCount();
+    writeFrameHeader(
+      output,
+      frameIndex,
+      sampleRate,
+      bitsPerSample,
+      assignment,
+      blockSize
+    );
+
+    for (var channel = 0; channel < channels; ++channel) {
+      writeSubframe(
+        output,
+        frameIndex * 2 + channel,
+        decorrelated[channel],
+        widths[channel]
+      );
+    }
+
+    output.alignToByte();
+
+    var crc = 0;
+    for (var index = start; index < output.byteCount(); ++index) {
+      crc = CalFLACCRC.crc16(crc, output.byteAt(index));
+    }
+    output.writeBits(crc, 16);
+  }
+
+  private static int stereoModeFor(
+    final int frameIndex)
+  {
+    return switch (frameIndex % 4) {
+      case 0 -> CHANNELS_INDEPENDENT;
+      case 1 -> CHANNELS_LEFT_SIDE;
+      case 2 -> CHANNELS_RIGHT_SIDE;
+      default -> CHANNELS_MID_SIDE;
+    };
+  }
+
+  private static void writeFrameHeader(
+    final CalBitWriter output,
+    final int frameIndex,
+    final int sampleRate,
+    final int bitsPerSample,
+    final int assignment,
+    final int blockSize)
+  {
+    final var start = output.byteCount();
+
+    output.writeBits(0xFFF8L, 16);
+
+    final int blockSizeCode;
+    if (blockSize == 4096) {
+      blockSizeCode = 0b1100;
+    } else if (blockSize <= 256) {
+      blockSizeCode = 0b0110;
+    } else {
+      blockSizeCode = 0b0111;
+    }
+
+    final var sampleRateCode = sampleRateCode(sampleRate);
+    output.writeBits(blockSizeCode, 4);
+    output.writeBits(sampleRateCode, 4);
+    output.writeBits(assignment, 4);
+    output.writeBits(bitsPerSample == 16 ? 0b100 : 0b110, 3);
+    output.writeBits(0L, 1);
+    writeFrameNumber(output, frameIndex);
+
+    switch (blockSizeCode) {
+      case 0b0110 -> output.writeBits(blockSize - 1L, 8);
+      case 0b0111 -> output.writeBits(blockSize - 1L, 16);
+      default -> {
+
+      }
+    }
+
+    switch (sampleRateCode) {
+      case 0b1100 -> output.writeBits(sampleRate / 1000L, 8);
+      case 0b1101 -> output.writeBits(sampleRate, 16);
+      case 0b1110 -> output.writeBits(sampleRate / 10L, 16);
+      default -> {
+
+      }
+    }
+
+    var crc = 0;
+    for (var index = start; index < output.byteCount(); ++index) {
+      crc = CalFLACCRC.crc8(crc, output.byteAt(index));
+    }
+    output.writeBits(crc, 8);
+  }
+
+  private static int sampleRateCode(
+    final int sampleRate)
+  {
+    return switch (sampleRate) {
+      case 88200 -> 0b0001;
+      case 176400 -> 0b0010;
+      case 192000 -> 0b0011;
+      case 8000 -> 0b0100;
+      case 16000 -> 0b0101;
+      case 22050 -> 0b0110;
+      case 24000 -> 0b0111;
+      case 32000 -> 0b1000;
+      case 44100 -> 0b1001;
+      case 48000 -> 0b1010;
+      case 96000 -> 0b1011;
+      default -> {
+        if (sampleRate % 1000 == 0 && sampleRate / 1000 <= 255) {
+          yield 0b1100;
+        }
+        if (sampleRate <= 65535) {
+          yield 0b1101;
+        }
+        if (sampleRate % 10 == 0 && sampleRate / 10 <= 65535) {
+          yield 0b1110;
+        }
+        yield 0b0000;
+      }
+    };
+  }
+
+  private static void writeFrameNumber(
+    final CalBitWriter output,
+    final long value)
+  {
+    if (value < 0x80L) {
+      output.writeBits(value, 8);
+      return;
+    }
+
+    final int continuations;
+    if (value < 0x800L) {
+      continuations = 1;
+    } else if (value < 0x10000L) {
+      continuations = 2;
+    } else if (value < 0x200000L) {
+      continuations = 3;
+    } else if (value < 0x4000000L) {
+      continuations = 4;
+    } else if (value < 0x80000000L) {
+      continuations = 5;
+    } else {
+      continuations = 6;
+    }
+
+    final var prefix = (0xFF00 >> (continuations + 1)) & 0xFF;
+    output.writeBits(prefix | (value >>> (6 * continuations)), 8);
+    for (var index = continuations - 1; index >= 0; --index) {
+      output.writeBits(0x80L | ((value >>> (6 * index)) & 0x3FL), 8);
+    }
+  }
+
+  private static void writeSubframe(
+    final CalBitWriter output,
+    final int selector,
+    final int[] block,
+    final int bitsPerSample)
+  {
+    if (isConstant(block)) {
+      output.writeBits(0L, 1);
+      output.writeBits(0b000000, 6);
+      output.writeBits(0L, 1);
+      output.writeSigned(block[0], bitsPerSample);
+      return;
+    }
+
+    final var wasted = wastedBits(block);
+    final var width = bitsPerSample - wasted;
+    final var shifted = new int[block.length];
+    for (var index = 0; index < block.length; ++index) {
+      shifted[index] = block[index] >> wasted;
+    }
+
+    final var lpcOrder = Math.min(8, block.length - 1);
+    final var lpcPrecision = lpcPrecision(width, lpcOrder);
+
+    final var kind = selector % 7;
+    if (kind == 6 || block.length <= 4) {
+      writeSubframeHeader(output, 0b000001, wasted);
+      for (final var sample : shifted) {
+        output.writeSigned(sample, width);
+      }
+    } else if (kind % 2 == 1 && lpcPrecision >= 2) {
+      writeSubframeLPC(
+        output,
+        shifted,
+        width,
+        wasted,
+        lpcOrder,
+        lpcPrecision,
+        selector
+      );
+    } else {
+      final var order = selector % 5;
+      writeSubframeHeader(output, 0b001000 | order, wasted);
+      for (var index = 0; index < order; ++index) {
+        output.writeSigned(shifted[index], width);
+      }
+      writeResidual(output, fixedResidual(shifted, order), order, selector);
+    }
+  }
+
+  private static int lpcPrecision(
+    final int width,
+    final int order)
+  {
+    /*
+     * Keep the worst-case prediction sum within 32 bits, so that decoders
+     * that accumulate predictions in 32-bit integers remain exact.
+     */
+
+    final var orderBits = 32 - Integer.numberOfLeadingZeros(order - 1);
+    return Math.min(12, 31 - width - orderBits);
+  }
+
+  private static void writeSubframeHeader(
+    final CalBitWriter output,
+    final int type,
+    final int wasted)
+  {
+    output.writeBits(0L, 1);
+    output.writeBits(type, 6);
+    if (wasted > 0) {
+      output.writeBits(1L, 1);
+      output.writeUnary(wasted - 1L);
+    } else {
+      output.writeBits(0L, 1);
+    }
+  }
+
+  private static void writeSubframeLPC(
+    final CalBitWriter output,
+    final int[] block,
+    final int width,
+    final int wasted,
+    final int order,
+    final int precision,
+    final int selector)
+  {
+    final var coefficients = lpcCoefficients(block, order);
+    var maximum = 0.0;
+    for (final var c : coefficients) {
+      maximum = Math.max(maximum, Math.abs(c));
+    }
+
+    var shift = precision - 1;
+    if (maximum > 0.0) {
+      final var log2 = (int) Math.ceil(Math.log(maximum) / Math.log(2.0));
+      shift = precision - 1 - Math.max(0, log2);
+    }
+    shift = Math.max(0, Math.min(15, shift));
+
+    final var limit = (1 << (precision - 1)) - 1;
+    final var quantized = new int[order];
+    for (var index = 0; index < order; ++index) {
+      final var q = Math.round(coefficients[index] * (1 << shift));
+      quantized[index] = (int) Math.max(-limit - 1, Math.min(limit, q));
+    }
+
+    writeSubframeHeader(output, 0b100000 | (order - 1), wasted);
+    for (var index = 0; index < order; ++index) {
+      output.writeSigned(block[index], width);
+    }
+    output.writeBits(precision - 1L, 4);
+    output.writeSigned(shift, 5);
+    for (final var q : quantized) {
+      output.writeSigned(q, precision);
+    }
+
+    final var residual = new long[block.length - order];
+    for (var index = order; index < block.length; ++index) {
+      var sum = 0L;
+      for (var j = 0; j < order; ++j) {
+        sum += (long) quantized[j] * (long) block[index - 1 - j];
+      }
+      residual[index - order] = block[index] - (sum >> shift);
+    }
+    writeResidual(output, residual, order, selector);
+  }
+
+  private static double[] lpcCoefficients(
+    final int[] block,
+    final int order)
+  {
+    final var autocorrelation = new double[order + 1];
+    for (var lag = 0; lag <= order; ++lag) {
+      var sum = 0.0;
+      for (var index = lag; index < block.length; ++index) {
+        sum += (double) block[index] * (double) block[index - lag];
+      }
+      autocorrelation[lag] = sum;
+    }
+
+    /*
+     * Levinson-Durbin recursion.
+     */
+
+    final var coefficients = new double[order];
+    if (autocorrelation[0] == 0.0) {
+      return coefficients;
+    }
+
+    var error = autocorrelation[0];
+    final var previous = new double[order];
+    for (var i = 0; i < order; ++i) {
+      var acc = autocorrelation[i + 1];
+      for (var j = 0; j < i; ++j) {
+        acc -= coefficients[j] * autocorrelation[i - j];
+      }
+      final var reflection = acc / error;
+      System.arraycopy(coefficients, 0, previous, 0, i);
+      coefficients[i] = reflection;
+      for (var j = 0; j < i; ++j) {
+        coefficients[j] = previous[j] - reflection * previous[i - 1 - j];
+      }
+      error *= 1.0 - reflection * reflection;
+      if (error <= 0.0) {
+        break;
+      }
+    }
+    return coefficients;
+  }
+
+  private static long[] fixedResidual(
+    final int[] block,
+    final int order)
+  {
+    final var residual = new long[block.length - order];
+    for (var index = order; index < block.length; ++index) {
+      final long s0 = block[index];
+      final long value = switch (order) {
+        case 0 -> s0;
+        case 1 -> s0 - block[index - 1];
+        case 2 -> s0 - 2L * block[index - 1] + block[index - 2];
+        case 3 -> s0 - 3L * block[index - 1] + 3L * block[index - 2]
+                  - block[index - 3];
+        default -> s0 - 4L * block[index - 1] + 6L * block[index - 2]
+                   - 4L * block[index - 3] + block[index - 4];
+      };
+      residual[index - order] = value;
+    }
+    return residual;
+  }
+
+  private static void writeResidual(
+    final CalBitWriter output,
+    final long[] residual,
+    final int order,
+    final int selector)
+  {
+    final var blockSize = residual.length + order;
+
+    var partitionOrder = selector % 4;
+    while (partitionOrder > 0
+           && ((blockSize % (1 << partitionOrder)) != 0
+               || (blockSize >> partitionOrder) <= order)) {
+      --partitionOrder;
+    }
+
+    final var partitions = 1 << partitionOrder;
+    final var partitionSize = blockSize >> partitionOrder;
+
+    final var parameters = new int[partitions];
+    var maximumParameter = 0;
+    var position = 0;
+    for (var partition = 0; partition < partitions; ++partition) {
+      final var count =
+        partition == 0 ? partitionSize - order : partitionSize;
+      var sum = 0L;
+      for (var index = 0; index < count; ++index) {
+        sum += zigzag(residual[position + index]);
+      }
+      position += count;
+      final var mean = count == 0 ? 0L : sum / count;
+      final var parameter = mean == 0L ? 0 : 63 - Long.numberOfLeadingZeros(mean);
+      parameters[partition] = parameter;
+      maximumParameter = Math.max(maximumParameter, parameter);
+    }
+
+    /*
+     * Use the five-bit parameter method only when the four-bit method
+     * cannot represent a parameter, or periodically to exercise it.
+     */
+
+    final var rice2 = maximumParameter > 14 || selector % 11 == 3;
+    output.writeBits(rice2 ? 1L : 0L, 2);
+    output.writeBits(partitionOrder, 4);
+
+    final var parameterBits = rice2 ? 5 : 4;
+    final var escape = rice2 ? 31 : 15;
+
+    position = 0;
+    for (var partition = 0; partition < partitions; ++partition) {
+      final var count =
+        partition == 0 ? partitionSize - order : partitionSize;
+
+      if (selector % 13 == 5) {
+        writeEscapedPartition(
+          output, residual, position, count, parameterBits, escape);
+      } else {
+        final var parameter = parameters[partition];
+        output.writeBits(parameter, parameterBits);
+        for (var index = 0; index < count; ++index) {
+          final var value = zigzag(residual[position + index]);
+          output.writeUnary(value >>> parameter);
+          if (parameter > 0) {
+            output.writeBits(value & ((1L << parameter) - 1L), parameter);
+          }
+        }
+      }
+      position += count;
+    }
+  }
+
+  private static void writeEscapedPartition(
+    final CalBitWriter output,
+    final long[] residual,
+    final int position,
+    final int count,
+    final int parameterBits,
+    final int escape)
+  {
+    var bits = 0;
+    for (var index = 0; index < count; ++index) {
+      final var value = residual[position + index];
+      final var needed = value < 0L
+        ? 65 - Long.numberOfLeadingZeros(~value)
+        : 65 - Long.numberOfLeadingZeros(value);
+      bits = Math.max(bits, value == 0L ? 0 : needed);
+    }
+
+    output.writeBits(escape, parameterBits);
+    output.writeBits(bits, 5);
+    if (bits > 0) {
+      for (var index = 0; index < count; ++index) {
+        output.writeSigned(residual[position + index], bits);
+      }
+    }
+  }
+
+  private static long zigzag(
+    final long value)
+  {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static boolean isConstant(
+    final int[] block)
+  {
+    for (var index = 1; index < block.length; ++index) {
+      if (block[index] != block[0]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int wastedBits(
+    final int[] block)
+  {
+    var bits = 0;
+    for (final var sample : block) {
+      bits |= sample;
+    }
+    return bits == 0 ? 0 : Integer.numberOfTrailingZeros(bits);
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A benchmark comparing the wall-clock time of short incremental generator
+ * runs with and without the fast-start launch mode (an AppCDS archive plus
+ * direct provider wiring). Every run reuses previously converted samples,
+ * so the measured time is dominated by JVM startup, class loading and
+ * provider discovery rather than by decoding.
+ *
+ * <pre>
+ * CalStartupBenchmark appcds-directory corpus-directory work-directory [iterations]
+ * </pre>
+ *
+ * The AppCDS directory is the one produced by the {@code appcds} build
+ * profile: it contains a {@code lib} directory holding the generator class
+ * path, and the {@code calais.jsa} archive.
+ */
+
+public final class CalStartupBenchmark
+{
+  private CalStartupBenchmark()
+  {
+
+  }
+
+  private record Mode(
+    List<String> jvmArguments,
+    List<String> arguments)
+  {
+
+  }
+
+  public static void main(
+    final String[] args)
+    throws Exception
+  {
+    if (args.length < 3) {
+      throw new IllegalArgumentException(
+        "usage: appcds-directory corpus-directory work-directory [iterations]"
+      );
+    }
+
+    final var appcds =
+      Paths.get(args[0]).toAbsolutePath();
+    final var corpus =
+      Paths.get(args[1]).toAbsolutePath();
+    final var work =
+      Paths.get(args[2]).toAbsolutePath();
+    final var iterations =
+      args.length > 3 ? CalaisCommandLine.parseInteger("iterations", args[3]) : 10;
+
+    final var modes = new TreeMap<String, Mode>();
+    modes.put("baseline", new Mode(
+      List.of(),
+      List.of("--providers", "service-loader")
+    ));
+    modes.put("fast-start", new Mode(
+      List.of("-XX:SharedArchiveFile=" + appcds.resolve("calais.jsa")),
+      List.of("--providers", "direct")
+    ));
+
+    /*
+     * Populate the converted sample directory so that every measured run
+     * is an incremental one.
+     */
+
+    run(appcds, corpus, work, modes.get("baseline"));
+
+    final var timings = new TreeMap<String, List<Long>>();
+    for (var iteration = 0; iteration < iterations; ++iteration) {
+      for (final var entry : modes.entrySet()) {
+        final var time = run(appcds, corpus, work, entry.getValue());
+        timings.computeIfAbsent(entry.getKey(), k -> new ArrayList<>())
+          .add(Long.valueOf(time));
+      }
+    }
+
+    report(timings);
+  }
+
+  private static void report(
+    final Map<String, List<Long>> timings)
+  {
+    System.out.printf(
+      "%-12s %10s %10s %10s%n", "mode", "min (ms)", "median", "mean");
+    for (final var entry : timings.entrySet()) {
+      final var values = new ArrayList<>(entry.getValue());
+      Collections.sort(values);
+      final var mean =
+        values.stream().mapToLong(Long::longValue).average().orElse(0.0);
+      System.out.printf(
+        "%-12s %10d %10d %10.1f%n",
+        entry.getKey(),
+        values.get(0),
+        values.get(values.size() / 2),
+        Double.valueOf(mean)
+      );
+    }
+  }
+
+  private static long run(
+    final Path appcds,
+    final Path corpus,
+    final Path work,
+    final Mode mode)
+    throws IOException, InterruptedException
+  {
+    final var java =
+      Paths.get(System.getProperty("java.home"), "bin", "java");
+
+    final var command = new ArrayList<String>();
+    command.add(java.toString());
+    command.addAll(mode.jvmArguments());
+    command.add("-cp");
+    command.add(appcds.resolve("lib") + File.separator + "*");
+    command.add(Calais.class.getCanonicalName());
+    command.addAll(mode.arguments());
+    command.add("--reuse-converted-samples");
+    command.add("true");
+    command.add(corpus.toString());
+    command.add(work.resolve("samples").toString());
+    command.add(work.resolve("calais.sf2").toString());
+
+    final var timeThen = System.nanoTime();
+    final var process =
+      new ProcessBuilder(command)
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+
+    final var exit = process.waitFor();
+    final var timeNow = System.nanoTime();
+    if (exit != 0) {
+      throw new IOException(
+        String.format("Generator exited with status %d: %s", exit, command)
+      );
+    }
+    return (timeNow - timeThen) / 1_000_000L;
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.generator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * A generator of synthetic sample libraries laid out exactly like the
+ * Quartertone libraries. The output is deterministic for a given set of
+ * arguments, and is used for training runs, benchmarks, and decoder
+ * verification without requiring the real (large) sample library.
+ *
+ * <pre>
+ * CalSyntheticCorpus [--velocities N] [--duration-scale F] [--bits (16|24)] output-directory
+ * </pre>
+ */
+
+public final class CalSyntheticCorpus
+{
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CalSyntheticCorpus.class);
+
+  private static final int SAMPLE_RATE = 44100;
+
+  private static final List<String> SNARE_TAUTNESS =
+    List.of("0sn", "lsn", "tsn");
+  private static final List<String> SNARE_STRIKES =
+    List.of("cs", "hdc", "hde", "rm", "rs");
+  private static final List<String> HIHAT_STRIKES =
+    List.of("bl", "bw", "e");
+  private static final List<String> HIHAT_OPENNESS =
+    List.of("c", "sc", "ho", "so", "o");
+  private static final List<String> CRASH_STRIKES =
+    List.of("bl", "bw", "ed");
+
+  private final Path outputDirectory;
+  private final int velocities;
+  private final double durationScale;
+  private final int bitsPerSample;
+  private int fileId;
+
+  private CalSyntheticCorpus(
+    final Path inOutputDirectory,
+    final int inVelocities,
+    final double inDurationScale,
+    final int inBitsPerSample)
+  {
+    this.outputDirectory = inOutputDirectory;
+    this.velocities = inVelocities;
+    this.durationScale = inDurationScale;
+    this.bitsPerSample = inBitsPerSample;
+    this.fileId = 100000;
+  }
+
+  public static void main(
+    final String[] args)
+    throws IOException
+  {
+    var velocities = 4;
+    var durationScale = 1.0;
+    var bits = 24;
+    Path output = null;
+
+    for (var index = 0; index < args.length; ++index) {
+      final var arg = args[index];
+      switch (arg) {
+        case "--velocities" -> {
+          velocities = CalaisCommandLine.parseInteger(arg, args[++index]);
+        }
+        case "--duration-scale" -> {
+          durationScale = Double.parseDouble(args[++index]);
+        }
+        case "--bits" -> {
+          bits = CalaisCommandLine.parseInteger(arg, args[++index]);
+        }
+        default -> {
+          output = Paths.get(arg);
+        }
+      }
+    }
+
+    if (output == null) {
+      throw new IllegalArgumentException(
+        "usage: [--velocities N] [--duration-scale F] [--bits (16|24)] output-directory"
+      );
+    }
+
+    generate(output, velocities, durationScale, bits);
+  }
+
+  /**
+   * Generate a synthetic library.
+   *
+   * @param outputDirectory The output directory
+   * @param velocities      The number of velocity layers per articulation
+   * @param durationScale   A multiplier applied to every sample duration
+   * @param bitsPerSample   The bits per sample (16 or 24)
+   *
+   * @throws IOException On errors
+   */
+
+  public static void generate(
+    final Path outputDirectory,
+    final int velocities,
+    final double durationScale,
+    final int bitsPerSample)
+    throws IOException
+  {
+    new CalSyntheticCorpus(
+      outputDirectory,
+      velocities,
+      durationScale,
+      bitsPerSample
+    ).run();
+  }
+
+  private void run()
+    throws IOException
+  {
+    final var snareDirectory =
+      this.outputDirectory.resolve(
+        "8839__quartertone__snaredrum-14x08inchtama-highpitch-multisampled");
+    for (final var tautness : SNARE_TAUTNESS) {
+      for (final var strike : SNARE_STRIKES) {
+        this.writeLayers(
+          snareDirectory,
+          "__quartertone__sd14x08tama-hp-%s-%s-v%%d.flac"
+            .formatted(tautness, strike),
+          0.6,
+          180.0
+        );
+      }
+    }
+
+    this.writeLayers(
+      this.outputDirectory.resolve(
+        "8586__quartertone__bassdrum-22x16-open-multisampled"),
+      "__quartertone__bd22x16-mlp-o-v%d.flac",
+      1.0,
+      55.0
+    );
+
+    final var hiHatDirectory =
+      this.outputDirectory.resolve(
+        "8656__quartertone__hihats-18x20inchchinahats-multisampled");
+    for (final var strike : HIHAT_STRIKES) {
+      for (var index = 0; index < HIHAT_OPENNESS.size(); ++index) {
+        this.writeLayers(
+          hiHatDirectory,
+          "__quartertone__chh18x20-1-%s%s-v%%d.flac"
+            .formatted(strike, HIHAT_OPENNESS.get(index)),
+          0.3 + index * 0.6,
+          3200.0
+        );
+      }
+    }
+
+    final var crashDirectory =
+      this.outputDirectory.resolve(
+        "8488__quartertone__crashcymbal-18inzildjianamedium");
+    for (final var strike : CRASH_STRIKES) {
+      this.writeLayers(
+        crashDirectory,
+        "__quartertone__cc18zm-%s-v%%d.flac".formatted(strike),
+        4.0,
+        2400.0
+      );
+    }
+  }
+
+  private void writeLayers(
+    final Path directory,
+    final String namePattern,
+    final double seconds,
+    final double frequency)
+    throws IOException
+  {
+    Files.createDirectories(directory);
+
+    for (var velocity = 1; velocity <= this.velocities; ++velocity) {
+      final var id = this.fileId++;
+      final var file =
+        directory.resolve(id + namePattern.formatted(Integer.valueOf(velocity)));
+
+      final var frames =
+        Math.max(1, (int) (seconds * this.durationScale * SAMPLE_RATE));
+      final var gain =
+        (double) velocity / (double) this.velocities;
+
+      /*
+       * Every other layer of a 24-bit library carries only 16 bits of
+       * content, so that the files contain wasted bits as produced by
+       * many real-world encoders.
+       */
+
+      final var quantum =
+        (this.bitsPerSample == 24 && velocity % 2 == 0) ? 256 : 1;
+
+      final var samples =
+        synthesize(id, frames, gain, frequency, this.bitsPerSample, quantum);
+
+      LOG.info("write {}", file);
+      CalFLACWriter.write(file, SAMPLE_RATE, this.bitsPerSample, samples);
+    }
+  }
+
+  private static int[][] synthesize(
+    final long seed,
+    final int frames,
+    final double gain,
+    final double frequency,
+    final int bitsPerSample,
+    final int quantum)
+  {
+    final var random = new SplittableRandom(seed);
+    final var peak = (double) ((1 << (bitsPerSample - 1)) - 1) * 0.9 * gain;
+    final var decay = frames / 5.0;
+    final var samples = new int[2][frames];
+
+    for (var frame = 0; frame < frames; ++frame) {
+      final var envelope = Math.exp(-frame / decay);
+      final var phase = 2.0 * Math.PI * frequency * frame / SAMPLE_RATE;
+      final var tone = Math.sin(phase);
+      final var noiseL = random.nextDouble(-1.0, 1.0);
+      final var noiseR = random.nextDouble(-1.0, 1.0);
+
+      final var left = peak * envelope * (0.6 * noiseL + 0.4 * tone);
+      final var right = peak * envelope * (0.5 * noiseR + 0.5 * tone);
+      samples[0][frame] = quantize(left, quantum);
+      samples[1][frame] = quantize(right, quantum);
+    }
+    return samples;
+  }
+
+  private static int quantize(
+    final double value,
+    final int quantum)
+  {
+    return (int) Math.round(value / quantum) * quantum;
+  }
+}
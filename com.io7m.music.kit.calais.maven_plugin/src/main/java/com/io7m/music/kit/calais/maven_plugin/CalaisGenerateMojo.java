@@ -0,0 +1,423 @@
+/*
+ * Copyright © 2022 Mark Raynsford <code@io7m.com> https://www.io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.music.kit.calais.maven_plugin;
+
+import com.io7m.music.kit.calais.generator.CalBuildPlan;
+import com.io7m.music.kit.calais.generator.CalFLACDecoding;
+import com.io7m.music.kit.calais.generator.CalFontLayout;
+import com.io7m.music.kit.calais.generator.CalProviderWiring;
+import com.io7m.music.kit.calais.generator.CalSFZSink;
+import com.io7m.music.kit.calais.generator.CalSampleStore;
+import com.io7m.music.kit.calais.generator.CalSizeProfile;
+import com.io7m.music.kit.calais.generator.Calais;
+import com.io7m.music.kit.calais.generator.CalaisCommandLine;
+import com.io7m.music.kit.calais.generator.CalaisConfiguration;
+import com.io7m.music.kit.calais.generator.CalaisInputFingerprint;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Generate the kit.
+ *
+ * <p>The source directory and the embedded comment are the inputs, and the
+ * SF2 file is the output. A fingerprint of the inputs is stored alongside
+ * the output, and generation is skipped if the output exists and the
+ * fingerprint is unchanged.</p>
+ *
+ * <p>The generator runs inside the Maven JVM, so every thread it creates is
+ * stopped, and no reference to any decoded sample data is retained, by the
+ * time this mojo returns.</p>
+ */
+
+@Mojo(
+  name = "generate",
+  defaultPhase = LifecyclePhase.PACKAGE,
+  threadSafe = true)
+public final class CalaisGenerateMojo extends AbstractMojo
+{
+  /**
+   * The directory containing the source FLAC files.
+   */
+
+  @Parameter(
+    property = "calais.sourceDirectory",
+    required = true)
+  private File sourceDirectory;
+
+  /**
+   * The directory used for converted samples.
+   */
+
+  @Parameter(
+    property = "calais.temporaryDirectory",
+    defaultValue = "${project.build.directory}/samples",
+    required = true)
+  private File temporaryDirectory;
+
+  /**
+   * The output SF2 file.
+   */
+
+  @Parameter(
+    property = "calais.outputFile",
+    required = true)
+  private File outputFile;
+
+  /**
+   * The number of conversion threads. A value of zero indicates that one
+   * thread per available processor should be used.
+   */
+
+  @Parameter(
+    property = "calais.threads",
+    defaultValue = "0")
+  private int threads;
+
+  /**
+   * Whether converted samples in the temporary directory that are newer
+   * than their sources should be reused.
+   */
+
+  @Parameter(
+    property = "calais.reuseConvertedSamples",
+    defaultValue = "true")
+  private boolean reuseConvertedSamples;
+
+  /**
+   * The means by which SF2 providers are located ("direct" or
+   * "service-loader"). Defaults to the configuration's default, as for the
+   * command line.
+   */
+
+  @Parameter(property = "calais.providers")
+  private String providers;
+
+  /**
+   * The arrangement of instruments and presets ("combined" or "per-drum").
+   */
+
+  @Parameter(
+    property = "calais.layout",
+    defaultValue = "combined")
+  private String layout;
+
+  /**
+   * The drum families whose articulations choke each other, as a
+   * comma-separated list of "snare", "bass-drum", "hi-hat" and "crash", or
+   * "none".
+   */
+
+  @Parameter(
+    property = "calais.choke",
+    defaultValue = "hi-hat")
+  private String choke;
+
+  /**
+   * Whether the structure of the written SF2 file should be verified.
+   */
+
+  @Parameter(
+    property = "calais.verifyOutput",
+    defaultValue = "true")
+  private boolean verifyOutput;
+
+  /**
+   * The memory budget for concurrent conversion and decoding, in bytes or
+   * with a k, m or g suffix. Defaults to half of the maximum heap size.
+   */
+
+  @Parameter(property = "calais.memoryBudget")
+  private String memoryBudget;
+
+  /**
+   * Where decoded samples are held until they are written ("heap",
+   * "off-heap" or "spill").
+   */
+
+  @Parameter(
+    property = "calais.sampleStore",
+    defaultValue = "heap")
+  private String sampleStore;
+
+  /**
+   * The decoded samples held on the heap by the "spill" sample store, in
+   * bytes or with a k, m or g suffix. Defaults to a quarter of the maximum
+   * heap size.
+   */
+
+  @Parameter(property = "calais.sampleMemory")
+  private String sampleMemory;
+
+  /**
+   * The size above which FLAC files are split into ranges that are decoded
+   * in parallel, in bytes or with a k, m or g suffix. Zero disables
+   * splitting. Defaults to 16m.
+   */
+
+  @Parameter(property = "calais.splitDecodeThreshold")
+  private String splitDecodeThreshold;
+
+  /**
+   * The decoder used to read source files ("native" or "jflac").
+   */
+
+  @Parameter(
+    property = "calais.flacDecoder",
+    defaultValue = "native")
+  private String flacDecoder;
+
+  /**
+   * The number of source files that may be read ahead of the conversions
+   * that consume them. Zero disables reading ahead.
+   */
+
+  @Parameter(
+    property = "calais.prefetchDepth",
+    defaultValue = "4")
+  private int prefetchDepth;
+
+  /**
+   * The memory that source files read ahead may occupy, in bytes or with a
+   * k, m or g suffix. Defaults to 256m.
+   */
+
+  @Parameter(property = "calais.prefetchMemory")
+  private String prefetchMemory;
+
+  /**
+   * The directory of a cache of decoded samples that may be shared between
+   * workspaces and machines. By default, no cache is used.
+   */
+
+  @Parameter(property = "calais.pcmCacheDirectory")
+  private File pcmCacheDirectory;
+
+  /**
+   * The size beyond which the least recently used decoded samples are
+   * evicted from the cache, in bytes or with a k, m or g suffix. Defaults
+   * to 4g.
+   */
+
+  @Parameter(property = "calais.pcmCacheSize")
+  private String pcmCacheSize;
+
+  /**
+   * Log a plan of the build, predicting the output size, memory use and
+   * build time without decoding any audio, instead of generating the kit.
+   */
+
+  @Parameter(
+    property = "calais.plan",
+    defaultValue = "false")
+  private boolean plan;
+
+  /**
+   * Log a breakdown of the size of the generated SF2 file, and write it as
+   * JSON to a file alongside the SF2 file.
+   */
+
+  @Parameter(
+    property = "calais.sizeProfile",
+    defaultValue = "false")
+  private boolean sizeProfile;
+
+  /**
+   * Also write the kit as an SFZ instrument, with the samples as WAV files,
+   * alongside the SF2 file.
+   */
+
+  @Parameter(
+    property = "calais.sfz",
+    defaultValue = "false")
+  private boolean sfz;
+
+  /**
+   * Regenerate the kit even if the inputs are unchanged.
+   */
+
+  @Parameter(
+    property = "calais.force",
+    defaultValue = "false")
+  private boolean force;
+
+  /**
+   * Skip execution entirely.
+   */
+
+  @Parameter(
+    property = "calais.skip",
+    defaultValue = "false")
+  private boolean skip;
+
+  /**
+   * Generate the kit.
+   */
+
+  public CalaisGenerateMojo()
+  {
+
+  }
+
+  @Override
+  public void execute()
+    throws MojoExecutionException
+  {
+    final var log = this.getLog();
+    if (this.skip) {
+      log.info("Skipping kit generation");
+      return;
+    }
+
+    final var builder =
+      CalaisConfiguration.builder(
+        this.sourceDirectory.toPath(),
+        this.temporaryDirectory.toPath(),
+        this.outputFile.toPath()
+      );
+
+    if (this.threads > 0) {
+      builder.setThreads(this.threads);
+    }
+    builder.setReuseConvertedSamples(this.reuseConvertedSamples);
+    if (this.providers != null && !this.providers.isBlank()) {
+      builder.setProviderWiring(
+        CalProviderWiring.ofExternalName(this.providers));
+    }
+    builder.setLayout(
+      CalFontLayout.ofExternalName(this.layout));
+    builder.setChokeFamilies(
+      CalaisCommandLine.parseFamilies(this.choke));
+    builder.setVerifyOutput(this.verifyOutput);
+    builder.setSampleStore(
+      CalSampleStore.ofExternalName(this.sampleStore));
+    if (this.sampleMemory != null && !this.sampleMemory.isBlank()) {
+      builder.setSampleMemory(
+        CalaisCommandLine.parseSize("sampleMemory", this.sampleMemory));
+    }
+    builder.setFLACDecoding(
+      CalFLACDecoding.ofExternalName(this.flacDecoder));
+    builder.setPrefetchDepth(this.prefetchDepth);
+    if (this.prefetchMemory != null && !this.prefetchMemory.isBlank()) {
+      builder.setPrefetchMemory(
+        CalaisCommandLine.parseSize("prefetchMemory", this.prefetchMemory));
+    }
+    if (this.pcmCacheDirectory != null) {
+      builder.setPCMCacheDirectory(this.pcmCacheDirectory.toPath());
+    }
+    if (this.pcmCacheSize != null && !this.pcmCacheSize.isBlank()) {
+      builder.setPCMCacheSize(
+        CalaisCommandLine.parseSize("pcmCacheSize", this.pcmCacheSize));
+    }
+    if (this.splitDecodeThreshold != null
+        && !this.splitDecodeThreshold.isBlank()) {
+      builder.setSplitDecodeThreshold(
+        CalaisCommandLine.parseSize(
+          "splitDecodeThreshold", this.splitDecodeThreshold));
+    }
+    if (this.memoryBudget != null && !this.memoryBudget.isBlank()) {
+      builder.setMemoryBudget(
+        CalaisCommandLine.parseSize("memoryBudget", this.memoryBudget));
+    }
+
+    builder.setPlanOnly(this.plan);
+    builder.setSizeProfile(this.sizeProfile);
+    builder.setSFZ(this.sfz);
+
+    final var configuration = builder.build();
+    if (configuration.planOnly()) {
+      try {
+        for (final var line : CalBuildPlan.create(configuration).show()) {
+          log.info(line);
+        }
+      } catch (final IOException e) {
+        throw new MojoExecutionException("Failed to plan the build", e);
+      }
+      return;
+    }
+
+    final var target = configuration.targetFile();
+    final var fingerprintFile =
+      target.resolveSibling(target.getFileName() + ".inputs");
+
+    try {
+      final var fingerprint =
+        CalaisInputFingerprint.compute(configuration);
+
+      if (!this.force
+          && isUpToDate(configuration, fingerprintFile, fingerprint)) {
+        log.info(String.format("%s is up to date", target));
+        if (configuration.sizeProfile()) {
+          final var profile = CalSizeProfile.create(configuration);
+          for (final var line : profile.show()) {
+            log.info(line);
+          }
+          profile.store(CalSizeProfile.fileFor(target));
+        }
+        return;
+      }
+
+      /*
+       * Remove the fingerprint first so that a failed generation can never
+       * leave a stale output that appears to be up to date.
+       */
+
+      Files.deleteIfExists(fingerprintFile);
+      Files.createDirectories(target.toAbsolutePath().getParent());
+
+      Calais.create(configuration)
+        .execute();
+
+      Files.writeString(fingerprintFile, fingerprint, UTF_8);
+    } catch (final Exception e) {
+      throw new MojoExecutionException(
+        String.format("Failed to generate %s", target),
+        e
+      );
+    }
+  }
+
+  private static boolean isUpToDate(
+    final CalaisConfiguration configuration,
+    final Path fingerprintFile,
+    final String fingerprint)
+    throws IOException
+  {
+    final var target = configuration.targetFile();
+    if (!Files.isRegularFile(target)) {
+      return false;
+    }
+    if (configuration.sfz()
+        && !Files.isRegularFile(CalSFZSink.fileFor(target))) {
+      return false;
+    }
+    if (!Files.isRegularFile(fingerprintFile)) {
+      return false;
+    }
+    return Files.readString(fingerprintFile, UTF_8).equals(fingerprint);
+  }
+}